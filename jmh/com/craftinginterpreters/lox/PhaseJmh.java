@@ -0,0 +1,77 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PhaseBenchmark 的 JMH 版本：语料里每个程序的 scan、parse、resolve、interpret 四个阶段分开测。
+// 每个阶段的输入在 setup 里由前面的阶段准备好，和 PhaseBenchmark.phases 一样。
+// 用法（在仓库根目录，语料目录可以用 -Dlox.corpus 换掉）:
+//   mvn -Pjmh package && java -jar target/benchmarks.jar PhaseJmh -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseJmh {
+  @Param({ "closures", "fib", "loop", "scopes", "strings" })
+  public String program;
+
+  private String source;
+  private List<Token> tokens;
+  private List<Stmt> statements;
+  private ErrorReporter reporter;
+  private PrintStream sink;
+
+  @Setup
+  public void setup() throws IOException {
+    String corpus = System.getProperty("lox.corpus", "src/com/craftinginterpreters/bench/corpus");
+    source = new String(Files.readAllBytes(Paths.get(corpus, program + ".lox")), StandardCharsets.UTF_8);
+    sink = new PrintStream(OutputStream.nullOutputStream());
+    reporter = new ErrorReporter(sink);
+    tokens = new Scanner(source, reporter).scanTokens();
+    statements = new Parser(tokens, reporter).parse();
+    new Resolver(reporter).resolve(statements);
+    if (reporter.hadError) throw new IllegalStateException("Corpus program has errors.");
+  }
+
+  @Benchmark
+  public List<Token> scan() {
+    return new Scanner(source, reporter).scanTokens();
+  }
+
+  @Benchmark
+  public List<Stmt> parse() {
+    return new Parser(tokens, reporter).parse();
+  }
+
+  // 重新解析同一棵树会得到同样的深度，可以反复运行
+  @Benchmark
+  public List<Stmt> resolve() {
+    new Resolver(reporter).resolve(statements);
+    return statements;
+  }
+
+  @Benchmark
+  public void interpret() {
+    new Interpreter(reporter, sink).interpret(statements);
+  }
+}
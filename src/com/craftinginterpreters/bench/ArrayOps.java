@@ -0,0 +1,71 @@
+package com.craftinginterpreters.bench;
+
+import com.craftinginterpreters.lox.LoxContext;
+import com.craftinginterpreters.lox.LoxEngine;
+import com.craftinginterpreters.lox.LoxScript;
+
+// 数组的 push、顺序和随机下标读、下标写，元素全是数字（double[]）和混进一个字符串（Object[]）两种存储，
+// 每种在 n 和 4n 两个大小下各跑一次，打印每个元素的纳秒数：均摊 O(1) 的话两个大小下应该差不多。
+// 最后是用闭包链模拟的数组（按下标找要走 i 步）做同样的顺序读，大小小得多。
+// 准备数据的部分不计时，每种取最好的一轮。
+// 用法: ArrayOps [n] [rounds]
+public class ArrayOps {
+    private static final String FILL =
+        "var a = [];\nfor (var i = 0; i < n; i = i + 1) push(a, i);\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        String[][] cases = {
+            // 名字, 准备（不计时）, 计时的部分
+            { "push", "", FILL + "var sum = length(a);\n" },
+            { "read seq", FILL,
+                "var sum = 0;\nfor (var i = 0; i < n; i = i + 1) sum = sum + a[i];\n" },
+            { "read random", FILL,
+                "var sum = 0;\nvar r = 1;\nfor (var i = 0; i < n; i = i + 1) {\n" +
+                "  r = r * 48271 - floor(r * 48271 / 2147483647) * 2147483647;\n" +
+                "  sum = sum + a[r - floor(r / n) * n];\n}\n" },
+            { "write seq", FILL,
+                "for (var i = 0; i < n; i = i + 1) a[i] = a[i] * 2;\nvar sum = a[n - 1];\n" },
+            { "boxed read", FILL + "push(a, \"end\");\n",
+                "var sum = 0;\nfor (var i = 0; i < n; i = i + 1) sum = sum + a[i];\n" },
+            { "boxed write", FILL + "push(a, \"end\");\n",
+                "for (var i = 0; i < n; i = i + 1) a[i] = a[i] * 2;\nvar sum = a[n - 1];\n" },
+        };
+
+        LoxEngine engine = new LoxEngine();
+        for (String[] test : cases) {
+            for (int size : new int[] { n, n * 4 }) {
+                report(engine, test[0], size, rounds, test[1], test[2]);
+            }
+        }
+
+        // 闭包链：第 i 个元素要经过 i 次调用，顺序读一遍是 O(n^2)
+        int chain = Math.min(n, 1000);
+        report(engine, "closure chain", chain, rounds,
+            "fun cons(head, tail) {\n" +
+            "  fun at(i) { if (i == 0) return head; return tail(i - 1); }\n" +
+            "  return at;\n}\n" +
+            "var a = nil;\nfor (var i = n - 1; i >= 0; i = i - 1) a = cons(i, a);\n",
+            "var sum = 0;\nfor (var i = 0; i < n; i = i + 1) sum = sum + a(i);\n");
+    }
+
+    private static void report(LoxEngine engine, String name, int size, int rounds,
+                               String setup, String timed) {
+        LoxScript prepare = engine.compile("var n = " + size + ";\n" + setup);
+        LoxScript script = engine.compile(timed);
+        double best = Double.MAX_VALUE;
+        Object sum = null;
+        for (int i = 0; i < rounds; i++) {
+            LoxContext context = engine.newContext();
+            if (!context.run(prepare)) throw new IllegalStateException(name + " setup failed");
+            long start = System.nanoTime();
+            if (!context.run(script)) throw new IllegalStateException(name + " failed");
+            best = Math.min(best, (double)(System.nanoTime() - start));
+            sum = context.get("sum");
+        }
+        System.out.printf("%-14s n=%-8d best of %d: %9.2f ms  %8.1f ns/element  sum=%s%n",
+            name, size, rounds, best / 1e6, best / size, sum);
+    }
+}
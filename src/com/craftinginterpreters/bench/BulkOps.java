@@ -0,0 +1,176 @@
+package com.craftinginterpreters.bench;
+
+import com.craftinginterpreters.lox.LoxContext;
+import com.craftinginterpreters.lox.LoxEngine;
+import com.craftinginterpreters.lox.LoxScript;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+// 数字数组的批量运算：Lox 写的循环、内置的批量函数（sum、dot 等）、Java 里按顺序写的普通循环。
+// 内置函数有标量和 SIMD（jdk.incubator.vector）两种实现，JVM 启动时看有没有加载这个模块选定，
+// 所以两种各在一个子进程里跑，一个不加 --add-modules，一个加；Lox 循环和 Java 循环取标量那个子进程的。
+// 准备数组的部分不计时，每种取最好的一轮，倍数是相对 Lox 循环的。
+// 用法: BulkOps [n] [rounds]
+//       BulkOps --run n rounds   （子进程，每个用例打印一行：名字 Lox 循环 内置函数 Java 循环，单位毫秒）
+public class BulkOps {
+    private static final String[][] MODES = {
+        { "scalar" },
+        { "vector", "--add-modules", "jdk.incubator.vector" },
+    };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--run")) {
+            run(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Map<String, double[]>> results = new ArrayList<>();
+        for (String[] mode : MODES) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            for (int i = 1; i < mode.length; i++) command.add(mode[i]);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(BulkOps.class.getName());
+            command.add("--run");
+            command.add(String.valueOf(n));
+            command.add(String.valueOf(rounds));
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            Map<String, double[]> times = new LinkedHashMap<>();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split("\\s+");
+                    // 孵化模块的警告之类的行
+                    if (fields.length != 4) continue;
+                    times.put(fields[0], new double[] {
+                        Double.parseDouble(fields[1]), Double.parseDouble(fields[2]), Double.parseDouble(fields[3]) });
+                }
+            }
+            if (process.waitFor() != 0) {
+                if (results.isEmpty()) throw new IllegalStateException(mode[0] + " failed");
+                // 这个 JDK 没有 jdk.incubator.vector
+                System.out.println(mode[0] + " kernels unavailable");
+                times = null;
+            }
+            results.add(times);
+        }
+
+        Map<String, double[]> scalar = results.get(0);
+        Map<String, double[]> vector = results.get(1);
+        for (Map.Entry<String, double[]> entry : scalar.entrySet()) {
+            double[] times = entry.getValue();
+            double lox = times[0];
+            System.out.printf("%-6s n=%d best of %d:  lox loop %9.2f ms   scalar native %7.2f ms (%.0fx)",
+                entry.getKey(), n, rounds, lox, times[1], lox / times[1]);
+            if (vector != null) {
+                double simd = vector.get(entry.getKey())[1];
+                System.out.printf("   vector native %7.2f ms (%.0fx)", simd, lox / simd);
+            }
+            System.out.printf("   java loop %7.2f ms (%.0fx)%n", times[2], lox / times[2]);
+        }
+    }
+
+    private static void run(int n, int rounds) {
+        double[] a = new double[n];
+        double[] b = new double[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = i % 1000;
+            b[i] = (i * 7) % 1000;
+        }
+        String setup = "var n = " + n + ";\nvar a = [];\nvar b = [];\n" +
+            "for (var i = 0; i < n; i = i + 1) {\n" +
+            "  push(a, i - floor(i / 1000) * 1000);\n" +
+            "  push(b, i * 7 - floor(i * 7 / 1000) * 1000);\n}\n";
+        String loop = "for (var i = 0; i < n; i = i + 1) ";
+
+        Object[][] cases = {
+            { "sum",
+                "var r = 0;\n" + loop + "r = r + a[i];\n",
+                "var r = sum(a);\n",
+                (DoubleSupplier)() -> {
+                    double r = 0;
+                    for (int i = 0; i < n; i++) r += a[i];
+                    return r;
+                } },
+            { "dot",
+                "var r = 0;\n" + loop + "r = r + a[i] * b[i];\n",
+                "var r = dot(a, b);\n",
+                (DoubleSupplier)() -> {
+                    double r = 0;
+                    for (int i = 0; i < n; i++) r += a[i] * b[i];
+                    return r;
+                } },
+            { "maxOf",
+                "var r = a[0];\n" + loop + "if (a[i] > r) r = a[i];\n",
+                "var r = maxOf(a);\n",
+                (DoubleSupplier)() -> {
+                    double r = a[0];
+                    for (int i = 0; i < n; i++) r = Math.max(r, a[i]);
+                    return r;
+                } },
+            { "axpy",
+                "var c = array(n, 0);\n" + loop + "c[i] = 2 * a[i] + b[i];\nvar r = c[n - 1];\n",
+                "var r = axpy(2, a, b)[n - 1];\n",
+                (DoubleSupplier)() -> {
+                    double[] c = new double[n];
+                    for (int i = 0; i < n; i++) c[i] = 2 * a[i] + b[i];
+                    return c[n - 1];
+                } },
+            { "scale",
+                "var c = array(n, 0);\n" + loop + "c[i] = a[i] * 3;\nvar r = c[n - 1];\n",
+                "var r = scale(a, 3)[n - 1];\n",
+                (DoubleSupplier)() -> {
+                    double[] c = new double[n];
+                    for (int i = 0; i < n; i++) c[i] = a[i] * 3;
+                    return c[n - 1];
+                } },
+        };
+
+        LoxEngine engine = new LoxEngine();
+        LoxScript prepare = engine.compile(setup);
+        for (Object[] test : cases) {
+            String name = (String)test[0];
+            double lox = lox(engine, prepare, engine.compile((String)test[1]), rounds);
+            double bulk = lox(engine, prepare, engine.compile((String)test[2]), rounds);
+            double java = java((DoubleSupplier)test[3], rounds);
+            System.out.println(name + " " + lox + " " + bulk + " " + java);
+        }
+    }
+
+    private static double lox(LoxEngine engine, LoxScript prepare, LoxScript script, int rounds) {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            LoxContext context = engine.newContext();
+            if (!context.run(prepare)) throw new IllegalStateException("setup failed");
+            long start = System.nanoTime();
+            if (!context.run(script)) throw new IllegalStateException("script failed");
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        return best;
+    }
+
+    private static double java(DoubleSupplier loop, int rounds) {
+        double best = Double.MAX_VALUE;
+        double sink = 0;
+        // 多跑几轮让 C2 编译好
+        for (int i = 0; i < rounds * 10; i++) {
+            long start = System.nanoTime();
+            sink += loop.getAsDouble();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        if (sink == 42) System.out.println();
+        return best;
+    }
+}
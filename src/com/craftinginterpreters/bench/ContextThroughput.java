@@ -0,0 +1,69 @@
+package com.craftinginterpreters.bench;
+
+import com.craftinginterpreters.lox.LoxContext;
+import com.craftinginterpreters.lox.LoxEngine;
+import com.craftinginterpreters.lox.LoxScript;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// N 个上下文在 M 个线程上并发运行同一个编译好的脚本，统计每秒能跑完多少次。
+// 用法: ContextThroughput [contexts] [threads] [runsPerContext]
+public class ContextThroughput {
+    private static final String SCRIPT =
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+        "var s = \"\";\n" +
+        "for (var i = 0; i < 100; i = i + 1) { s = s + \"x\"; }\n" +
+        "print fib(18);\n";
+
+    public static void main(String[] args) throws Exception {
+        int contexts = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        LoxEngine engine = new LoxEngine();
+        // 所有上下文共享同一棵语法树
+        LoxScript script = engine.compile(SCRIPT);
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // 预热
+            runAll(pool, engine, script, sink, contexts, runs);
+
+            long start = System.nanoTime();
+            int completed = runAll(pool, engine, script, sink, contexts, runs);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%d contexts x %d runs on %d threads: %.1f runs/s (%.3f s)%n",
+                contexts, runs, threads, completed / seconds, seconds);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int runAll(ExecutorService pool, LoxEngine engine, LoxScript script,
+                              PrintStream sink, int contexts, int runs) throws Exception {
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < contexts; i++) {
+            results.add(pool.submit(() -> {
+                LoxContext context = engine.newContext(sink, sink);
+                int ok = 0;
+                for (int r = 0; r < runs; r++) {
+                    if (context.run(script)) ok++;
+                }
+                return ok;
+            }));
+        }
+
+        int completed = 0;
+        for (Future<Integer> result : results) completed += result.get();
+        return completed;
+    }
+}
@@ -0,0 +1,84 @@
+package com.craftinginterpreters.bench;
+
+import com.craftinginterpreters.lox.LoxContext;
+import com.craftinginterpreters.lox.LoxEngine;
+import com.craftinginterpreters.lox.LoxScript;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// 用 openDataset 映射一个 n 个 double 的临时文件，在 Lox 里顺序读和随机读一遍，打印每个元素的纳秒数和吞吐量。
+// open 只建立映射，耗时和文件大小基本无关；同样的读法在 Lox 数组上也跑一遍作对照。
+// 每种取最好的一轮。
+// 用法: MappedData [n] [rounds]
+public class MappedData {
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Path file = Files.createTempFile("lox-dataset", ".bin");
+        try {
+            write(file, n);
+            String path = file.toString();
+            String open = "var n = " + n + ";\nvar d = openDataset(path);\n";
+            String array = "var n = " + n + ";\nvar d = [];\n" +
+                "for (var i = 0; i < n; i = i + 1) push(d, i * 0.5);\n";
+            String sequential = "var sum = 0;\nfor (var i = 0; i < n; i = i + 1) sum = sum + d[i];\n";
+            String random = "var sum = 0;\nvar r = 1;\nfor (var i = 0; i < n; i = i + 1) {\n" +
+                "  r = r * 48271 - floor(r * 48271 / 2147483647) * 2147483647;\n" +
+                "  sum = sum + d[r - floor(r / n) * n];\n}\n";
+
+            LoxEngine engine = new LoxEngine();
+            report(engine, path, "open+close", n, rounds, "var n = " + n + ";\n",
+                "var d = openDataset(path);\nvar sum = length(d);\nclose(d);\n");
+            report(engine, path, "mapped seq", n, rounds, open, sequential);
+            report(engine, path, "mapped random", n, rounds, open, random);
+            report(engine, path, "array seq", n, rounds, array, sequential);
+            report(engine, path, "array random", n, rounds, array, random);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // 0, 0.5, 1, ... 小端
+    private static void write(Path file, int n) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 65536).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < n; i++) {
+                buffer.putDouble(i * 0.5);
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    buffer.clear();
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    // 脚本里的全局变量 path 是数据文件的路径
+    private static void report(LoxEngine engine, String path, String name, int n, int rounds,
+                               String setup, String timed) {
+        LoxScript prepare = engine.compile(setup);
+        LoxScript script = engine.compile(timed);
+        double best = Double.MAX_VALUE;
+        Object sum = null;
+        for (int i = 0; i < rounds; i++) {
+            LoxContext context = engine.newContext();
+            context.define("path", path);
+            if (!context.run(prepare)) throw new IllegalStateException(name + " setup failed");
+            long start = System.nanoTime();
+            if (!context.run(script)) throw new IllegalStateException(name + " failed");
+            best = Math.min(best, (double)(System.nanoTime() - start));
+            sum = context.get("sum");
+        }
+        System.out.printf("%-14s n=%d best of %d: %9.2f ms  %7.1f ns/element  %8.1f MB/s  sum=%s%n",
+            name, n, rounds, best / 1e6, best / n, n * 8.0 / 1e6 / (best / 1e9), sum);
+    }
+}
@@ -0,0 +1,54 @@
+package com.craftinginterpreters.bench;
+
+import com.craftinginterpreters.lox.LoxContext;
+import com.craftinginterpreters.lox.LoxEngine;
+import com.craftinginterpreters.lox.LoxNative;
+import com.craftinginterpreters.lox.LoxScript;
+
+import java.lang.invoke.MethodHandles;
+
+// 同样的循环里求平方根：用 Lox 写的牛顿迭代、内置的原生 sqrt、嵌入方自己绑定的原生函数。
+// 每种取最好的一轮。
+// 用法: NativeCalls [iterations] [rounds]
+public class NativeCalls {
+    // 通过 LoxContext.defineNatives 绑定，名字在 Lox 里是 hypot
+    @LoxNative
+    public static double hypot(double a, double b) {
+        return Math.hypot(a, b);
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        String loop = "var sum = 0;\nfor (var i = 1; i <= " + iterations + "; i = i + 1) {\n";
+        String[][] cases = {
+            { "lox newton", "fun root(x) {\n" +
+                "  var g = x / 2 + 1;\n" +
+                "  for (var k = 0; k < 20; k = k + 1) g = (g + x / g) / 2;\n" +
+                "  return g;\n" +
+                "}\n" + loop + "  sum = sum + root(i);\n}\n" },
+            { "native sqrt", loop + "  sum = sum + sqrt(i);\n}\n" },
+            { "bound hypot", loop + "  sum = sum + hypot(i, 0);\n}\n" },
+        };
+
+        LoxEngine engine = new LoxEngine();
+        double baseline = 0;
+        for (String[] test : cases) {
+            LoxScript script = engine.compile(test[1]);
+            double best = Double.MAX_VALUE;
+            Object sum = null;
+            for (int i = 0; i < rounds; i++) {
+                LoxContext context = engine.newContext();
+                context.defineNatives(MethodHandles.lookup());
+                long start = System.nanoTime();
+                if (!context.run(script)) throw new IllegalStateException(test[0] + " failed");
+                best = Math.min(best, (System.nanoTime() - start) / 1e6);
+                sum = context.get("sum");
+            }
+            if (baseline == 0) baseline = best;
+            System.out.printf("%-12s %d calls best of %d: %9.1f ms  (%.1fx)  sum=%.6g%n",
+                test[0], iterations, rounds, best, baseline / best, (Double)sum);
+        }
+    }
+}
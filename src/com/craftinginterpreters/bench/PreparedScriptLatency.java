@@ -0,0 +1,46 @@
+package com.craftinginterpreters.bench;
+
+import com.craftinginterpreters.lox.LoxContext;
+import com.craftinginterpreters.lox.LoxEngine;
+import com.craftinginterpreters.lox.LoxScript;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+// 对比每次都重新编译和使用 prepare() 缓存时，单次求值的平均延迟。
+// 用法: PreparedScriptLatency [iterations]
+public class PreparedScriptLatency {
+    private static final String SCRIPT =
+        "fun score(a, b) { if (a > b) return a - b; return b - a; }\n" +
+        "var total = 0;\n" +
+        "for (var i = 0; i < 20; i = i + 1) { total = total + score(input, i); }\n" +
+        "var label = \"total: \";\n" +
+        "var result = total;\n";
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+        LoxEngine engine = new LoxEngine();
+
+        // 预热
+        measure(engine, sink, iterations, false);
+        measure(engine, sink, iterations, true);
+
+        double compileEach = measure(engine, sink, iterations, false);
+        double prepared = measure(engine, sink, iterations, true);
+        System.out.printf("compile every time: %8.2f us/eval%n", compileEach);
+        System.out.printf("prepared (cached):  %8.2f us/eval%n", prepared);
+        System.out.println(engine.cache());
+    }
+
+    private static double measure(LoxEngine engine, PrintStream sink, int iterations, boolean prepared) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            LoxScript script = prepared ? engine.prepare(SCRIPT) : engine.compile(SCRIPT);
+            LoxContext context = engine.newContext(sink, sink);
+            context.run(script, Map.of("input", i % 40));
+        }
+        return (System.nanoTime() - start) / 1e3 / iterations;
+    }
+}
@@ -0,0 +1,57 @@
+package com.craftinginterpreters.bench;
+
+import com.craftinginterpreters.lox.LoxEngine;
+import com.craftinginterpreters.lox.Prelude;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// 对比重新执行 prelude 和从快照恢复的耗时。
+// 生成的 prelude 有很多顶层函数和需要计算的全局变量。
+// 用法: SnapshotStartup [declarations] [iterations]
+public class SnapshotStartup {
+    public static void main(String[] args) throws Exception {
+        int declarations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        StringBuilder source = new StringBuilder();
+        source.append("fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n");
+        source.append("fun makeCounter() { var i = 0; fun count() { i = i + 1; return i; } return count; }\n");
+        for (int i = 0; i < declarations; i++) {
+            source.append("fun helper").append(i).append("(x) { return x * ").append(i).append(" + 1; }\n");
+            source.append("var table").append(i).append(" = fib(").append(i % 12).append(");\n");
+            source.append("var name").append(i).append(" = \"entry\" + \"").append(i).append("\";\n");
+        }
+        source.append("var counter = makeCounter();\n");
+        String prelude = source.toString();
+
+        LoxEngine engine = new LoxEngine();
+        Path file = Files.createTempFile("prelude", ".loxs");
+        try {
+            engine.saveSnapshot(engine.loadPrelude(prelude), file);
+
+            // 预热
+            for (int i = 0; i < iterations; i++) {
+                engine.loadPrelude(prelude);
+                engine.loadSnapshot(file);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) engine.loadPrelude(prelude);
+            double execute = (System.nanoTime() - start) / 1e6 / iterations;
+
+            start = System.nanoTime();
+            Prelude restored = null;
+            for (int i = 0; i < iterations; i++) restored = engine.loadSnapshot(file);
+            double restore = (System.nanoTime() - start) / 1e6 / iterations;
+
+            System.out.printf("snapshot size:       %d bytes%n", Files.size(file));
+            System.out.printf("execute prelude:     %8.3f ms%n", execute);
+            System.out.printf("restore snapshot:    %8.3f ms%n", restore);
+            engine.newContext(restored, System.out, System.err)
+                .run(engine.compile("print helper7(2) + table11;"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.craftinginterpreters.bench;
+
+import com.craftinginterpreters.lox.LoxEngine;
+import com.craftinginterpreters.lox.LoxScript;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+// fib(30) 在 AST 解释器、闭包树和字节码三种执行方式下的耗时。
+// 分层执行的开关是系统属性，类加载时就读好了，所以每种方式在单独的子进程里跑，
+// 子进程打印每一轮的毫秒数，这里取最好的一轮比较。
+// 用法: TierSpeedup [n] [rounds]
+//       TierSpeedup --run n rounds   （子进程，只跑当前 JVM 的配置）
+public class TierSpeedup {
+    private static final String[][] MODES = {
+        { "interpreter", "-Dlox.tier.enabled=false" },
+        { "closure tree", "-Dlox.tier.bytecode=false" },
+        { "bytecode", "-Dlox.tier.bytecode=true" },
+    };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--run")) {
+            run(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        double interpreter = 0;
+        for (String[] mode : MODES) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(mode[1]);
+            command.add(TierSpeedup.class.getName());
+            command.add("--run");
+            command.add(String.valueOf(n));
+            command.add(String.valueOf(rounds));
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            double best = Double.MAX_VALUE;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    best = Math.min(best, Double.parseDouble(line));
+                }
+            }
+            if (process.waitFor() != 0) throw new IllegalStateException(mode[0] + " failed");
+            if (interpreter == 0) interpreter = best;
+            System.out.printf("%-14s fib(%d) best of %d: %9.1f ms  (%.1fx)%n",
+                mode[0], n, rounds, best, interpreter / best);
+        }
+    }
+
+    private static void run(int n, int rounds) {
+        LoxEngine engine = new LoxEngine();
+        // 同一个 LoxScript 反复运行，函数声明是同一个，编译结果可以复用
+        LoxScript script = engine.compile(
+            "fun fib(n) { if (n < 2) return n; return fib(n - 2) + fib(n - 1); }\n" +
+            "var result = fib(" + n + ");\n");
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            engine.newContext().run(script);
+            System.out.println((System.nanoTime() - start) / 1e6);
+        }
+    }
+}
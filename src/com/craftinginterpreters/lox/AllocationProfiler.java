@@ -0,0 +1,102 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 按 Lox 源码行和函数统计解释器替脚本做的分配：环境、装箱的 Double、参数列表、字符串拼接和闭包。
+// 当前行和函数取自 ShadowStack，所以开启时解释器也要有影子栈。
+//
+// 字节数是估算值（64 位 JVM、压缩指针），只统计对象本身，不含之后往里放的东西，
+// 比如环境里每个变量还会再占一个 HashMap 节点。用来比较哪一行分配得多已经够了。
+final class AllocationProfiler {
+  static final int ENVIRONMENT = 0;
+  static final int NUMBER = 1;
+  static final int ARGUMENTS = 2;
+  static final int STRING = 3;
+  static final int CLOSURE = 4;
+  private static final String[] KINDS = { "envs", "numbers", "arglists", "strings", "closures" };
+  // 每一行统计的最后一格是估算的字节数
+  private static final int BYTES = KINDS.length;
+
+  // Environment + 它的 HashMap + 第一次 put 时分配的 16 格 table
+  static final long ENVIRONMENT_BYTES = 24 + 48 + 80;
+  static final long NUMBER_BYTES = 16;
+  static final long STRING_BYTES = 32;
+  static final long CLOSURE_BYTES = 24;
+
+  // ArrayList + 它的 Object[]
+  static long argumentsBytes(int count) {
+    return 24 + 16 + 4L * Math.max(count, 10);
+  }
+
+  private final ShadowStack stack;
+  private long[][] byLine = new long[64][];
+  // 按函数声明汇总，同一个声明创建出的多个闭包算在一起
+  private final Map<Stmt.Function, long[]> byFunction = new IdentityHashMap<>();
+
+  AllocationProfiler(ShadowStack stack) {
+    this.stack = stack;
+  }
+
+  void record(int kind, long bytes) {
+    int line = stack.line;
+    if (line >= byLine.length) byLine = Arrays.copyOf(byLine, Math.max(line + 1, byLine.length * 2));
+    long[] row = byLine[line];
+    if (row == null) row = byLine[line] = new long[KINDS.length + 1];
+    row[kind]++;
+    row[BYTES] += bytes;
+
+    // 顶层脚本的函数是 null，IdentityHashMap 允许 null 键
+    LoxFunction function = stack.functions[stack.depth - 1];
+    Stmt.Function declaration = function == null ? null : function.declaration;
+    row = byFunction.get(declaration);
+    if (row == null) {
+      row = new long[KINDS.length + 1];
+      byFunction.put(declaration, row);
+    }
+    row[kind]++;
+    row[BYTES] += bytes;
+  }
+
+  void write(PrintStream out, int limit) {
+    List<String> names = new ArrayList<>();
+    List<long[]> rows = new ArrayList<>();
+    for (int line = 0; line < byLine.length; line++) {
+      if (byLine[line] == null) continue;
+      names.add("line " + line);
+      rows.add(byLine[line]);
+    }
+    writeTable(out, "line", names, rows, limit);
+
+    names.clear();
+    rows.clear();
+    for (Map.Entry<Stmt.Function, long[]> entry : byFunction.entrySet()) {
+      Stmt.Function declaration = entry.getKey();
+      names.add(declaration == null ? "<script>"
+          : declaration.name.lexeme + " (line " + declaration.name.line + ")");
+      rows.add(entry.getValue());
+    }
+    writeTable(out, "function", names, rows, limit);
+  }
+
+  private void writeTable(PrintStream out, String title, List<String> names,
+                          List<long[]> rows, int limit) {
+    Integer[] order = new Integer[rows.size()];
+    for (int i = 0; i < order.length; i++) order[i] = i;
+    Arrays.sort(order, (a, b) -> Long.compare(rows.get(b)[BYTES], rows.get(a)[BYTES]));
+
+    out.printf("%n%-24s", "allocations by " + title);
+    for (String kind : KINDS) out.printf(" %10s", kind);
+    out.printf(" %14s%n", "~bytes");
+    for (int i = 0; i < order.length && i < limit; i++) {
+      long[] row = rows.get(order[i]);
+      out.printf("%-24s", names.get(order[i]));
+      for (int kind = 0; kind < KINDS.length; kind++) out.printf(" %10d", row[kind]);
+      out.printf(" %14d%n", row[BYTES]);
+    }
+  }
+}
@@ -0,0 +1,1226 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.craftinginterpreters.lox.ClassFile.*;
+
+// 把一个已经完成变量解析的函数声明编译成 JVM 字节码，用 Lookup.defineHiddenClass 加载。
+// 生成的隐藏类继承 CompiledFunction，函数体是其中的静态方法
+//   static Object body(Interpreter, Environment closure, Object 参数...)
+// 局部变量是 JVM 局部变量，HotSpot 会把它当普通 Java 代码继续优化。
+//
+// 数值运算生成的是 double 指令：表达式在编译时带着类型（Kind），
+// 已知是数字的子表达式（字面量、减乘除的结果等）直接留在栈上，不装箱；
+// 类型未知的操作数先用 instanceof Double 检查，不是数字时走下面的慢路径辅助方法，
+// 它们和 Interpreter 的语义、报错信息完全一样（比如 + 会去拼接字符串）。
+// 函数调用自己（递归）时，如果被调用的确实是同一个声明，直接 invokestatic，不经过 LoxFunction。
+// Inliner 内联过的调用点确认被调用者之后就地编译函数体的副本。
+// 计数 for 循环（Stmt.For.counted）的计数器是 double 局部变量，读它得到的就是 DOUBLE，用到时才装箱。
+//
+// 解释器记下的反馈（见 FeedbackProfile，可能来自上一次运行）用来选快路径：
+// 两边只出现过字符串的 + 先试字符串拼接；只调用过一个函数的调用点，那个函数编译过时直接调用它的编译结果。
+//
+// compileLoop 把正在跑的单个循环编译成没有参数的“函数”（OSR），closure 是循环所在的环境。
+// 循环里没有函数调用时，循环期间别的代码都看不到循环外的变量，于是再生成一个 promoted 版本：
+// 进入时把循环用到的外部变量（所在环境链上的局部变量和全局变量）读进 JVM 局部变量，
+// 退出时（包括抛出异常）把赋过值的写回环境。
+//
+// 限制和 TierCompiler 一样：函数体里有嵌套函数声明时不编译，返回 null。
+class BytecodeCompiler implements Expr.Visitor<BytecodeCompiler.Kind>, Stmt.Visitor<Void> {
+  // 表达式的值在操作数栈上的形式
+  enum Kind {
+    OBJECT,   // 一个引用，Lox 的任意值
+    DOUBLE,   // 没装箱的 double，占两个位置
+    BOOLEAN   // 0 或 1
+  }
+
+  private static class Unsupported extends RuntimeException {
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final String PACKAGE = "com/craftinginterpreters/lox/";
+  private static final String OBJECT = "java/lang/Object";
+  private static final String DOUBLE = "java/lang/Double";
+  private static final String INTERPRETER = PACKAGE + "Interpreter";
+  private static final String ENVIRONMENT = PACKAGE + "Environment";
+  private static final String TOKEN = PACKAGE + "Token";
+  private static final String FUNCTION = PACKAGE + "Stmt$Function";
+  private static final String LOX_FUNCTION = PACKAGE + "LoxFunction";
+  private static final String LOX_STRING = PACKAGE + "LoxString";
+  private static final String RUNTIME = PACKAGE + "BytecodeCompiler";
+  private static final String RUNTIME_ERROR = PACKAGE + "RuntimeError";
+  private static final String NATIVE_FUNCTION = PACKAGE + "NativeFunction";
+  private static final String METHOD_HANDLE = "java/lang/invoke/MethodHandle";
+  // 生成的方法的前两个局部变量
+  private static final int INTERPRETER_LOCAL = 0;
+  private static final int CLOSURE_LOCAL = 1;
+
+  private static final AtomicInteger classes = new AtomicInteger();
+
+  // 编译循环时为 null
+  private final Stmt.Function function;
+  private final List<Token> params;
+  private final ClassFile file;
+  private final String bodyDescriptor;
+  private ClassFile.Code code;
+
+  // 和 Resolver 的作用域一一对应，值是 JVM 局部变量的下标
+  private final List<Map<String, Integer>> scopes = new ArrayList<>();
+  // 存的是 double 而不是引用的局部变量（计数循环的计数器）
+  private final Set<Integer> doubles = new HashSet<>();
+  // 正在编译的内联函数体的参数所在的局部变量，见 Inliner
+  private final List<int[]> inlineArguments = new ArrayList<>();
+  // 语法树里的 Token、字符串字面量等对象放在隐藏类的静态常量里，通过 classData 传进去
+  private final List<Object> constants = new ArrayList<>();
+  private final List<String> constantTypes = new ArrayList<>();
+  private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+
+  // 编译循环时，循环外面的变量
+  private static final class Outer {
+    final Token name;
+    // 从循环所在的环境算起的距离，-1 表示全局变量
+    final int distance;
+    boolean assigned = false;
+    int local = -1;
+
+    Outer(Token name, int distance) {
+      this.name = name;
+      this.distance = distance;
+    }
+  }
+
+  private final Map<String, Outer> outers = new LinkedHashMap<>();
+  private boolean calls = false;
+  // 正在生成 promoted 版本
+  private boolean promote = false;
+
+  private BytecodeCompiler(String name, Stmt.Function function, List<Token> params) {
+    this.function = function;
+    this.params = params;
+    this.file = new ClassFile(PACKAGE + "Jit$" + name.replaceAll("[^A-Za-z0-9_]", "_")
+        + "$" + classes.incrementAndGet(), PACKAGE + "CompiledFunction");
+    StringBuilder descriptor = new StringBuilder("(L" + INTERPRETER + ";L" + ENVIRONMENT + ";");
+    for (int i = 0; i < params.size(); i++) descriptor.append("Ljava/lang/Object;");
+    this.bodyDescriptor = descriptor.append(")Ljava/lang/Object;").toString();
+  }
+
+  static CompiledFunction compile(Stmt.Function function) {
+    // 参数加上解释器和闭包不能超过 JVM 方法的 255 个参数位置
+    if (function.params.size() > 250) return null;
+    return define(new BytecodeCompiler(function.name.lexeme, function, function.params),
+        function.body);
+  }
+
+  static CompiledFunction compileLoop(Stmt loop) {
+    return define(new BytecodeCompiler("loop", null, Collections.emptyList()),
+        Collections.singletonList(loop));
+  }
+
+  private static CompiledFunction define(BytecodeCompiler compiler, List<Stmt> body) {
+    try {
+      byte[] bytes = compiler.generate(body);
+      MethodHandles.Lookup lookup = MethodHandles.lookup()
+          .defineHiddenClassWithClassData(bytes, compiler.constants.toArray(), true);
+      return (CompiledFunction)lookup
+          .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+          .invoke();
+    } catch (Unsupported unsupported) {
+      return null;
+    } catch (Throwable error) {
+      // 生成的类有问题（比如方法太大）时退回闭包树，不影响程序运行
+      return null;
+    }
+  }
+
+  private byte[] generate(List<Stmt> body) {
+    // 函数体；循环没有参数作用域，深度从循环所在的环境算起
+    code = file.method(ACC_STATIC, "body", bodyDescriptor);
+    if (function != null) {
+      beginScope();
+      for (int i = 0; i < params.size(); i++) {
+        scopes.get(0).put(params.get(i).lexeme, 2 + i);
+      }
+    }
+    body(body);
+    if (function != null) endScope();
+    if (code.reachable()) {
+      code.op(ACONST_NULL, 1);
+      code.op(ARETURN, -1);
+    }
+    code.end();
+
+    boolean promoted = function == null && !calls && !outers.isEmpty();
+    String loopDescriptor = "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";)Ljava/lang/Object;";
+    if (promoted) promoted(body, loopDescriptor);
+
+    // CompiledFunction.call：把参数列表展开后调用函数体
+    String listDescriptor = "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";Ljava/util/List;)Ljava/lang/Object;";
+    ClassFile.Code call = file.method(0, "call", listDescriptor);
+    code = call;
+    if (promoted) {
+      // 用到的全局变量有没定义的，要等执行到那里再报错，只能走普通版本
+      ClassFile.Label plain = new ClassFile.Label();
+      List<Token> globals = new ArrayList<>();
+      for (Outer outer : outers.values()) {
+        if (outer.distance < 0) globals.add(outer.name);
+      }
+      if (!globals.isEmpty()) {
+        call.local(ALOAD, 1);
+        constant(globals.toArray(new Token[0]), "[L" + TOKEN + ";");
+        call.invoke(INVOKESTATIC, RUNTIME, "defined", "(L" + INTERPRETER + ";[L" + TOKEN + ";)Z");
+        call.jump(IFEQ, plain);
+      }
+      call.local(ALOAD, 1);
+      call.local(ALOAD, 2);
+      call.invoke(INVOKESTATIC, file.name(), "promoted", loopDescriptor);
+      call.op(ARETURN, -1);
+      call.place(plain);
+    }
+    call.local(ALOAD, 1);
+    call.local(ALOAD, 2);
+    for (int i = 0; i < params.size(); i++) {
+      call.local(ALOAD, 3);
+      call.iconst(i);
+      call.invoke(INVOKEINTERFACE, "java/util/List", "get", "(I)Ljava/lang/Object;");
+    }
+    call.invoke(INVOKESTATIC, file.name(), "body", bodyDescriptor);
+    call.op(ARETURN, -1);
+    call.end();
+
+    // CompiledFunction.invoke：参数已经在数组里
+    String arrayDescriptor = "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";[Ljava/lang/Object;)Ljava/lang/Object;";
+    ClassFile.Code invoke = file.method(0, "invoke", arrayDescriptor);
+    invoke.local(ALOAD, 1);
+    invoke.local(ALOAD, 2);
+    for (int i = 0; i < params.size(); i++) {
+      invoke.local(ALOAD, 3);
+      invoke.iconst(i);
+      invoke.op(AALOAD, -1);
+    }
+    invoke.invoke(INVOKESTATIC, file.name(), "body", bodyDescriptor);
+    invoke.op(ARETURN, -1);
+    invoke.end();
+
+    ClassFile.Code init = file.method(0, "<init>", "()V");
+    init.local(ALOAD, 0);
+    init.invoke(INVOKESPECIAL, PACKAGE + "CompiledFunction", "<init>", "()V");
+    init.op(RETURN, 0);
+    init.end();
+
+    // 静态初始化时从 classData 取出常量
+    ClassFile.Code clinit = file.method(ACC_STATIC, "<clinit>", "()V");
+    clinit.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup",
+        "()Ljava/lang/invoke/MethodHandles$Lookup;");
+    clinit.ldcString("_");
+    clinit.ldcClass("[Ljava/lang/Object;");
+    clinit.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;");
+    clinit.type(CHECKCAST, "[Ljava/lang/Object;");
+    int data = clinit.newLocal(1);
+    clinit.local(ASTORE, data);
+    for (int i = 0; i < constants.size(); i++) {
+      String type = constantTypes.get(i);
+      file.field(ACC_STATIC | ACC_FINAL, "k" + i, descriptor(type));
+      clinit.local(ALOAD, data);
+      clinit.iconst(i);
+      clinit.op(AALOAD, -1);
+      clinit.type(CHECKCAST, type);
+      clinit.field(PUTSTATIC, file.name(), "k" + i, descriptor(type));
+    }
+    clinit.op(RETURN, 0);
+    clinit.end();
+
+    return file.toByteArray(ACC_FINAL | ACC_SUPER);
+  }
+
+  // 循环的 promoted 版本，外面的变量都在 JVM 局部变量里
+  private void promoted(List<Stmt> body, String descriptor) {
+    code = file.method(ACC_STATIC, "promoted", descriptor);
+    promote = true;
+    // 局部变量重新分配，计数器会重新登记
+    doubles.clear();
+    for (Outer outer : outers.values()) {
+      outer.local = code.newLocal(1);
+      if (outer.distance >= 0) {
+        code.local(ALOAD, CLOSURE_LOCAL);
+        code.iconst(outer.distance);
+        code.ldcString(outer.name.lexeme);
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(ILjava/lang/String;)Ljava/lang/Object;");
+      } else {
+        code.local(ALOAD, INTERPRETER_LOCAL);
+        code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+        token(outer.name);
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get", "(L" + TOKEN + ";)Ljava/lang/Object;");
+      }
+      code.local(ASTORE, outer.local);
+    }
+
+    ClassFile.Label start = new ClassFile.Label();
+    ClassFile.Label end = new ClassFile.Label();
+    ClassFile.Label handler = new ClassFile.Label();
+    code.place(start);
+    body(body);
+    code.place(end);
+    if (code.reachable()) {
+      writeBack();
+      code.op(ACONST_NULL, 1);
+      code.op(ARETURN, -1);
+    }
+    // 运行时错误和循环里的 return（Return 异常）也要先写回
+    code.catchAll(start, end, handler);
+    code.place(handler);
+    int error = code.newLocal(1);
+    code.local(ASTORE, error);
+    writeBack();
+    code.local(ALOAD, error);
+    code.op(ATHROW, -1);
+    code.end();
+  }
+
+  private void writeBack() {
+    for (Outer outer : outers.values()) {
+      if (!outer.assigned) continue;
+      if (outer.distance >= 0) {
+        code.local(ALOAD, CLOSURE_LOCAL);
+        code.iconst(outer.distance);
+        token(outer.name);
+        code.local(ALOAD, outer.local);
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assignAt",
+            "(IL" + TOKEN + ";Ljava/lang/Object;)V");
+      } else {
+        code.local(ALOAD, INTERPRETER_LOCAL);
+        code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+        token(outer.name);
+        code.local(ALOAD, outer.local);
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assign", "(L" + TOKEN + ";Ljava/lang/Object;)V");
+      }
+    }
+  }
+
+  // 编译循环时记下用到的外部变量；编译函数时返回 null
+  private Outer outer(int depth, Token name) {
+    if (function != null) return null;
+    int distance = depth < 0 ? -1 : depth - scopes.size();
+    return outers.computeIfAbsent(distance + " " + name.lexeme, key -> new Outer(name, distance));
+  }
+
+  // ---- 编译时的辅助方法 ----
+
+  private void beginScope() {
+    scopes.add(new HashMap<>());
+  }
+
+  private void endScope() {
+    scopes.remove(scopes.size() - 1);
+  }
+
+  // 解析深度落在函数自己的作用域里时返回局部变量下标，否则返回 -1
+  private int local(int depth, Token name) {
+    if (depth < 0 || depth >= scopes.size()) return -1;
+    Integer local = scopes.get(scopes.size() - 1 - depth).get(name.lexeme);
+    if (local == null) throw new Unsupported();
+    return local;
+  }
+
+  private void constant(Object value, String type) {
+    Integer index = constantIndexes.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantTypes.add(type);
+      constantIndexes.put(value, index);
+    }
+    code.field(GETSTATIC, file.name(), "k" + index, descriptor(constantTypes.get(index)));
+  }
+
+  private static String descriptor(String type) {
+    return type.startsWith("[") ? type : "L" + type + ";";
+  }
+
+  private void token(Token token) {
+    constant(token, TOKEN);
+  }
+
+  private Kind compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  // 编译成一个引用
+  private void object(Expr expr) {
+    box(compile(expr));
+  }
+
+  private void box(Kind kind) {
+    switch (kind) {
+      case DOUBLE:
+        code.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)Ljava/lang/Double;");
+        break;
+      case BOOLEAN:
+        code.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void pop(Kind kind) {
+    code.op(kind == Kind.DOUBLE ? POP2 : POP, kind == Kind.DOUBLE ? -2 : -1);
+  }
+
+  // 栈顶的值转成 0/1 的真值
+  private void truthy(Kind kind) {
+    switch (kind) {
+      case DOUBLE:
+        code.op(POP2, -2);
+        code.iconst(1);
+        break;
+      case OBJECT:
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+        break;
+      default:
+        break;
+    }
+  }
+
+  // 栈顶的值转成 double；不是数字时调用 error 抛出 RuntimeError
+  private void unbox(Kind kind, Token operator, String error) {
+    if (kind == Kind.DOUBLE) return;
+    box(kind);
+    ClassFile.Label ok = new ClassFile.Label();
+    code.op(DUP, 1);
+    code.type(INSTANCEOF, DOUBLE);
+    code.jump(IFNE, ok);
+    token(operator);
+    code.invoke(INVOKESTATIC, RUNTIME, error, "(L" + TOKEN + ";)L" + RUNTIME_ERROR + ";");
+    code.op(ATHROW, -1);
+    code.place(ok);
+    code.type(CHECKCAST, DOUBLE);
+    code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+  }
+
+  // 两个操作数都求值之后（顺序和解释器一样）才检查类型，结果是栈上的两个 double
+  private void numberOperands(Expr.Binary expr, String error) {
+    Kind left = compile(expr.left);
+    if (left == Kind.DOUBLE) {
+      unbox(compile(expr.right), expr.operator, error);
+      return;
+    }
+    box(left);
+    int leftLocal = code.newLocal(1);
+    code.local(ASTORE, leftLocal);
+    Kind right = compile(expr.right);
+    int rightLocal;
+    if (right == Kind.DOUBLE) {
+      rightLocal = code.newLocal(2);
+      code.local(DSTORE, rightLocal);
+    } else {
+      box(right);
+      rightLocal = code.newLocal(1);
+      code.local(ASTORE, rightLocal);
+    }
+    code.local(ALOAD, leftLocal);
+    unbox(Kind.OBJECT, expr.operator, error);
+    if (right == Kind.DOUBLE) {
+      code.local(DLOAD, rightLocal);
+    } else {
+      code.local(ALOAD, rightLocal);
+      unbox(Kind.OBJECT, expr.operator, error);
+    }
+  }
+
+  private static boolean isComparison(TokenType type) {
+    return type == TokenType.GREATER || type == TokenType.GREATER_EQUAL ||
+        type == TokenType.LESS || type == TokenType.LESS_EQUAL;
+  }
+
+  // 条件为 when 时跳到 target，否则接着往下执行。比较和逻辑运算直接编译成跳转，不产生布尔值
+  private void branch(Expr expr, ClassFile.Label target, boolean when) {
+    if (expr instanceof Expr.Grouping) {
+      branch(((Expr.Grouping)expr).expression, target, when);
+      return;
+    }
+    if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+      branch(((Expr.Unary)expr).right, target, !when);
+      return;
+    }
+    if (expr instanceof Expr.Logical) {
+      // 左边嵌套的 and / or 沿着左边循环展开（生成的脚本里可能有几千项，见 Expr.Logical.chain）：
+      // 先从外往里算出每一层左边的跳转目标，再从最左边的操作数开始从里往外生成，不递归
+      List<Expr.Logical> links = links((Expr.Logical)expr);
+      int count = links.size();
+      ClassFile.Label[] targets = new ClassFile.Label[count + 1];
+      boolean[] whens = new boolean[count + 1];
+      ClassFile.Label[] skips = new ClassFile.Label[count];
+      targets[0] = target;
+      whens[0] = when;
+      for (int i = 0; i < count; i++) {
+        boolean or = links.get(i).operator.type == TokenType.OR;
+        if (or == whens[i]) {
+          // a or b 为真 / a and b 为假：任意一边满足就跳
+          targets[i + 1] = targets[i];
+          whens[i + 1] = whens[i];
+        } else {
+          skips[i] = new ClassFile.Label();
+          targets[i + 1] = skips[i];
+          whens[i + 1] = !whens[i];
+        }
+      }
+      branch(links.get(count - 1).left, targets[count], whens[count]);
+      for (int i = count - 1; i >= 0; i--) {
+        branch(links.get(i).right, targets[i], whens[i]);
+        if (skips[i] != null) code.place(skips[i]);
+      }
+      return;
+    }
+    if (expr instanceof Expr.Binary && isComparison(((Expr.Binary)expr).operator.type)) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      numberOperands(binary, "numbersExpected");
+      // NaN 参与的比较都是假：dcmpg 遇到 NaN 得 1，dcmpl 得 -1
+      switch (binary.operator.type) {
+        case LESS:
+          code.op(DCMPG, -3);
+          code.jump(when ? IFLT : IFGE, target);
+          break;
+        case LESS_EQUAL:
+          code.op(DCMPG, -3);
+          code.jump(when ? IFLE : IFGT, target);
+          break;
+        case GREATER:
+          code.op(DCMPL, -3);
+          code.jump(when ? IFGT : IFLE, target);
+          break;
+        default:
+          code.op(DCMPL, -3);
+          code.jump(when ? IFGE : IFLT, target);
+          break;
+      }
+      return;
+    }
+    truthy(compile(expr));
+    code.jump(when ? IFNE : IFEQ, target);
+  }
+
+  // ---- 语句 ----
+
+  // 编译循环（OSR）时 for 循环从条件判断处开始：初始化式已经执行过了，计数器在 closure 里
+  private void body(List<Stmt> body) {
+    if (function == null && body.get(0) instanceof Stmt.For) {
+      forLoop((Stmt.For)body.get(0));
+      return;
+    }
+    statements(body);
+  }
+
+  // return 之后的语句执行不到，不生成
+  private void statements(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (!code.reachable()) return;
+      statement(statement);
+    }
+  }
+
+  // 嵌套得很深的语句（Stmt.deep）编译时要递归，生成的方法也可能太大，留在解释器里用堆上的栈执行
+  private void statement(Stmt stmt) {
+    if (stmt.deep) throw new Unsupported();
+    stmt.accept(this);
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    statements(stmt.statements);
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    pop(compile(stmt.expression));
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    // 嵌套函数会捕获当前作用域，作用域必须是 Environment，不能编译
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    ClassFile.Label otherwise = new ClassFile.Label();
+    branch(stmt.condition, otherwise, false);
+    statement(stmt.thenBranch);
+    if (stmt.elseBranch == null) {
+      code.place(otherwise);
+      return null;
+    }
+    ClassFile.Label end = new ClassFile.Label();
+    if (code.reachable()) code.jump(GOTO, end);
+    code.place(otherwise);
+    statement(stmt.elseBranch);
+    code.place(end);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    code.local(ALOAD, INTERPRETER_LOCAL);
+    object(stmt.expression);
+    code.invoke(INVOKEVIRTUAL, INTERPRETER, "print", "(Ljava/lang/Object;)V");
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      code.op(ACONST_NULL, 1);
+    } else {
+      object(stmt.value);
+    }
+    if (function != null) {
+      code.op(ARETURN, -1);
+      return null;
+    }
+    // 循环里的 return 属于外层函数，像 AST 解释器一样抛出 Return
+    int value = code.newLocal(1);
+    code.local(ASTORE, value);
+    code.type(NEW, PACKAGE + "Return");
+    code.op(DUP, 1);
+    code.local(ALOAD, value);
+    code.invoke(INVOKESPECIAL, PACKAGE + "Return", "<init>", "(Ljava/lang/Object;)V");
+    code.op(ATHROW, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    // 先编译初始化式再声明，和 Resolver 的顺序一致
+    if (stmt.initializer == null) {
+      code.op(ACONST_NULL, 1);
+    } else {
+      object(stmt.initializer);
+    }
+    // 循环体直接是一条声明时没有自己的作用域
+    if (scopes.isEmpty()) throw new Unsupported();
+    int local = code.newLocal(1);
+    code.local(ASTORE, local);
+    scopes.get(scopes.size() - 1).put(stmt.name.lexeme, local);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    ClassFile.Label top = new ClassFile.Label();
+    ClassFile.Label exit = new ClassFile.Label();
+    code.place(top);
+    branch(stmt.condition, exit, false);
+    statement(stmt.body);
+    if (code.reachable()) code.jump(GOTO, top);
+    code.place(exit);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    beginScope();
+    if (stmt.counted) {
+      counter(stmt);
+    } else if (stmt.initializer != null) {
+      statement(stmt.initializer);
+    }
+    forLoop(stmt);
+    endScope();
+    return null;
+  }
+
+  // 计数器的初始值放进 double 局部变量。不是数字时第一次判断条件就会报错：
+  // 先照常求值条件右边（可能有副作用），再抛出和比较运算一样的错误
+  private void counter(Stmt.For stmt) {
+    Stmt.Var counter = (Stmt.Var)stmt.initializer;
+    Expr.Binary test = (Expr.Binary)stmt.condition;
+    Kind kind = compile(counter.initializer);
+    if (kind != Kind.DOUBLE) {
+      box(kind);
+      ClassFile.Label ok = new ClassFile.Label();
+      code.op(DUP, 1);
+      code.type(INSTANCEOF, DOUBLE);
+      code.jump(IFNE, ok);
+      code.op(POP, -1);
+      pop(compile(test.right));
+      token(test.operator);
+      code.invoke(INVOKESTATIC, RUNTIME, "numbersExpected", "(L" + TOKEN + ";)L" + RUNTIME_ERROR + ";");
+      code.op(ATHROW, -1);
+      code.place(ok);
+      code.type(CHECKCAST, DOUBLE);
+      code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    }
+    int local = code.newLocal(2);
+    code.local(DSTORE, local);
+    doubles.add(local);
+    scopes.get(scopes.size() - 1).put(counter.name.lexeme, local);
+  }
+
+  private void forLoop(Stmt.For stmt) {
+    ClassFile.Label top = new ClassFile.Label();
+    ClassFile.Label exit = new ClassFile.Label();
+    code.place(top);
+    branch(stmt.condition, exit, false);
+    statement(stmt.body);
+    if (code.reachable() && stmt.increment != null) pop(compile(stmt.increment));
+    if (code.reachable()) code.jump(GOTO, top);
+    code.place(exit);
+  }
+
+  // ---- 表达式 ----
+
+  @Override
+  public Kind visitArgumentExpr(Expr.Argument expr) {
+    code.local(ALOAD, inlineArguments.get(inlineArguments.size() - 1)[expr.index]);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitAssignExpr(Expr.Assign expr) {
+    int local = local(expr.depth, expr.name);
+    if (doubles.contains(local)) {
+      // 计数器只在增量里赋值，值是 i + c 或 i - c，总是 DOUBLE
+      if (compile(expr.value) != Kind.DOUBLE) throw new Unsupported();
+      code.op(DUP2, 2);
+      code.local(DSTORE, local);
+      return Kind.DOUBLE;
+    }
+    object(expr.value);
+    if (local >= 0) {
+      code.op(DUP, 1);
+      code.local(ASTORE, local);
+      return Kind.OBJECT;
+    }
+    Outer outer = outer(expr.depth, expr.name);
+    if (outer != null) {
+      outer.assigned = true;
+      if (promote) {
+        code.op(DUP, 1);
+        code.local(ASTORE, outer.local);
+        return Kind.OBJECT;
+      }
+    }
+    int value = code.newLocal(1);
+    code.local(ASTORE, value);
+    if (expr.depth >= 0) {
+      code.local(ALOAD, CLOSURE_LOCAL);
+      code.iconst(expr.depth - scopes.size());
+      token(expr.name);
+      code.local(ALOAD, value);
+      code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assignAt",
+          "(IL" + TOKEN + ";Ljava/lang/Object;)V");
+    } else {
+      code.local(ALOAD, INTERPRETER_LOCAL);
+      code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+      token(expr.name);
+      code.local(ALOAD, value);
+      code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assign", "(L" + TOKEN + ";Ljava/lang/Object;)V");
+    }
+    code.local(ALOAD, value);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitVariableExpr(Expr.Variable expr) {
+    int local = local(expr.depth, expr.name);
+    Outer outer = local >= 0 ? null : outer(expr.depth, expr.name);
+    if (doubles.contains(local)) {
+      code.local(DLOAD, local);
+      return Kind.DOUBLE;
+    } else if (local >= 0) {
+      code.local(ALOAD, local);
+    } else if (promote) {
+      code.local(ALOAD, outer.local);
+    } else if (expr.depth >= 0) {
+      code.local(ALOAD, CLOSURE_LOCAL);
+      code.iconst(expr.depth - scopes.size());
+      code.ldcString(expr.name.lexeme);
+      code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(ILjava/lang/String;)Ljava/lang/Object;");
+    } else {
+      code.local(ALOAD, INTERPRETER_LOCAL);
+      code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+      token(expr.name);
+      code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get", "(L" + TOKEN + ";)Ljava/lang/Object;");
+    }
+    return Kind.OBJECT;
+  }
+
+  // 临时变量不是 null 就直接用，否则按赋值编译，见 Hoister
+  @Override
+  public Kind visitTempExpr(Expr.Temp expr) {
+    ClassFile.Label done = new ClassFile.Label();
+    box(visitVariableExpr(TierCompiler.variable(expr)));
+    code.op(DUP, 1);
+    code.jump(IFNONNULL, done);
+    code.op(POP, -1);
+    box(visitAssignExpr(TierCompiler.assign(expr)));
+    code.place(done);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitBinaryExpr(Expr.Binary expr) {
+    TokenType type = expr.operator.type;
+    if (isComparison(type)) {
+      return condition(expr);
+    }
+    switch (type) {
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        object(expr.left);
+        object(expr.right);
+        code.invoke(INVOKESTATIC, INTERPRETER, "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+        if (type == TokenType.BANG_EQUAL) {
+          code.iconst(1);
+          code.op(IXOR, -1);
+        }
+        return Kind.BOOLEAN;
+      case MINUS:
+        numberOperands(expr, "numbersExpected");
+        code.op(DSUB, -2);
+        return Kind.DOUBLE;
+      case STAR:
+        numberOperands(expr, "numbersExpected");
+        code.op(DMUL, -2);
+        return Kind.DOUBLE;
+      case SLASH:
+        numberOperands(expr, "numbersExpected");
+        code.op(DDIV, -2);
+        return Kind.DOUBLE;
+      case PLUS:
+        return add(expr);
+      default:
+        throw new Unsupported();
+    }
+  }
+
+  private Kind add(Expr.Binary expr) {
+    Kind left = compile(expr.left);
+    if (left == Kind.DOUBLE) {
+      // 一边已经是数字，另一边也只能是数字
+      unbox(compile(expr.right), expr.operator, "addOperandsExpected");
+      code.op(DADD, -2);
+      return Kind.DOUBLE;
+    }
+    box(left);
+    int leftLocal = code.newLocal(1);
+    code.local(ASTORE, leftLocal);
+    Kind right = compile(expr.right);
+    if (right == Kind.DOUBLE) {
+      int rightLocal = code.newLocal(2);
+      code.local(DSTORE, rightLocal);
+      code.local(ALOAD, leftLocal);
+      unbox(Kind.OBJECT, expr.operator, "addOperandsExpected");
+      code.local(DLOAD, rightLocal);
+      code.op(DADD, -2);
+      return Kind.DOUBLE;
+    }
+
+    // 两边都不知道类型：都是 Double 时做加法，否则交给 add() 拼接字符串或报错
+    box(right);
+    int rightLocal = code.newLocal(1);
+    code.local(ASTORE, rightLocal);
+    ClassFile.Label slow = new ClassFile.Label();
+    ClassFile.Label end = new ClassFile.Label();
+    if (FeedbackProfile.left(expr.observed) == FeedbackProfile.STRING &&
+        FeedbackProfile.right(expr.observed) == FeedbackProfile.STRING) {
+      // 反馈里两边都只是字符串，先试拼接
+      ClassFile.Label numbers = new ClassFile.Label();
+      code.local(ALOAD, leftLocal);
+      code.type(INSTANCEOF, LOX_STRING);
+      code.jump(IFEQ, numbers);
+      code.local(ALOAD, rightLocal);
+      code.type(INSTANCEOF, LOX_STRING);
+      code.jump(IFEQ, numbers);
+      code.local(ALOAD, leftLocal);
+      code.type(CHECKCAST, LOX_STRING);
+      code.local(ALOAD, rightLocal);
+      code.type(CHECKCAST, LOX_STRING);
+      code.invoke(INVOKESTATIC, LOX_STRING, "concat",
+          "(L" + LOX_STRING + ";L" + LOX_STRING + ";)L" + LOX_STRING + ";");
+      code.jump(GOTO, end);
+      code.place(numbers);
+    }
+    code.local(ALOAD, leftLocal);
+    code.type(INSTANCEOF, DOUBLE);
+    code.jump(IFEQ, slow);
+    code.local(ALOAD, rightLocal);
+    code.type(INSTANCEOF, DOUBLE);
+    code.jump(IFEQ, slow);
+    code.local(ALOAD, leftLocal);
+    code.type(CHECKCAST, DOUBLE);
+    code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    code.local(ALOAD, rightLocal);
+    code.type(CHECKCAST, DOUBLE);
+    code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    code.op(DADD, -2);
+    box(Kind.DOUBLE);
+    code.jump(GOTO, end);
+    code.place(slow);
+    code.local(ALOAD, leftLocal);
+    code.local(ALOAD, rightLocal);
+    token(expr.operator);
+    code.invoke(INVOKESTATIC, RUNTIME, "add",
+        "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;");
+    code.place(end);
+    return Kind.OBJECT;
+  }
+
+  // 比较、! 等用在需要值的地方时，编译成跳转再得到 0/1
+  private Kind condition(Expr expr) {
+    ClassFile.Label no = new ClassFile.Label();
+    ClassFile.Label end = new ClassFile.Label();
+    branch(expr, no, false);
+    code.iconst(1);
+    code.jump(GOTO, end);
+    code.place(no);
+    code.iconst(0);
+    code.place(end);
+    return Kind.BOOLEAN;
+  }
+
+  @Override
+  public Kind visitCallExpr(Expr.Call expr) {
+    calls = true;
+    object(expr.callee);
+    int callee = code.newLocal(1);
+    code.local(ASTORE, callee);
+    int[] arguments = new int[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      object(expr.arguments.get(i));
+      arguments[i] = code.newLocal(1);
+      code.local(ASTORE, arguments[i]);
+    }
+
+    ClassFile.Label slow = new ClassFile.Label();
+    ClassFile.Label end = new ClassFile.Label();
+    boolean recursive = function != null && expr.callee instanceof Expr.Variable &&
+        ((Expr.Variable)expr.callee).name.lexeme.equals(function.name.lexeme) &&
+        arguments.length == function.params.size();
+    NativeFunction builtin = builtin(expr);
+    if (recursive) {
+      // 递归调用：确认被调用的还是这个声明，然后直接调用函数体
+      code.local(ALOAD, INTERPRETER_LOCAL);
+      code.local(ALOAD, callee);
+      constant(function, FUNCTION);
+      code.invoke(INVOKESTATIC, RUNTIME, "direct",
+          "(L" + INTERPRETER + ";Ljava/lang/Object;L" + FUNCTION + ";)Z");
+      code.jump(IFEQ, slow);
+      code.local(ALOAD, INTERPRETER_LOCAL);
+      code.local(ALOAD, callee);
+      code.type(CHECKCAST, LOX_FUNCTION);
+      code.field(GETFIELD, LOX_FUNCTION, "closure", "L" + ENVIRONMENT + ";");
+      for (int argument : arguments) code.local(ALOAD, argument);
+      code.invoke(INVOKESTATIC, file.name(), "body", bodyDescriptor);
+      code.local(ALOAD, INTERPRETER_LOCAL);
+      code.invoke(INVOKESTATIC, RUNTIME, "returned", "(L" + INTERPRETER + ";)V");
+      code.jump(GOTO, end);
+    } else if (builtin != null) {
+      // 内置原生函数：确认全局变量里还是它，然后直接调用这个调用点的方法句柄。
+      // 句柄是类里的常量，JIT 能把 Math.sqrt 之类整个内联进来
+      code.local(ALOAD, INTERPRETER_LOCAL);
+      code.local(ALOAD, callee);
+      constant(builtin, NATIVE_FUNCTION);
+      code.invoke(INVOKESTATIC, RUNTIME, "builtin",
+          "(L" + INTERPRETER + ";Ljava/lang/Object;L" + NATIVE_FUNCTION + ";)Z");
+      code.jump(IFEQ, slow);
+      constant(builtin.site(expr.paren), METHOD_HANDLE);
+      StringBuilder descriptor = new StringBuilder("(");
+      for (int argument : arguments) {
+        code.local(ALOAD, argument);
+        descriptor.append("Ljava/lang/Object;");
+      }
+      code.invoke(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact",
+          descriptor.append(")Ljava/lang/Object;").toString());
+      code.jump(GOTO, end);
+    } else if (expr.inlined != null) {
+      // 内联：确认被调用的还是那个声明，然后就地对函数体的副本求值，参数就是上面的局部变量
+      code.local(ALOAD, INTERPRETER_LOCAL);
+      code.local(ALOAD, callee);
+      constant(expr.inlined, FUNCTION);
+      code.invoke(INVOKEVIRTUAL, INTERPRETER, "canInline", "(Ljava/lang/Object;L" + FUNCTION + ";)Z");
+      code.jump(IFEQ, slow);
+      inlineArguments.add(arguments);
+      object(expr.inlineBody);
+      inlineArguments.remove(inlineArguments.size() - 1);
+      code.jump(GOTO, end);
+    }
+    code.place(slow);
+    Stmt.Function target = expr.polymorphic ? null : expr.target;
+    if (!recursive && target != null && target.params.size() == arguments.length) {
+      // 反馈里这个调用点只调用过 target
+      code.local(ALOAD, INTERPRETER_LOCAL);
+      code.local(ALOAD, callee);
+      constant(target, FUNCTION);
+      token(expr.paren);
+      arguments(arguments);
+      code.invoke(INVOKESTATIC, RUNTIME, "callTarget",
+          "(L" + INTERPRETER + ";Ljava/lang/Object;L" + FUNCTION + ";L" + TOKEN +
+          ";[Ljava/lang/Object;)Ljava/lang/Object;");
+      code.place(end);
+      return Kind.OBJECT;
+    }
+    code.local(ALOAD, INTERPRETER_LOCAL);
+    code.local(ALOAD, callee);
+    token(expr.paren);
+    arguments(arguments);
+    code.invoke(INVOKESTATIC, RUNTIME, "call",
+        "(L" + INTERPRETER + ";Ljava/lang/Object;L" + TOKEN + ";[Ljava/lang/Object;)Ljava/lang/Object;");
+    code.place(end);
+    return Kind.OBJECT;
+  }
+
+  // 按名字调用的全局变量是内置原生函数、参数个数也对得上时返回它。运行时全局变量可能被改掉，由 builtin() 检查
+  private static NativeFunction builtin(Expr.Call expr) {
+    if (!(expr.callee instanceof Expr.Variable) || ((Expr.Variable)expr.callee).depth != -1) return null;
+    NativeFunction function = NativeLibrary.get(((Expr.Variable)expr.callee).name.lexeme);
+    if (function == null || function.arity() != expr.arguments.size()) return null;
+    return function;
+  }
+
+  // 把存在局部变量里的参数装进 Object[]
+  private void arguments(int[] arguments) {
+    code.iconst(arguments.length);
+    code.type(ANEWARRAY, OBJECT);
+    for (int i = 0; i < arguments.length; i++) {
+      code.op(DUP, 1);
+      code.iconst(i);
+      code.local(ALOAD, arguments[i]);
+      code.op(AASTORE, -3);
+    }
+  }
+
+  @Override
+  public Kind visitArrayExpr(Expr.Array expr) {
+    // 每个元素占一个局部变量；很长的字面量留给解释器
+    if (expr.elements.size() > 255) throw new Unsupported();
+    int[] elements = new int[expr.elements.size()];
+    for (int i = 0; i < elements.length; i++) {
+      object(expr.elements.get(i));
+      elements[i] = code.newLocal(1);
+      code.local(ASTORE, elements[i]);
+    }
+    arguments(elements);
+    code.invoke(INVOKESTATIC, RUNTIME, "array", "([Ljava/lang/Object;)Ljava/lang/Object;");
+    return Kind.OBJECT;
+  }
+
+  // 下标是 DOUBLE 时不装箱
+  @Override
+  public Kind visitIndexExpr(Expr.Index expr) {
+    object(expr.object);
+    Kind index = compile(expr.index);
+    if (index == Kind.DOUBLE) {
+      token(expr.bracket);
+      code.invoke(INVOKESTATIC, INTERPRETER, "get",
+          "(Ljava/lang/Object;DL" + TOKEN + ";)Ljava/lang/Object;");
+      return Kind.OBJECT;
+    }
+    box(index);
+    token(expr.bracket);
+    code.invoke(INVOKESTATIC, INTERPRETER, "get",
+        "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;");
+    return Kind.OBJECT;
+  }
+
+  // 下标和值都是 DOUBLE 时直接存进 double[]，表达式的值也还是 DOUBLE
+  @Override
+  public Kind visitSetIndexExpr(Expr.SetIndex expr) {
+    object(expr.object);
+    Kind index = compile(expr.index);
+    if (index != Kind.DOUBLE) box(index);
+    Kind value = compile(expr.value);
+    int local;
+    if (index == Kind.DOUBLE && value == Kind.DOUBLE) {
+      local = code.newLocal(2);
+      code.local(DSTORE, local);
+      code.local(DLOAD, local);
+      token(expr.bracket);
+      code.invoke(INVOKESTATIC, RUNTIME, "setIndex", "(Ljava/lang/Object;DDL" + TOKEN + ";)V");
+      code.local(DLOAD, local);
+      return Kind.DOUBLE;
+    }
+    box(value);
+    local = code.newLocal(1);
+    code.local(ASTORE, local);
+    code.local(ALOAD, local);
+    token(expr.bracket);
+    if (index == Kind.DOUBLE) {
+      code.invoke(INVOKESTATIC, RUNTIME, "setIndex",
+          "(Ljava/lang/Object;DLjava/lang/Object;L" + TOKEN + ";)V");
+    } else {
+      code.invoke(INVOKESTATIC, INTERPRETER, "set",
+          "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)V");
+    }
+    code.local(ALOAD, local);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Kind visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    if (value == null) {
+      code.op(ACONST_NULL, 1);
+      return Kind.OBJECT;
+    }
+    if (value instanceof Boolean) {
+      code.iconst((boolean)value ? 1 : 0);
+      return Kind.BOOLEAN;
+    }
+    if (value instanceof Double) {
+      code.dconst((double)value);
+      return Kind.DOUBLE;
+    }
+    constant(value, OBJECT);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitLogicalExpr(Expr.Logical expr) {
+    // 值是两边之一（不是布尔值），所以都要转成引用。左边嵌套的 and / or 从最左边的操作数开始循环生成，
+    // 每一层短路时跳过自己的右边，结果留在栈上接着给外面一层判断
+    List<Expr.Logical> links = links(expr);
+    object(links.get(links.size() - 1).left);
+    for (int i = links.size() - 1; i >= 0; i--) {
+      Expr.Logical link = links.get(i);
+      ClassFile.Label end = new ClassFile.Label();
+      code.op(DUP, 1);
+      truthy(Kind.OBJECT);
+      code.jump(link.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+      code.op(POP, -1);
+      object(link.right);
+      code.place(end);
+    }
+    return Kind.OBJECT;
+  }
+
+  // 从外往里的各层逻辑运算，直到左边不再是逻辑运算
+  private static List<Expr.Logical> links(Expr.Logical expr) {
+    List<Expr.Logical> links = new ArrayList<>();
+    Expr left = expr;
+    while (left instanceof Expr.Logical) {
+      links.add((Expr.Logical)left);
+      left = ((Expr.Logical)left).left;
+    }
+    return links;
+  }
+
+  @Override
+  public Kind visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type == TokenType.BANG) {
+      return condition(expr);
+    }
+    unbox(compile(expr.right), expr.operator, "numberExpected");
+    code.op(DNEG, 0);
+    return Kind.DOUBLE;
+  }
+
+  // ---- 生成的代码调用的运行时辅助方法 ----
+
+  static RuntimeError numbersExpected(Token operator) {
+    return new RuntimeError(operator, "Operands must be numbers.");
+  }
+
+  static RuntimeError numberExpected(Token operator) {
+    return new RuntimeError(operator, "Operand must be a number.");
+  }
+
+  static RuntimeError addOperandsExpected(Token operator) {
+    return new RuntimeError(operator, "Operands must be two numbers or two strings.");
+  }
+
+  // + 的慢路径
+  static Object add(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left + (double)right;
+    }
+    if (left instanceof LoxString && right instanceof LoxString) {
+      return LoxString.concat((LoxString)left, (LoxString)right);
+    }
+    throw addOperandsExpected(operator);
+  }
+
+  static Object array(Object[] elements) {
+    return new LoxArray(elements);
+  }
+
+  static void setIndex(Object object, double index, double value, Token bracket) {
+    LoxArray array = Interpreter.array(object, bracket);
+    array.setNumber(Interpreter.index(array.size(), index, bracket), value);
+  }
+
+  static void setIndex(Object object, double index, Object value, Token bracket) {
+    LoxArray array = Interpreter.array(object, bracket);
+    array.set(Interpreter.index(array.size(), index, bracket), value);
+  }
+
+  static boolean defined(Interpreter interpreter, Token[] names) {
+    for (Token name : names) {
+      if (!interpreter.globals.contains(name.lexeme)) return false;
+    }
+    return true;
+  }
+
+  static Object call(Interpreter interpreter, Object callee, Token paren, Object[] arguments) {
+    return interpreter.call(callee, arguments, paren);
+  }
+
+  // 被调用的确实是编译时认出的那个内置函数；追踪要看到每次调用，开着时走 call
+  static boolean builtin(Interpreter interpreter, Object callee, NativeFunction expected) {
+    if (callee != expected || interpreter.tracer != null) return false;
+    interpreter.calls++;
+    return true;
+  }
+
+  // 单一目标的调用点：还是那个函数、已经编译好了，就直接调用编译结果
+  static Object callTarget(Interpreter interpreter, Object callee, Stmt.Function target,
+                           Token paren, Object[] arguments) {
+    CompiledFunction compiled = target.compiled;
+    if (compiled != null && direct(interpreter, callee, target)) {
+      Object value = compiled.invoke(interpreter, ((LoxFunction)callee).closure, arguments);
+      returned(interpreter);
+      return value;
+    }
+    return call(interpreter, callee, paren, arguments);
+  }
+
+  // 递归调用能不能绕过 Interpreter.call：被调用的必须是同一个声明，
+  // 而且没有开追踪或分析器（它们需要看到每一次调用）。深递归模式下还要数调用深度，
+  // 太深了就走 Interpreter.call，交给 HeapStack
+  static boolean direct(Interpreter interpreter, Object callee, Stmt.Function declaration) {
+    if (!(callee instanceof LoxFunction) || ((LoxFunction)callee).declaration != declaration) {
+      return false;
+    }
+    if (interpreter.tracer != null || !interpreter.canUseCompiled()) return false;
+    if (interpreter.heap != null && !interpreter.heap.enterDirect()) return false;
+    interpreter.calls++;
+    return true;
+  }
+
+  // direct 返回 true 的调用正常返回之后调用；抛出异常时由外层的 HeapStack.call 恢复深度
+  static void returned(Interpreter interpreter) {
+    if (interpreter.heap != null) interpreter.heap.exitDirect();
+  }
+}
@@ -0,0 +1,453 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 生成 class 文件的最小工具，只包含 BytecodeCompiler 用到的指令，不依赖 ASM 之类的库。
+//
+// 版本号用 49（Java 5）：这个版本的类由类型推导校验器检查，不需要 StackMapTable，
+// 我们也就不用在每个跳转目标上计算栈帧。隐藏类和 classData 不受版本号限制。
+// 操作数栈深度在生成时跟踪，用来算 max_stack。
+final class ClassFile {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  static final int ACONST_NULL = 0x01;
+  static final int ICONST_0 = 0x03;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC = 0x12;
+  static final int LDC_W = 0x13;
+  static final int LDC2_W = 0x14;
+  static final int DLOAD = 0x18;
+  static final int ALOAD = 0x19;
+  static final int AALOAD = 0x32;
+  static final int DSTORE = 0x39;
+  static final int ASTORE = 0x3a;
+  static final int AASTORE = 0x53;
+  static final int POP = 0x57;
+  static final int POP2 = 0x58;
+  static final int DUP = 0x59;
+  static final int DUP2 = 0x5c;
+  static final int DADD = 0x63;
+  static final int DSUB = 0x67;
+  static final int DMUL = 0x6b;
+  static final int DDIV = 0x6f;
+  static final int DNEG = 0x77;
+  static final int IXOR = 0x82;
+  static final int DCMPL = 0x97;
+  static final int DCMPG = 0x98;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int IFLT = 0x9b;
+  static final int IFGE = 0x9c;
+  static final int IFGT = 0x9d;
+  static final int IFLE = 0x9e;
+  static final int GOTO = 0xa7;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETSTATIC = 0xb2;
+  static final int PUTSTATIC = 0xb3;
+  static final int GETFIELD = 0xb4;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int INVOKEINTERFACE = 0xb9;
+  static final int NEW = 0xbb;
+  static final int ANEWARRAY = 0xbd;
+  static final int ATHROW = 0xbf;
+  static final int CHECKCAST = 0xc0;
+  static final int INSTANCEOF = 0xc1;
+  static final int WIDE = 0xc4;
+  static final int IFNONNULL = 0xc7;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> entries = new HashMap<>();
+  private int poolCount = 1;
+
+  private final ByteArrayOutputStream members = new ByteArrayOutputStream();
+  private final DataOutputStream membersOut = new DataOutputStream(members);
+  private int fieldCount = 0;
+  private final List<byte[]> methods = new ArrayList<>();
+
+  private final String name;
+  private final String superName;
+
+  private final int codeAttribute;
+
+  ClassFile(String name, String superName) {
+    this.name = name;
+    this.superName = superName;
+    this.codeAttribute = utf8("Code");
+  }
+
+  String name() {
+    return name;
+  }
+
+  // ---- 常量池，相同的项只写一次 ----
+
+  private int entry(String key, int tag, int slots, Writer writer) {
+    Integer index = entries.get(key);
+    if (index != null) return index;
+    try {
+      poolOut.writeByte(tag);
+      writer.write(poolOut);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    index = poolCount;
+    poolCount += slots;
+    if (poolCount > 0xffff) throw new IllegalStateException("Constant pool overflow.");
+    entries.put(key, index);
+    return index;
+  }
+
+  private interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  int utf8(String value) {
+    return entry("U" + value, 1, 1, out -> out.writeUTF(value));
+  }
+
+  int classRef(String internalName) {
+    int utf8 = utf8(internalName);
+    return entry("C" + internalName, 7, 1, out -> out.writeShort(utf8));
+  }
+
+  int string(String value) {
+    int utf8 = utf8(value);
+    return entry("S" + value, 8, 1, out -> out.writeShort(utf8));
+  }
+
+  int doubleConstant(double value) {
+    long bits = Double.doubleToRawLongBits(value);
+    return entry("D" + bits, 6, 2, out -> out.writeLong(bits));
+  }
+
+  private int nameAndType(String name, String descriptor) {
+    int n = utf8(name);
+    int d = utf8(descriptor);
+    return entry("N" + name + ":" + descriptor, 12, 1, out -> {
+      out.writeShort(n);
+      out.writeShort(d);
+    });
+  }
+
+  private int member(int tag, String owner, String name, String descriptor) {
+    int c = classRef(owner);
+    int nt = nameAndType(name, descriptor);
+    return entry(tag + owner + "." + name + ":" + descriptor, tag, 1, out -> {
+      out.writeShort(c);
+      out.writeShort(nt);
+    });
+  }
+
+  // ---- 字段和方法 ----
+
+  void field(int access, String name, String descriptor) {
+    try {
+      membersOut.writeShort(access);
+      membersOut.writeShort(utf8(name));
+      membersOut.writeShort(utf8(descriptor));
+      membersOut.writeShort(0);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    fieldCount++;
+  }
+
+  Code method(int access, String name, String descriptor) {
+    return new Code(access, name, descriptor);
+  }
+
+  byte[] toByteArray(int access) {
+    int thisClass = classRef(name);
+    int superClass = classRef(superName);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+      out.writeShort(access);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+      out.writeShort(fieldCount);
+      members.writeTo(out);
+      out.writeShort(methods.size());
+      for (byte[] method : methods) out.write(method);
+      out.writeShort(0);
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static final class Label {
+    private int position = -1;
+    // 跳到这里时的栈深度
+    private int depth = -1;
+    private final List<Integer> fixups = new ArrayList<>();
+  }
+
+  // 一个方法的字节码
+  final class Code {
+    private final int access;
+    private final String methodName;
+    private final String descriptor;
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+    private int locals;
+    // 上一条指令是 goto、return 或 athrow 时，接下来的代码只能从跳转到达
+    private boolean reachable = true;
+    // 异常表，每项是 { start, end, handler } 三个标签
+    private final List<Label[]> handlers = new ArrayList<>();
+
+    private Code(int access, String methodName, String descriptor) {
+      this.access = access;
+      this.methodName = methodName;
+      this.descriptor = descriptor;
+      this.locals = argumentSlots(descriptor) + ((access & ACC_STATIC) != 0 ? 0 : 1);
+    }
+
+    boolean reachable() {
+      return reachable;
+    }
+
+    // 分配新的局部变量，double 占两个位置
+    int newLocal(int size) {
+      int local = locals;
+      locals += size;
+      return local;
+    }
+
+    private void u1(int value) {
+      if (length == code.length) code = java.util.Arrays.copyOf(code, length * 2);
+      code[length++] = (byte)value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    private void adjust(int delta) {
+      stack += delta;
+      if (stack > maxStack) maxStack = stack;
+    }
+
+    // 没有操作数的指令，delta 是它对栈深度的影响
+    void op(int opcode, int delta) {
+      u1(opcode);
+      adjust(delta);
+      if (opcode == ARETURN || opcode == RETURN || opcode == ATHROW) reachable = false;
+    }
+
+    void iconst(int value) {
+      if (value >= -1 && value <= 5) {
+        u1(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        u1(BIPUSH);
+        u1(value);
+      } else {
+        u1(SIPUSH);
+        u2(value);
+      }
+      adjust(1);
+    }
+
+    void dconst(double value) {
+      u1(LDC2_W);
+      u2(doubleConstant(value));
+      adjust(2);
+    }
+
+    void ldcString(String value) {
+      ldc(string(value));
+    }
+
+    void ldcClass(String internalName) {
+      ldc(classRef(internalName));
+    }
+
+    private void ldc(int index) {
+      if (index <= 0xff) {
+        u1(LDC);
+        u1(index);
+      } else {
+        u1(LDC_W);
+        u2(index);
+      }
+      adjust(1);
+    }
+
+    // aload/astore/dload/dstore
+    void local(int opcode, int local) {
+      if (local > 0xff) {
+        u1(WIDE);
+        u1(opcode);
+        u2(local);
+      } else {
+        u1(opcode);
+        u1(local);
+      }
+      switch (opcode) {
+        case ALOAD: adjust(1); break;
+        case DLOAD: adjust(2); break;
+        case ASTORE: adjust(-1); break;
+        case DSTORE: adjust(-2); break;
+        default: throw new IllegalArgumentException("Not a local variable instruction.");
+      }
+    }
+
+    // new/checkcast/instanceof/anewarray
+    void type(int opcode, String internalName) {
+      u1(opcode);
+      u2(classRef(internalName));
+      if (opcode == NEW) adjust(1);
+    }
+
+    void field(int opcode, String owner, String name, String descriptor) {
+      u1(opcode);
+      u2(member(9, owner, name, descriptor));
+      int size = typeSlots(descriptor);
+      switch (opcode) {
+        case GETSTATIC: adjust(size); break;
+        case PUTSTATIC: adjust(-size); break;
+        case GETFIELD: adjust(size - 1); break;
+        default: throw new IllegalArgumentException("Not a field instruction.");
+      }
+    }
+
+    void invoke(int opcode, String owner, String name, String descriptor) {
+      int arguments = argumentSlots(descriptor);
+      if (opcode == INVOKEINTERFACE) {
+        u1(opcode);
+        u2(member(11, owner, name, descriptor));
+        u1(arguments + 1);
+        u1(0);
+      } else {
+        u1(opcode);
+        u2(member(10, owner, name, descriptor));
+      }
+      int receiver = opcode == INVOKESTATIC ? 0 : 1;
+      adjust(-arguments - receiver);
+      adjust(typeSlots(descriptor.substring(descriptor.indexOf(')') + 1)));
+    }
+
+    void jump(int opcode, Label label) {
+      int at = length;
+      u1(opcode);
+      u2(0);
+      // 条件跳转先弹出比较的值
+      if (opcode != GOTO) adjust(-1);
+      label.depth = stack;
+      if (label.position >= 0) {
+        patch(at, label.position);
+      } else {
+        label.fixups.add(at);
+      }
+      if (opcode == GOTO) reachable = false;
+    }
+
+    // [start, end) 里抛出的任何异常都跳到 handler，栈上只有那个异常
+    void catchAll(Label start, Label end, Label handler) {
+      handler.depth = 1;
+      handlers.add(new Label[] { start, end, handler });
+    }
+
+    void place(Label label) {
+      label.position = length;
+      for (int at : label.fixups) patch(at, length);
+      if (!reachable && label.depth >= 0) {
+        stack = label.depth;
+        reachable = true;
+      } else if (reachable) {
+        // 向后跳转（循环开头）用这里的深度
+        label.depth = stack;
+      }
+    }
+
+    private void patch(int at, int target) {
+      int offset = target - at;
+      if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+        throw new IllegalStateException("Method too large.");
+      }
+      code[at + 1] = (byte)(offset >> 8);
+      code[at + 2] = (byte)offset;
+    }
+
+    // 方法写完之后调用，字节码追加到类里
+    void end() {
+      if (length > 0xffff) throw new IllegalStateException("Method too large.");
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(access);
+        out.writeShort(utf8(methodName));
+        out.writeShort(utf8(descriptor));
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + length + 8 * handlers.size());
+        out.writeShort(maxStack);
+        out.writeShort(locals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(handlers.size());
+        for (Label[] handler : handlers) {
+          out.writeShort(handler[0].position);
+          out.writeShort(handler[1].position);
+          out.writeShort(handler[2].position);
+          out.writeShort(0);
+        }
+        out.writeShort(0);
+        methods.add(bytes.toByteArray());
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  // ---- 描述符 ----
+
+  private static int typeSlots(String descriptor) {
+    char c = descriptor.charAt(0);
+    if (c == 'V') return 0;
+    if (c == 'D' || c == 'J') return 2;
+    return 1;
+  }
+
+  static int argumentSlots(String descriptor) {
+    int slots = 0;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      char c = descriptor.charAt(i);
+      if (c == 'D' || c == 'J') {
+        slots += 2;
+        i++;
+        continue;
+      }
+      while (descriptor.charAt(i) == '[') i++;
+      if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+      slots++;
+      i++;
+    }
+    return slots;
+  }
+}
@@ -0,0 +1,9 @@
+package com.craftinginterpreters.lox;
+
+// 编译（扫描、解析、变量解析）失败时由 LoxEngine.compile() 抛出，
+// 消息就是命令行版本会打印到 stderr 的那些错误行。
+public class CompileError extends RuntimeException {
+  CompileError(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,67 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// 热函数编译后的形式，挂在 Stmt.Function.compiled 上。有两种实现：
+// TierCompiler 生成的闭包树（Tree），以及 BytecodeCompiler 生成的 JVM 字节码（隐藏类）。
+// 两种都把局部变量放在槽位里，不再为每次调用和每个块分配 Environment。
+abstract class CompiledFunction {
+  interface Code {
+    Object eval(Frame frame);
+  }
+
+  // 返回 true 表示执行了 return，返回值在 frame.returnValue 里
+  interface Exec {
+    boolean exec(Frame frame);
+  }
+
+  static final class Frame {
+    final Interpreter interpreter;
+    // 函数外层的变量（比如外层函数的局部变量）还在原来的 Environment 链上
+    final Environment closure;
+    final Object[] slots;
+    Object returnValue;
+
+    Frame(Interpreter interpreter, Environment closure, int size) {
+      this.interpreter = interpreter;
+      this.closure = closure;
+      this.slots = new Object[size];
+    }
+  }
+
+  abstract Object call(Interpreter interpreter, Environment closure, List<Object> arguments);
+
+  // 编译后的调用点直接传参数数组，生成的类会覆盖它，不再包装成 List
+  Object invoke(Interpreter interpreter, Environment closure, Object[] arguments) {
+    return call(interpreter, closure, Arrays.asList(arguments));
+  }
+
+  // 闭包树：运算符在编译时就分派好了，局部变量放在 Frame 的 Object[] 槽位里
+  static final class Tree extends CompiledFunction {
+    private final int arity;
+    private final int slotCount;
+    private final Exec body;
+    // 单独编译的循环（OSR）：里面的 return 属于外层函数，要像 AST 解释器一样抛出 Return
+    private final boolean loop;
+
+    Tree(int arity, int slotCount, Exec body, boolean loop) {
+      this.arity = arity;
+      this.slotCount = slotCount;
+      this.body = body;
+      this.loop = loop;
+    }
+
+    @Override
+    Object call(Interpreter interpreter, Environment closure, List<Object> arguments) {
+      Frame frame = new Frame(interpreter, closure, slotCount);
+      // 参数占前 arity 个槽位
+      for (int i = 0; i < arity; i++) {
+        frame.slots[i] = arguments.get(i);
+      }
+      if (!body.exec(frame)) return null;
+      if (loop) throw new Return(frame.returnValue);
+      return frame.returnValue;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// 编辑器里每敲一个字符要多久才能拿到新的语法树：LoxDocument.edit 对比整篇重新扫描、解析、变量解析。
+// 放在 lox 包里是因为 LoxDocument 和这几个阶段都是包私有的。
+//
+// 文档是生成的，默认 10000 行。每次操作在随机位置插入一个字符，下一次把它删掉，
+// 所以文档大小不变，插入的字符有时落在注释或字符串里，有时会造成语法错误，和真在打字差不多。
+//
+// 用法: EditBenchmark [--lines n] [--time ms] [--seed n]
+class EditBenchmark {
+  private interface Edit {
+    void run(int offset, boolean insert);
+  }
+
+  public static void main(String[] args) {
+    int lines = 10000;
+    long millis = 2000;
+    long seed = 42;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--lines": lines = Integer.parseInt(args[++i]); break;
+        case "--time": millis = Long.parseLong(args[++i]); break;
+        case "--seed": seed = Long.parseLong(args[++i]); break;
+        default:
+          System.err.println("Unknown option: " + args[i]);
+          System.exit(64);
+      }
+    }
+
+    String source = generate(lines);
+    LoxDocument document = new LoxDocument(source);
+    if (document.hadError()) throw new IllegalStateException(document.errors());
+    System.out.printf("%d lines, %d characters, %d declarations%n",
+        lines, source.length(), document.statements().size());
+
+    PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+    String[] text = { source };
+    Edit full = (offset, insert) -> {
+      String current = text[0];
+      text[0] = insert ? current.substring(0, offset) + "x" + current.substring(offset)
+          : current.substring(0, offset) + current.substring(offset + 1);
+      ErrorReporter reporter = new ErrorReporter(sink);
+      List<Stmt> statements = new Parser(new Scanner(text[0], reporter).scanTokens(), reporter).parse();
+      if (!reporter.hadError) new Resolver(reporter).resolve(statements);
+    };
+    // 重新扫描的记号数、重新解析的声明数、编辑次数
+    long[] work = new long[3];
+    Edit incremental = (offset, insert) -> {
+      if (insert) {
+        document.edit(offset, 0, "x");
+      } else {
+        document.edit(offset, 1, "");
+      }
+      work[0] += document.rescanned;
+      work[1] += document.reparsed;
+      work[2]++;
+    };
+
+    // 两种方式交替预热，免得先测的那个替后面的承担 JIT 编译的开销
+    run(full, source.length(), seed, millis);
+    run(incremental, source.length(), seed, millis);
+
+    double[] fullTime = run(full, source.length(), seed, millis);
+    work[0] = work[1] = work[2] = 0;
+    double[] incrementalTime = run(incremental, source.length(), seed, millis);
+
+    System.out.printf("%-12s %14.1f ns/edit mean %14.1f ns/edit median%n", "full", fullTime[0], fullTime[1]);
+    System.out.printf("%-12s %14.1f ns/edit mean %14.1f ns/edit median%n",
+        "incremental", incrementalTime[0], incrementalTime[1]);
+    System.out.printf("%.1f tokens rescanned, %.2f declarations reparsed per edit%n",
+        (double)work[0] / work[2], (double)work[1] / work[2]);
+    System.out.printf("speedup      %14.1fx mean %14.1fx median%n",
+        fullTime[0] / incrementalTime[0], fullTime[1] / incrementalTime[1]);
+  }
+
+  // 返回 { 平均, 中位数 } ns/edit。每两次操作是一对插入和删除，结束时文档回到原样。
+  // 插入的字符把后面整段吞进一个没闭合的块里时要重新解析到结尾，平均数会被这些拉高
+  private static double[] run(Edit edit, int length, long seed, long millis) {
+    Random random = new Random(seed);
+    long[] times = new long[1024];
+    int operations = 0;
+    long start = System.nanoTime();
+    long end = start + millis * 1_000_000;
+    long now = start;
+    do {
+      int offset = random.nextInt(length + 1);
+      for (int i = 0; i < 2; i++) {
+        long before = now;
+        edit.run(offset, i == 0);
+        now = System.nanoTime();
+        if (operations == times.length) times = Arrays.copyOf(times, operations * 2);
+        times[operations++] = now - before;
+      }
+    } while (now < end);
+    Arrays.sort(times, 0, operations);
+    return new double[] { (double)(now - start) / operations, times[operations / 2] };
+  }
+
+  // 函数、循环、条件、全局变量轮流出现，每种都写成几行
+  private static String generate(int lines) {
+    StringBuilder source = new StringBuilder("var total = 0;\n");
+    int count = 1;
+    int i = 0;
+    while (count < lines) {
+      switch (i % 4) {
+        case 0:
+          source.append("// helper ").append(i).append('\n')
+              .append("fun f").append(i).append("(a, b) {\n")
+              .append("  var t = a * ").append(i).append(" + b;\n")
+              .append("  if (t > 100) return t - b;\n")
+              .append("  return \"short\";\n")
+              .append("}\n");
+          count += 6;
+          break;
+        case 1:
+          source.append("for (var k = 0; k < ").append(i).append("; k = k + 1) {\n")
+              .append("  total = total + f").append(i - 1).append("(k, 1);\n")
+              .append("}\n");
+          count += 3;
+          break;
+        case 2:
+          source.append("if (total > ").append(i).append(") {\n")
+              .append("  print total;\n")
+              .append("} else {\n")
+              .append("  total = total + 1;\n")
+              .append("}\n");
+          count += 5;
+          break;
+        default:
+          source.append("var g").append(i).append(" = \"value ").append(i).append("\";\n");
+          count += 1;
+      }
+      i++;
+    }
+    return source.toString();
+  }
+}
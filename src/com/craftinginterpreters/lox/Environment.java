@@ -4,7 +4,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 class Environment {
-    final Environment enclosing; // null if global
+    Environment enclosing; // null if global
     
     // The no-argument constructor is for the global scope’s environment, which ends the chain.
     Environment() {
@@ -18,9 +18,27 @@ class Environment {
     
     // map of variable names to values
     private final Map<String, Object> values = new HashMap<>();
+    // 冻结后只读，可以被多个解释器共享（见 Prelude）
+    private boolean frozen = false;
+
+    // 帧池里的环境（见 Interpreter.acquireFrame）：换一个外层环境，用作下一次调用的帧
+    void recycle(Environment enclosing) {
+        this.enclosing = enclosing;
+    }
+
+    // 归还到帧池时把值清成 nil，不再引用它们；键留着，同名变量再 define 时不用分配新的节点。
+    // 留下的键读不到：解析过的局部变量总是先声明再使用
+    void release() {
+        values.replaceAll((name, value) -> null);
+    }
+
+    void freeze() {
+        frozen = true;
+    }
 
     // 定义变量
     void define(String name, Object value) {
+        if (frozen) throw new IllegalStateException("Environment is frozen.");
         // 因为新变量总是在当前最内层的作用域中声明
         // 所以不用修改
         values.put(name, value);
@@ -32,9 +50,14 @@ class Environment {
     }
 
     void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+        Environment environment = ancestor(distance);
+        // prelude 里被闭包捕获的局部变量所有上下文共享，和 prelude 的数组一样冻结了（见 Prelude）
+        if (environment.frozen) throw new RuntimeError(name, READ_ONLY_CAPTURED);
+        environment.values.put(name.lexeme, value);
     }
 
+    static final String READ_ONLY_CAPTURED = "Variables captured by prelude closures are read-only.";
+
     Environment ancestor(int distance) {
         Environment environment = this;
         for (int i = 0; i < distance; i++) {
@@ -45,8 +68,10 @@ class Environment {
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-        return values.get(name.lexeme);
+        // 先直接取，只有取到 null 时才需要区分“值是 nil”和“没有这个变量”
+        Object value = values.get(name.lexeme);
+        if (value != null || values.containsKey(name.lexeme)) {
+        return value;
         }
         // 当前环境中没有找到变量，就在外围环境中尝试，递归该操作
         if (enclosing != null) return enclosing.get(name);
@@ -55,6 +80,23 @@ class Environment {
             "Undefined variable '" + name.lexeme + "'.");
     }
 
+    // 嵌入 API 用：和 get() 一样向外查找，但找不到时返回 null 而不是报错
+    Object getOrNull(String name) {
+        if (values.containsKey(name)) return values.get(name);
+        if (enclosing != null) return enclosing.getOrNull(name);
+        return null;
+    }
+
+    // 快照用：本层的所有绑定
+    Map<String, Object> values() {
+        return values;
+    }
+
+    boolean contains(String name) {
+        if (values.containsKey(name)) return true;
+        return enclosing != null && enclosing.contains(name);
+    }
+
     // assign 是赋值
     // The key difference between assignment and definition is that assignment is not allowed to create a new variable.
     void assign(Token name, Object value) {
@@ -66,8 +108,16 @@ class Environment {
         // 不会被覆盖么？是会覆盖最近一个父环境的同名变量，如果当前 block 没有先 define 一个同名变量的话
         // 递归检查外部环境
         if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+            if (enclosing.frozen) {
+                // copy-on-write：共享的 prelude 不能改，在自己这一层写一份副本，之后的读取会先命中它
+                if (enclosing.contains(name.lexeme)) {
+                    values.put(name.lexeme, value);
+                    return;
+                }
+            } else {
+                enclosing.assign(name, value);
+                return;
+            }
         }
 
         throw new RuntimeError(name,
@@ -0,0 +1,50 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+// 原来的错误状态是 Lox 里的静态变量，一个 JVM 里只能跑一个脚本。
+// 现在每次编译、每个上下文都有自己的 ErrorReporter。
+class ErrorReporter {
+  private final PrintStream err;
+  boolean hadError = false;
+  boolean hadRuntimeError = false;
+
+  ErrorReporter(PrintStream err) {
+    this.err = err;
+  }
+
+  void error(int line, String message) {
+    report(line, "", message);
+  }
+
+  void error(Token token, String message) {
+    if (token.type == TokenType.EOF) {
+      report(token.line, " at end", message);
+    } else {
+      report(token.line, " at '" + token.lexeme + "'", message);
+    }
+  }
+
+  // 说不出具体位置的错误
+  void error(String message) {
+    err.println("Error: " + message);
+    hadError = true;
+  }
+
+  private void report(int line, String where, String message) {
+    err.println(
+        "[line " + line + "] Error" + where + ": " + message);
+    hadError = true;
+  }
+
+  // token 是 null 时（比如栈用完的地方说不出是哪一行）只打印消息
+  void runtimeError(RuntimeError error) {
+    if (error.token == null) {
+      err.println(error.getMessage());
+    } else {
+      err.println(error.getMessage() +
+          "\n[line " + error.token.line + "]");
+    }
+    hadRuntimeError = true;
+  }
+}
@@ -4,15 +4,48 @@ import java.util.List;
 
 abstract class Expr {
   interface Visitor<R> {
+    R visitArgumentExpr(Argument expr);
+    R visitArrayExpr(Array expr);
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
     R visitCallExpr(Call expr);
     R visitGroupingExpr(Grouping expr);
+    R visitIndexExpr(Index expr);
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
+    R visitSetIndexExpr(SetIndex expr);
+    R visitTempExpr(Temp expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
   }
+  static class Argument extends Expr {
+    Argument(Token name, int index) {
+      this.name = name;
+      this.index = index;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitArgumentExpr(this);
+    }
+
+    final Token name;
+    final int index;
+  }
+  static class Array extends Expr {
+    Array(Token bracket, List<Expr> elements) {
+      this.bracket = bracket;
+      this.elements = elements;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitArrayExpr(this);
+    }
+
+    final Token bracket;
+    final List<Expr> elements;
+  }
   static class Assign extends Expr {
     Assign(Token name, Expr value) {
       this.name = name;
@@ -26,6 +59,7 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth = -1;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -42,6 +76,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    int observed;
+    boolean chain;
   }
   static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -58,6 +94,10 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    Stmt.Function target;
+    boolean polymorphic;
+    Stmt.Function inlined;
+    Expr inlineBody;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -71,6 +111,22 @@ abstract class Expr {
 
     final Expr expression;
   }
+  static class Index extends Expr {
+    Index(Expr object, Token bracket, Expr index) {
+      this.object = object;
+      this.bracket = bracket;
+      this.index = index;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIndexExpr(this);
+    }
+
+    final Expr object;
+    final Token bracket;
+    final Expr index;
+  }
   static class Literal extends Expr {
     Literal(Object value) {
       this.value = value;
@@ -98,6 +154,40 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    boolean chain;
+  }
+  static class SetIndex extends Expr {
+    SetIndex(Expr object, Token bracket, Expr index, Expr value) {
+      this.object = object;
+      this.bracket = bracket;
+      this.index = index;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSetIndexExpr(this);
+    }
+
+    final Expr object;
+    final Token bracket;
+    final Expr index;
+    final Expr value;
+  }
+  static class Temp extends Expr {
+    Temp(Token name, Expr value) {
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitTempExpr(this);
+    }
+
+    final Token name;
+    final Expr value;
+    int depth = -1;
   }
   static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -124,6 +214,7 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth = -1;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,415 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 跨进程保存的类型和调用反馈（--feedback file）。
+// 脚本都是短命的进程，分层执行每次都要从头预热；把上一次运行观察到的东西存下来，下一次一开始就能用上：
+//   Binary 节点两边操作数出现过的类型（Expr.Binary.observed）
+//   Call 节点调用过的函数（Expr.Call.target，调用过不止一个函数时为 polymorphic）
+//   热函数和热循环（请求过编译的 Stmt.Function / Stmt.While / Stmt.For）
+// 加载时把类型和调用目标写回语法树，热函数和热循环立即请求编译，BytecodeCompiler 按反馈生成代码。
+//
+// 节点按语法树的先序编号，每种节点各自编号。文件开头是源码 SHA-256 的前 8 字节和各种节点的个数，
+// 对不上就说明源码改过，整份反馈作废，运行结束后重新写。
+//
+// 格式（大端，n 表示无符号 LEB128 变长整数，下标都是和上一项的差值）：
+//   magic "LOXF", version, hash(8 字节)
+//   n binaries, n calls, n functions, n loops
+//   n 条数, 每条 (n 下标, n observed)
+//   n 条数, 每条 (n 下标, n 目标函数下标 + 1，0 表示 polymorphic)
+//   n 条数, 每条 n 热函数下标
+//   n 条数, 每条 n 热循环下标
+final class FeedbackProfile {
+  private static final int MAGIC = 0x4c4f5846; // "LOXF"
+  private static final int VERSION = 2;
+
+  // 操作数类型的位，右操作数的左移 RIGHT 位
+  static final int NUMBER = 1;
+  static final int STRING = 2;
+  static final int BOOLEAN = 4;
+  static final int NIL = 8;
+  static final int OTHER = 16;
+  static final int RIGHT = 5;
+
+  private FeedbackProfile() {}
+
+  static int typeBits(Object value) {
+    if (value instanceof Double) return NUMBER;
+    if (value instanceof LoxString) return STRING;
+    if (value instanceof Boolean) return BOOLEAN;
+    if (value == null) return NIL;
+    return OTHER;
+  }
+
+  static int left(int observed) {
+    return observed & ((1 << RIGHT) - 1);
+  }
+
+  static int right(int observed) {
+    return observed >>> RIGHT;
+  }
+
+  // 由 Interpreter 在求值时调用。只在有变化时才写，语法树在多个线程之间共享
+  static void recordBinary(Expr.Binary expr, Object left, Object right) {
+    int bits = typeBits(left) | typeBits(right) << RIGHT;
+    if ((expr.observed | bits) != expr.observed) expr.observed |= bits;
+  }
+
+  static void recordCall(Expr.Call expr, Object callee) {
+    if (expr.polymorphic) return;
+    if (!(callee instanceof LoxFunction)) {
+      expr.target = null;
+      expr.polymorphic = true;
+      return;
+    }
+    Stmt.Function declaration = ((LoxFunction)callee).declaration;
+    if (expr.target == null) {
+      expr.target = declaration;
+    } else if (expr.target != declaration) {
+      expr.target = null;
+      expr.polymorphic = true;
+    }
+  }
+
+  // 读入反馈并应用到语法树上。文件不存在返回 "missing"，源码对不上或者文件坏了返回 "stale"
+  static String load(Path path, String source, List<Stmt> statements) throws IOException {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(path);
+    } catch (NoSuchFileException e) {
+      return "missing";
+    }
+    Nodes nodes = new Nodes(statements);
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) return "stale";
+      if (in.readLong() != hash(source)) return "stale";
+      if (readVarint(in) != nodes.binaries.size() || readVarint(in) != nodes.calls.size() ||
+          readVarint(in) != nodes.functions.size() || readVarint(in) != nodes.loops.size()) {
+        return "stale";
+      }
+
+      int index = -1;
+      for (int count = readVarint(in); count > 0; count--) {
+        index += readVarint(in);
+        nodes.binaries.get(index).observed |= readVarint(in);
+      }
+      index = -1;
+      for (int count = readVarint(in); count > 0; count--) {
+        index += readVarint(in);
+        int target = readVarint(in);
+        Expr.Call call = nodes.calls.get(index);
+        if (target == 0) {
+          call.target = null;
+          call.polymorphic = true;
+        } else if (call.target == null && !call.polymorphic) {
+          call.target = nodes.functions.get(target - 1);
+        }
+      }
+      // 类型和调用目标都填好之后再请求编译
+      List<Stmt.Function> hotFunctions = new ArrayList<>();
+      index = -1;
+      for (int count = readVarint(in); count > 0; count--) {
+        index += readVarint(in);
+        hotFunctions.add(nodes.functions.get(index));
+      }
+      List<Stmt> hotLoops = new ArrayList<>();
+      index = -1;
+      for (int count = readVarint(in); count > 0; count--) {
+        index += readVarint(in);
+        hotLoops.add(nodes.loops.get(index));
+      }
+      if (Tiering.enabled) {
+        for (Stmt.Function function : hotFunctions) Tiering.request(function);
+        for (Stmt loop : hotLoops) {
+          if (loop instanceof Stmt.For) {
+            Tiering.requestLoop((Stmt.For)loop);
+          } else {
+            Tiering.requestLoop((Stmt.While)loop);
+          }
+        }
+      }
+      return "loaded " + hotFunctions.size() + " hot functions, " + hotLoops.size() + " hot loops";
+    } catch (IOException | IndexOutOfBoundsException e) {
+      return "stale";
+    }
+  }
+
+  static void save(Path path, String source, List<Stmt> statements) throws IOException {
+    Nodes nodes = new Nodes(statements);
+    Map<Stmt.Function, Integer> functionIndex = new IdentityHashMap<>();
+    for (int i = 0; i < nodes.functions.size(); i++) functionIndex.put(nodes.functions.get(i), i);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeLong(hash(source));
+    writeVarint(out, nodes.binaries.size());
+    writeVarint(out, nodes.calls.size());
+    writeVarint(out, nodes.functions.size());
+    writeVarint(out, nodes.loops.size());
+
+    List<Integer> observed = new ArrayList<>();
+    for (int i = 0; i < nodes.binaries.size(); i++) {
+      if (nodes.binaries.get(i).observed != 0) observed.add(i);
+    }
+    writeVarint(out, observed.size());
+    int previous = -1;
+    for (int i : observed) {
+      writeVarint(out, i - previous);
+      writeVarint(out, nodes.binaries.get(i).observed);
+      previous = i;
+    }
+
+    List<Integer> targeted = new ArrayList<>();
+    for (int i = 0; i < nodes.calls.size(); i++) {
+      Expr.Call call = nodes.calls.get(i);
+      if (call.polymorphic || functionIndex.containsKey(call.target)) targeted.add(i);
+    }
+    writeVarint(out, targeted.size());
+    previous = -1;
+    for (int i : targeted) {
+      Expr.Call call = nodes.calls.get(i);
+      writeVarint(out, i - previous);
+      writeVarint(out, call.polymorphic ? 0 : functionIndex.get(call.target) + 1);
+      previous = i;
+    }
+
+    List<Integer> hotFunctions = new ArrayList<>();
+    for (int i = 0; i < nodes.functions.size(); i++) {
+      if (nodes.functions.get(i).queued) hotFunctions.add(i);
+    }
+    writeIndexes(out, hotFunctions);
+    List<Integer> hotLoops = new ArrayList<>();
+    for (int i = 0; i < nodes.loops.size(); i++) {
+      Stmt loop = nodes.loops.get(i);
+      if (loop instanceof Stmt.For ? ((Stmt.For)loop).queued : ((Stmt.While)loop).queued) hotLoops.add(i);
+    }
+    writeIndexes(out, hotLoops);
+
+    out.flush();
+    Files.write(path, bytes.toByteArray());
+  }
+
+  private static void writeIndexes(DataOutputStream out, List<Integer> indexes) throws IOException {
+    writeVarint(out, indexes.size());
+    int previous = -1;
+    for (int i : indexes) {
+      writeVarint(out, i - previous);
+      previous = i;
+    }
+  }
+
+  private static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarint(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed varint.");
+  }
+
+  private static long hash(String source) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(source.getBytes(StandardCharsets.UTF_8));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) hash = hash << 8 | (digest[i] & 0xff);
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // 按先序给四种节点编号
+  private static final class Nodes implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    final List<Expr.Binary> binaries = new ArrayList<>();
+    final List<Expr.Call> calls = new ArrayList<>();
+    final List<Stmt.Function> functions = new ArrayList<>();
+    // Stmt.While 和 Stmt.For
+    final List<Stmt> loops = new ArrayList<>();
+
+    Nodes(List<Stmt> statements) {
+      statements(statements);
+    }
+
+    private void statements(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        if (statement != null) statement.accept(this);
+      }
+    }
+
+    private void expr(Expr expr) {
+      if (expr != null) expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      statements(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+      loops.add(stmt);
+      if (stmt.initializer != null) stmt.initializer.accept(this);
+      expr(stmt.condition);
+      stmt.body.accept(this);
+      expr(stmt.increment);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      functions.add(stmt);
+      statements(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      expr(stmt.condition);
+      stmt.thenBranch.accept(this);
+      if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      expr(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      expr(stmt.initializer);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      loops.add(stmt);
+      expr(stmt.condition);
+      stmt.body.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      binaries.add(expr);
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      calls.add(expr);
+      expr(expr.callee);
+      for (Expr argument : expr.arguments) expr(argument);
+      return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+      for (Expr element : expr.elements) expr(element);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+      expr(expr.object);
+      expr(expr.index);
+      return null;
+    }
+
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr) {
+      expr(expr.object);
+      expr(expr.index);
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitTempExpr(Expr.Temp expr) {
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,585 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// 深递归模式：AST 解释器的每次 Lox 调用要占十来个 Java 栈帧（evaluate、accept、visitCallExpr、
+// call、executeBlock……），默认的线程栈几百层就溢出了。打开这个模式后，Interpreter.call 先数调用深度，
+// 浅的时候照常递归调用（和原来的解释器一样快，编译后的代码也照常用）；嵌套超过 javaDepth 层时，
+// 这次调用和它里面的所有调用改由这里的循环执行：待执行的节点和当前步骤放在堆上的数组里，
+// 表达式的中间结果放在值栈上，Lox 调用只是压一个帧，不再占 Java 栈。
+// 这部分只在 AST 上解释执行：不用编译后的代码和内联的副本，也不计分层执行的调用次数、
+// 不给分析器和追踪记录（它们只看得到进入这里的那一次调用）。
+// 不管开没开这个模式，AST 解释器遇到嵌套得很深的语句（Stmt.deep，见 Resolver）也整条交给这里执行。
+//
+// 栈的大小按估算的内存算：每个帧 FRAME_BYTES，每层 Lox 调用再加一个 Environment。
+// 超过 budget 时在调用处报 Lox 的运行时错误 "Stack overflow."，而不是让 JVM 抛 StackOverflowError。
+//
+// 配置通过系统属性：
+//   lox.stack.heap       默认 false
+//   lox.stack.budget     默认 64 MB，堆上的栈最多占用的字节数（估算）
+//   lox.stack.javaDepth  默认 200，在 Java 栈上递归执行的调用层数
+final class HeapStack implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  static final boolean enabled = Boolean.getBoolean("lox.stack.heap");
+  static final long budget = Long.getLong("lox.stack.budget", 64L << 20);
+  static final int javaDepth = Integer.getInteger("lox.stack.javaDepth", 200);
+  // 三个数组各一格，加上数组扩容留的余量
+  private static final long FRAME_BYTES = 32;
+
+  private final Interpreter interpreter;
+  // 在 Java 栈上递归的调用层数
+  private int depth = 0;
+
+  // 帧：节点、执行到哪一步、在哪个环境里执行。节点是 Stmt.Function 的帧是一次 Lox 调用的函数体
+  private Object[] nodes = new Object[256];
+  private int[] steps = new int[256];
+  private Environment[] environments = new Environment[256];
+  private int top = 0;
+  // 用到过的最高位置，退出时清掉引用
+  private int used = 0;
+  private Object[] values = new Object[256];
+  private int sp = 0;
+  // 堆上的栈里正在执行的 Lox 调用层数
+  private int calls = 0;
+
+  // 当前帧的位置和环境，visit 方法里用
+  private int frame;
+  private Environment environment;
+  // 正在执行的这次 run 或 execute 的帧从哪里开始
+  private int base = 0;
+
+  HeapStack(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  Object call(LoxCallable function, List<Object> arguments, Token paren) {
+    if (depth < javaDepth || !(function instanceof LoxFunction)) {
+      // 编译后的代码直接递归时（BytecodeCompiler.direct）只在正常返回时减深度，
+      // 异常穿过时在这里恢复
+      int saved = depth++;
+      try {
+        return interpreter.invoke(function, arguments, paren);
+      } finally {
+        depth = saved;
+      }
+    }
+    return run((LoxFunction)function, arguments, paren);
+  }
+
+  // 编译后的代码绕过 Interpreter.call 直接递归调用之前问一下，太深了返回 false 走 call
+  boolean enterDirect() {
+    if (depth >= javaDepth) return false;
+    depth++;
+    return true;
+  }
+
+  void exitDirect() {
+    depth--;
+  }
+
+  private Object run(LoxFunction function, List<Object> arguments, Token paren) {
+    int outer = base;
+    int valueBase = sp;
+    int callBase = calls;
+    base = top;
+    try {
+      enter(function, arguments, paren);
+      loop();
+      return values[--sp];
+    } finally {
+      release(outer, valueBase, callBase);
+    }
+  }
+
+  // AST 解释器里嵌套得很深的一条语句，在 environment 里执行。
+  // 语句里的 return 在这里找不到函数体的帧，照 AST 解释器的方式抛 Return，见 visitReturnStmt
+  void execute(Stmt stmt, Environment environment) {
+    int outer = base;
+    int valueBase = sp;
+    int callBase = calls;
+    base = top;
+    try {
+      this.environment = environment;
+      execute(stmt);
+      loop();
+    } finally {
+      release(outer, valueBase, callBase);
+    }
+  }
+
+  private void loop() {
+    while (top > base) {
+      frame = top - 1;
+      environment = environments[frame];
+      Object node = nodes[frame];
+      if (node instanceof Expr) {
+        ((Expr)node).accept(this);
+      } else {
+        ((Stmt)node).accept(this);
+      }
+    }
+  }
+
+  private void release(int outer, int valueBase, int callBase) {
+    // 运行时错误直接把这次的帧都扔掉
+    top = base;
+    sp = valueBase;
+    calls = callBase;
+    base = outer;
+    if (top == 0) {
+      Arrays.fill(nodes, 0, used, null);
+      Arrays.fill(environments, 0, used, null);
+      Arrays.fill(values, null);
+      used = 0;
+    }
+  }
+
+  private void enter(LoxFunction function, List<Object> arguments, Token paren) {
+    if (top * FRAME_BYTES + (calls + 1) * AllocationProfiler.ENVIRONMENT_BYTES > budget) {
+      throw new RuntimeError(paren, "Stack overflow.");
+    }
+    calls++;
+    Stmt.Function declaration = function.declaration;
+    Environment environment = interpreter.newEnvironment(function.closure);
+    for (int i = 0; i < declaration.params.size(); i++) {
+      environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+    }
+    push(declaration, environment);
+  }
+
+  private void push(Object node, Environment environment) {
+    if (top == nodes.length) {
+      nodes = Arrays.copyOf(nodes, top * 2);
+      steps = Arrays.copyOf(steps, top * 2);
+      environments = Arrays.copyOf(environments, top * 2);
+    }
+    nodes[top] = node;
+    steps[top] = 0;
+    environments[top] = environment;
+    top++;
+    if (top > used) used = top;
+  }
+
+  private void pushValue(Object value) {
+    if (sp == values.length) values = Arrays.copyOf(values, sp * 2);
+    values[sp++] = value;
+  }
+
+  private Object popValue() {
+    return values[--sp];
+  }
+
+  // 当前帧下一次从哪一步接着执行
+  private void next(int step) {
+    steps[frame] = step;
+  }
+
+  // 当前帧执行完了。帧总是在栈顶时才被执行，所以就是弹出栈顶
+  private void done() {
+    top = frame;
+  }
+
+  // 字面量和变量读取直接求值，不压帧
+  private void evaluate(Expr expr) {
+    if (expr instanceof Expr.Literal) {
+      pushValue(((Expr.Literal)expr).value);
+    } else if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)expr;
+      pushValue(lookUp(variable.name, variable.depth));
+    } else {
+      push(expr, environment);
+    }
+  }
+
+  // 函数声明直接执行；块和 for 循环执行前先建好自己的一层环境
+  private void execute(Stmt stmt) {
+    if (stmt instanceof Stmt.Function) {
+      Stmt.Function function = (Stmt.Function)stmt;
+      environment.define(function.name.lexeme, new LoxFunction(function, environment));
+    } else if (stmt instanceof Stmt.Block || stmt instanceof Stmt.For) {
+      push(stmt, interpreter.newEnvironment(environment));
+    } else {
+      push(stmt, environment);
+    }
+  }
+
+  private Object lookUp(Token name, int distance) {
+    if (distance >= 0) return environment.getAt(distance, name.lexeme);
+    return interpreter.globals.get(name);
+  }
+
+  private void assign(Token name, int distance, Object value) {
+    if (distance >= 0) {
+      environment.assignAt(distance, name, value);
+    } else {
+      interpreter.globals.assign(name, value);
+    }
+  }
+
+  @Override
+  public Void visitArgumentExpr(Expr.Argument expr) {
+    // 只出现在内联的副本里，这里总是真的调用
+    throw new IllegalStateException("Inlined body in heap stack.");
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    if (steps[frame] == 0) {
+      next(1);
+      evaluate(expr.value);
+      return null;
+    }
+    done();
+    assign(expr.name, expr.depth, values[sp - 1]);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    switch (steps[frame]) {
+      case 0:
+        next(1);
+        if (expr.chain) {
+          spine(expr.left);
+        } else {
+          evaluate(expr.left);
+        }
+        return null;
+      case 1:
+        next(2);
+        evaluate(expr.right);
+        return null;
+      default:
+        done();
+        Object right = popValue();
+        Object left = popValue();
+        pushValue(interpreter.binary(expr, left, right));
+        return null;
+    }
+  }
+
+  // 左边的长链（Resolver 标出来的 chain）：用一个循环把左边各层的帧一次压上，都从第 1 步开始，
+  // 然后求最左边的操作数，不用每层各走一遍第 0 步
+  private void spine(Expr left) {
+    while (left instanceof Expr.Binary || left instanceof Expr.Logical) {
+      push(left, environment);
+      steps[top - 1] = 1;
+      left = left instanceof Expr.Binary ? ((Expr.Binary)left).left : ((Expr.Logical)left).left;
+    }
+    evaluate(left);
+  }
+
+  // 第 0 步求被调用者，第 1..n 步依次求参数，最后调用
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    int step = steps[frame];
+    if (step == 0) {
+      next(1);
+      evaluate(expr.callee);
+      return null;
+    }
+    int count = expr.arguments.size();
+    if (step <= count) {
+      next(step + 1);
+      evaluate(expr.arguments.get(step - 1));
+      return null;
+    }
+    done();
+    List<Object> arguments = new ArrayList<>(count);
+    for (int i = sp - count; i < sp; i++) arguments.add(values[i]);
+    sp -= count;
+    Object callee = popValue();
+    interpreter.calls++;
+    LoxCallable function = interpreter.callable(callee, arguments, expr.paren);
+    if (function instanceof LoxFunction) {
+      enter((LoxFunction)function, arguments, expr.paren);
+    } else {
+      pushValue(interpreter.invoke(function, arguments, expr.paren));
+    }
+    return null;
+  }
+
+  // 第 0..n-1 步依次求元素
+  @Override
+  public Void visitArrayExpr(Expr.Array expr) {
+    int step = steps[frame];
+    int count = expr.elements.size();
+    if (step < count) {
+      next(step + 1);
+      evaluate(expr.elements.get(step));
+      return null;
+    }
+    done();
+    Object[] elements = new Object[count];
+    System.arraycopy(values, sp - count, elements, 0, count);
+    sp -= count;
+    pushValue(new LoxArray(elements));
+    return null;
+  }
+
+  @Override
+  public Void visitIndexExpr(Expr.Index expr) {
+    switch (steps[frame]) {
+      case 0:
+        next(1);
+        evaluate(expr.object);
+        return null;
+      case 1:
+        next(2);
+        evaluate(expr.index);
+        return null;
+      default:
+        done();
+        Object index = popValue();
+        Object object = popValue();
+        pushValue(Interpreter.get(object, index, expr.bracket));
+        return null;
+    }
+  }
+
+  @Override
+  public Void visitSetIndexExpr(Expr.SetIndex expr) {
+    switch (steps[frame]) {
+      case 0:
+        next(1);
+        evaluate(expr.object);
+        return null;
+      case 1:
+        next(2);
+        evaluate(expr.index);
+        return null;
+      case 2:
+        next(3);
+        evaluate(expr.value);
+        return null;
+      default:
+        done();
+        Object value = popValue();
+        Object index = popValue();
+        Object object = popValue();
+        Interpreter.set(object, index, value, expr.bracket);
+        pushValue(value);
+        return null;
+    }
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    done();
+    evaluate(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    done();
+    pushValue(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    if (steps[frame] == 0) {
+      next(1);
+      if (expr.chain) {
+        spine(expr.left);
+      } else {
+        evaluate(expr.left);
+      }
+      return null;
+    }
+    done();
+    Object left = values[sp - 1];
+    // 短路时左边的值就是结果，留在值栈上
+    if (expr.operator.type == TokenType.OR ? Interpreter.isTruthy(left) : !Interpreter.isTruthy(left)) {
+      return null;
+    }
+    sp--;
+    evaluate(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitTempExpr(Expr.Temp expr) {
+    if (steps[frame] == 0) {
+      Object value = lookUp(expr.name, expr.depth);
+      if (value != null) {
+        done();
+        pushValue(value);
+        return null;
+      }
+      next(1);
+      evaluate(expr.value);
+      return null;
+    }
+    done();
+    assign(expr.name, expr.depth, values[sp - 1]);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    if (steps[frame] == 0) {
+      next(1);
+      evaluate(expr.right);
+      return null;
+    }
+    done();
+    pushValue(interpreter.unary(expr, popValue()));
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    done();
+    pushValue(lookUp(expr.name, expr.depth));
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    int step = steps[frame];
+    if (step < stmt.statements.size()) {
+      next(step + 1);
+      execute(stmt.statements.get(step));
+    } else {
+      done();
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    if (steps[frame] == 0) {
+      next(1);
+      evaluate(stmt.expression);
+    } else {
+      done();
+      sp--;
+    }
+    return null;
+  }
+
+  // 0：初始化式；1：条件；2：判断条件，执行循环体；3：增量；4：丢掉增量的值
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    switch (steps[frame]) {
+      case 0:
+        next(1);
+        if (stmt.initializer != null) execute(stmt.initializer);
+        return null;
+      case 1:
+        next(2);
+        evaluate(stmt.condition);
+        return null;
+      case 2:
+        if (!Interpreter.isTruthy(popValue())) {
+          done();
+          return null;
+        }
+        next(3);
+        execute(stmt.body);
+        return null;
+      case 3:
+        if (stmt.increment == null) {
+          next(1);
+          return null;
+        }
+        next(4);
+        evaluate(stmt.increment);
+        return null;
+      default:
+        sp--;
+        next(1);
+        return null;
+    }
+  }
+
+  // 帧里的 Stmt.Function 是一次调用的函数体（声明语句在 execute 里直接执行了），
+  // 执行到末尾没有遇到 return 时返回 nil
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    int step = steps[frame];
+    if (step < stmt.body.size()) {
+      next(step + 1);
+      execute(stmt.body.get(step));
+      return null;
+    }
+    done();
+    calls--;
+    pushValue(null);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    if (steps[frame] == 0) {
+      next(1);
+      evaluate(stmt.condition);
+      return null;
+    }
+    done();
+    Stmt branch = Interpreter.isTruthy(popValue()) ? stmt.thenBranch : stmt.elseBranch;
+    if (branch != null) execute(branch);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    if (steps[frame] == 0) {
+      next(1);
+      evaluate(stmt.expression);
+    } else {
+      done();
+      interpreter.print(popValue());
+    }
+    return null;
+  }
+
+  // 返回时一直弹到函数体的帧。语句不在表达式里面，这时值栈上只有返回值。
+  // 函数体在 AST 解释器里执行、只有这条语句交给了这里时，弹到头也没有函数体的帧
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (steps[frame] == 0 && stmt.value != null) {
+      next(1);
+      evaluate(stmt.value);
+      return null;
+    }
+    Object value = stmt.value == null ? null : popValue();
+    while (top > base && !(nodes[top - 1] instanceof Stmt.Function)) top--;
+    if (top == base) throw new Return(value);
+    top--;
+    calls--;
+    pushValue(value);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (steps[frame] == 0 && stmt.initializer != null) {
+      next(1);
+      evaluate(stmt.initializer);
+      return null;
+    }
+    done();
+    environment.define(stmt.name.lexeme, stmt.initializer == null ? null : popValue());
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    if (steps[frame] == 0) {
+      next(1);
+      evaluate(stmt.condition);
+      return null;
+    }
+    if (!Interpreter.isTruthy(popValue())) {
+      done();
+      return null;
+    }
+    next(0);
+    execute(stmt.body);
+    return null;
+  }
+}
@@ -0,0 +1,979 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+// 变量解析之后的循环不变量外提（LICM）和公共子表达式消除（CSE）。只处理纯的表达式：
+// 二元、一元运算，里面只有括号、字面量、变量读取和 and/or，没有调用和赋值。
+//
+// 外提：循环（条件、循环体和增量，不含嵌套函数）里的表达式用到的变量都在循环外面声明、
+// 循环里没有给它们赋值时，每次迭代的值都一样，换成循环前面声明的临时变量。循环里有调用时，
+// 被调用的函数也可能改变量：全局变量一律不算（别的脚本、REPL 前面定义的函数都能改它），
+// 局部变量要求没有被嵌套函数赋过值。
+// 消除：一条语句（表达式语句、print、return、var）里重复出现的同一个表达式（变量指向同一个绑定），
+// 语句里没有给这些变量赋值时，第一处求值后赋给临时变量，后面几处直接读它。
+// 只处理至少 SHARED 个节点的表达式，再小的不值得。
+//
+// 外提的临时变量不是提前求值的：Expr.Temp 第一次求值时才计算原来的表达式并存起来，之后直接读。
+// 所以会报错的表达式（比如操作数不是数字）还是在原来的位置、原来那次迭代报错，行号也一样；
+// 循环一次都没跑或者走不到那个分支时根本不求值。临时变量是 nil 表示还没算过，
+// 提出来的表达式都是二元或一元运算，结果不会是 nil。公共子表达式的第一处就在原来的位置求值，
+// 可能被 and / or 短路跳过的不处理。
+//
+// 临时变量的声明插在循环（语句在循环里时是所在函数里最外层的循环）或语句前面的同一个块里，
+// 进入循环时声明一次，迭代里不用再为它分配环境；所在的位置不是局部的语句列表时
+// （顶层、if / while 的分支直接是一条语句）包一层块。改写了作用域，调用方要重新做一次变量解析。
+//
+// 配置通过系统属性：
+//   lox.hoist.enabled  默认 true
+final class Hoister {
+  static final boolean enabled =
+      Boolean.parseBoolean(System.getProperty("lox.hoist.enabled", "true"));
+  // 语句里的公共子表达式最少的节点数（不算括号）
+  private static final int SHARED = 5;
+
+  // 一个名字的绑定
+  private static final class Binding {
+    final int id;
+    final boolean global;
+    // 声明它的函数，顶层为 null
+    final Stmt.Function function;
+    // 声明时外面的循环，每次迭代都是新的绑定
+    final List<Stmt> loops;
+    // 在声明它的函数之外（嵌套函数里）被赋过值
+    boolean captured = false;
+
+    Binding(int id, boolean global, Stmt.Function function, List<Stmt> loops) {
+      this.id = id;
+      this.global = global;
+      this.function = function;
+      this.loops = loops;
+    }
+  }
+
+  // 一个循环（包括里面嵌套的函数）里赋过值的绑定，以及有没有调用
+  private static final class Loop {
+    final Set<Binding> assigned = new HashSet<>();
+    boolean calls = false;
+  }
+
+  // Variable 和 Assign 节点指向的绑定
+  private final Map<Expr, Binding> bindings = new IdentityHashMap<>();
+  private final Map<Stmt, Loop> loops = new IdentityHashMap<>();
+  // 外提到循环前面的表达式，换成 Expr.Temp
+  private final Map<Expr, Token> temps = new IdentityHashMap<>();
+  // 语句里的公共子表达式：stores 里的第一处换成给临时变量赋值，其余换成读临时变量
+  private final Map<Expr, Token> shared = new IdentityHashMap<>();
+  private final Set<Expr> stores = Collections.newSetFromMap(new IdentityHashMap<>());
+  // 插在语句前面的临时变量声明
+  private final Map<Stmt, List<Stmt>> declarations = new IdentityHashMap<>();
+  private int count = 0;
+
+  private Hoister() {}
+
+  // 在已经解析好的语法树上改写，返回有没有改动（有的话要重新解析）
+  static boolean hoist(List<Stmt> statements) {
+    if (!enabled) return false;
+    Hoister hoister = new Hoister();
+    new Scan(hoister).statements(statements);
+    Plan plan = new Plan(hoister);
+    for (Stmt statement : statements) {
+      // 顶层的 var 是全局变量，前面插不了局部的临时变量；它也不会在循环里
+      if (!(statement instanceof Stmt.Var)) statement.accept(plan);
+    }
+    if (hoister.temps.isEmpty() && hoister.shared.isEmpty()) return false;
+    new Apply(hoister).list(statements, false);
+    return true;
+  }
+
+  private Token temp(Expr expr, List<Stmt> declarations) {
+    Token operator = expr instanceof Expr.Binary
+        ? ((Expr.Binary)expr).operator : ((Expr.Unary)expr).operator;
+    // 不是合法的标识符，不会和脚本里的变量重名
+    Token name = new Token(TokenType.IDENTIFIER, "$" + count++, null, operator.line);
+    declarations.add(new Stmt.Var(name, null));
+    return name;
+  }
+
+  private static boolean candidate(Expr expr) {
+    if (expr instanceof Expr.Binary) return true;
+    // -1 这样的常量不用提
+    return expr instanceof Expr.Unary && !(((Expr.Unary)expr).right instanceof Expr.Literal);
+  }
+
+  private boolean invariant(Binding binding, Stmt loop) {
+    Loop info = loops.get(loop);
+    return binding != null && !binding.loops.contains(loop) && !info.assigned.contains(binding) &&
+        (!info.calls || (!binding.global && !binding.captured));
+  }
+
+  // ---- 遍历语句和表达式，子类覆盖需要的节点 ----
+
+  private abstract static class Walk implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    void statements(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        statement.accept(this);
+      }
+    }
+
+    void expr(Expr expr) {
+      if (expr != null) expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      statements(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+      if (stmt.initializer != null) stmt.initializer.accept(this);
+      expr(stmt.condition);
+      stmt.body.accept(this);
+      expr(stmt.increment);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      statements(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      expr(stmt.condition);
+      stmt.thenBranch.accept(this);
+      if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      expr(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      expr(stmt.initializer);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      expr(stmt.condition);
+      stmt.body.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      expr(expr.callee);
+      for (Expr argument : expr.arguments) expr(argument);
+      return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+      for (Expr element : expr.elements) expr(element);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+      expr(expr.object);
+      expr(expr.index);
+      return null;
+    }
+
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr) {
+      expr(expr.object);
+      expr(expr.index);
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitTempExpr(Expr.Temp expr) {
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      return null;
+    }
+  }
+
+  // ---- 第一遍：按 Resolver 的作用域找出每个变量引用的绑定，以及每个循环里的赋值和调用 ----
+
+  private static final class Scan extends Walk {
+    private final Hoister hoister;
+    private final List<Map<String, Binding>> scopes = new ArrayList<>();
+    private final Map<String, Binding> globals = new HashMap<>();
+    private final List<Stmt> loops = new ArrayList<>();
+    private Stmt.Function function = null;
+
+    Scan(Hoister hoister) {
+      this.hoister = hoister;
+    }
+
+    private void declare(Token name) {
+      if (scopes.isEmpty()) {
+        global(name.lexeme);
+        return;
+      }
+      Binding binding = new Binding(hoister.count++, false, function, new ArrayList<>(loops));
+      scopes.get(scopes.size() - 1).put(name.lexeme, binding);
+    }
+
+    private Binding global(String name) {
+      return globals.computeIfAbsent(name,
+          key -> new Binding(hoister.count++, true, null, new ArrayList<>()));
+    }
+
+    private Binding lookup(Token name, int depth) {
+      if (depth < 0) return global(name.lexeme);
+      if (depth >= scopes.size()) return null;
+      return scopes.get(scopes.size() - 1 - depth).get(name.lexeme);
+    }
+
+    private void loop(Stmt loop) {
+      hoister.loops.put(loop, new Loop());
+      loops.add(loop);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      scopes.add(new HashMap<>());
+      statements(stmt.statements);
+      scopes.remove(scopes.size() - 1);
+      return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+      scopes.add(new HashMap<>());
+      // 初始化式只执行一次，在循环外面
+      if (stmt.initializer != null) stmt.initializer.accept(this);
+      loop(stmt);
+      expr(stmt.condition);
+      stmt.body.accept(this);
+      expr(stmt.increment);
+      loops.remove(loops.size() - 1);
+      scopes.remove(scopes.size() - 1);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      declare(stmt.name);
+      Stmt.Function enclosing = function;
+      function = stmt;
+      scopes.add(new HashMap<>());
+      for (Token param : stmt.params) {
+        declare(param);
+      }
+      statements(stmt.body);
+      scopes.remove(scopes.size() - 1);
+      function = enclosing;
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      expr(stmt.initializer);
+      declare(stmt.name);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      loop(stmt);
+      expr(stmt.condition);
+      stmt.body.accept(this);
+      loops.remove(loops.size() - 1);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      expr(expr.value);
+      Binding binding = lookup(expr.name, expr.depth);
+      if (binding == null) return null;
+      hoister.bindings.put(expr, binding);
+      if (binding.function != function) binding.captured = true;
+      for (Stmt loop : loops) {
+        hoister.loops.get(loop).assigned.add(binding);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      for (Stmt loop : loops) {
+        hoister.loops.get(loop).calls = true;
+      }
+      return super.visitCallExpr(expr);
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      Binding binding = lookup(expr.name, expr.depth);
+      if (binding != null) hoister.bindings.put(expr, binding);
+      return null;
+    }
+  }
+
+  // ---- 纯表达式的结构：变量用绑定表示，相同的表达式得到相同的字符串；不纯或者变量不满足条件时为 null ----
+
+  private static final class Key implements Expr.Visitor<String> {
+    private final Hoister hoister;
+    private final Predicate<Binding> stable;
+    // 节点数，不算括号
+    int size = 0;
+
+    Key(Hoister hoister, Predicate<Binding> stable) {
+      this.hoister = hoister;
+      this.stable = stable;
+    }
+
+    String of(Expr expr) {
+      size = 0;
+      return key(expr);
+    }
+
+    private String key(Expr expr) {
+      return expr.accept(this);
+    }
+
+    private String pair(String operator, Expr left, Expr right) {
+      size++;
+      String a = key(left);
+      if (a == null) return null;
+      String b = key(right);
+      if (b == null) return null;
+      return "(" + operator + " " + a + " " + b + ")";
+    }
+
+    @Override
+    public String visitArgumentExpr(Expr.Argument expr) {
+      return null;
+    }
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+      return null;
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+      return pair(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+      return null;
+    }
+
+    // 数组是可变的，两次读同一个下标也可能不一样
+    @Override
+    public String visitArrayExpr(Expr.Array expr) {
+      return null;
+    }
+
+    @Override
+    public String visitIndexExpr(Expr.Index expr) {
+      return null;
+    }
+
+    @Override
+    public String visitSetIndexExpr(Expr.SetIndex expr) {
+      return null;
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+      return key(expr.expression);
+    }
+
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+      size++;
+      Object value = expr.value;
+      if (value == null) return "nil";
+      if (value instanceof LoxString) {
+        String text = value.toString();
+        return "s" + text.length() + ":" + text;
+      }
+      return value.toString();
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+      return pair(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitTempExpr(Expr.Temp expr) {
+      return null;
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+      size++;
+      String right = key(expr.right);
+      return right == null ? null : "(" + expr.operator.lexeme + " " + right + ")";
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+      size++;
+      Binding binding = hoister.bindings.get(expr);
+      return binding != null && stable.test(binding) ? "v" + binding.id : null;
+    }
+  }
+
+  // ---- 第二遍：决定哪些表达式换成临时变量 ----
+
+  private static final class Plan extends Walk {
+    private final Hoister hoister;
+    // 当前函数里最外层的循环，语句的公共子表达式的临时变量声明在它前面
+    private Stmt outer = null;
+
+    Plan(Hoister hoister) {
+      this.hoister = hoister;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+      // 先提到最外层的循环，里面的循环再处理剩下的
+      Hoist hoist = new Hoist(hoister, stmt);
+      hoist.expr(stmt.condition);
+      stmt.body.accept(hoist);
+      hoist.expr(stmt.increment);
+      body(stmt, stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      Hoist hoist = new Hoist(hoister, stmt);
+      hoist.expr(stmt.condition);
+      stmt.body.accept(hoist);
+      body(stmt, stmt.body);
+      return null;
+    }
+
+    private void body(Stmt loop, Stmt body) {
+      Stmt enclosing = outer;
+      if (outer == null) outer = loop;
+      body.accept(this);
+      outer = enclosing;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      Stmt enclosing = outer;
+      outer = null;
+      statements(stmt.body);
+      outer = enclosing;
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      share(stmt, stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      share(stmt, stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      if (stmt.value != null) share(stmt, stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      if (stmt.initializer != null) share(stmt, stmt.initializer);
+      return null;
+    }
+
+    private void share(Stmt stmt, Expr expr) {
+      Share share = new Share(hoister);
+      share.expr(expr);
+      share.plan(outer != null ? outer : stmt);
+    }
+  }
+
+  // 把一个循环里最大的不变表达式换成临时变量，相同的表达式共用一个
+  private static final class Hoist extends Walk {
+    private final Hoister hoister;
+    private final Stmt loop;
+    private final Key key;
+    private final Map<String, Token> names = new HashMap<>();
+
+    Hoist(Hoister hoister, Stmt loop) {
+      this.hoister = hoister;
+      this.loop = loop;
+      this.key = new Key(hoister, binding -> hoister.invariant(binding, loop));
+    }
+
+    @Override
+    void expr(Expr expr) {
+      if (expr == null) return;
+      // 已经提到外层循环了
+      if (hoister.temps.containsKey(expr)) return;
+      if (candidate(expr)) {
+        String key = this.key.of(expr);
+        if (key != null) {
+          Token name = names.get(key);
+          if (name == null) {
+            name = hoister.temp(expr, hoister.declarations.computeIfAbsent(loop, k -> new ArrayList<>()));
+            names.put(key, name);
+          }
+          hoister.temps.put(expr, name);
+          return;
+        }
+      }
+      expr.accept(this);
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      // 嵌套函数的函数体不是每次迭代都执行，它自己的循环另外处理
+      return null;
+    }
+  }
+
+  // 一条语句里的公共子表达式
+  private static final class Share extends Walk {
+    // 一处出现；parent 是包着它的最近的一处候选，conditional 表示在 and / or 的右边
+    private static final class Occurrence {
+      final Expr expr;
+      final String key;
+      final int size;
+      final Occurrence parent;
+      final boolean conditional;
+
+      Occurrence(Expr expr, String key, int size, Occurrence parent, boolean conditional) {
+        this.expr = expr;
+        this.key = key;
+        this.size = size;
+        this.parent = parent;
+        this.conditional = conditional;
+      }
+    }
+
+    private final Hoister hoister;
+    private final Set<Binding> assigned = new HashSet<>();
+    private boolean calls = false;
+    private final List<Occurrence> occurrences = new ArrayList<>();
+    private Occurrence parent = null;
+    private Key key;
+    private int conditional = 0;
+    // 访问一个节点时对它的每个子表达式调用 collect
+    private final Walk children = new Walk() {
+      @Override
+      void expr(Expr child) {
+        if (child != null) collect(child);
+      }
+
+      @Override
+      public Void visitLogicalExpr(Expr.Logical logical) {
+        expr(logical.left);
+        conditional++;
+        expr(logical.right);
+        conditional--;
+        return null;
+      }
+    };
+
+    Share(Hoister hoister) {
+      this.hoister = hoister;
+    }
+
+    private boolean stable(Binding binding) {
+      return !assigned.contains(binding) && (!calls || (!binding.global && !binding.captured));
+    }
+
+    // 先看整条语句里的赋值和调用，再找候选
+    @Override
+    void expr(Expr expr) {
+      new Walk() {
+        @Override
+        public Void visitAssignExpr(Expr.Assign assign) {
+          Binding binding = hoister.bindings.get(assign);
+          if (binding != null) assigned.add(binding);
+          return super.visitAssignExpr(assign);
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call call) {
+          calls = true;
+          return super.visitCallExpr(call);
+        }
+      }.expr(expr);
+      key = new Key(hoister, this::stable);
+      collect(expr);
+    }
+
+    private void collect(Expr expr) {
+      // 外提过的表达式在循环里只算一次
+      if (hoister.temps.containsKey(expr)) return;
+      Occurrence enclosing = parent;
+      if (candidate(expr)) {
+        String text = key.of(expr);
+        if (text != null && key.size >= SHARED) {
+          parent = new Occurrence(expr, text, key.size, enclosing, conditional > 0);
+          occurrences.add(parent);
+        }
+      }
+      expr.accept(children);
+      parent = enclosing;
+    }
+
+    // 从大到小挑：没有被已经挑中的更大表达式包着的出现至少两处。
+    // 第一处（之后的出现都在它后面求值）赋值，其余的读临时变量；第一处可能被短路跳过时不处理。
+    // 临时变量声明在 anchor 前面，也就是最外层的循环前面，每次迭代都会先被第一处覆盖
+    void plan(Stmt anchor) {
+      Map<String, List<Occurrence>> groups = new LinkedHashMap<>();
+      for (Occurrence occurrence : occurrences) {
+        groups.computeIfAbsent(occurrence.key, k -> new ArrayList<>()).add(occurrence);
+      }
+      List<List<Occurrence>> order = new ArrayList<>(groups.values());
+      order.sort((a, b) -> b.get(0).size - a.get(0).size);
+      // 挑中的表达式的第一处
+      Map<String, Occurrence> stores = new HashMap<>();
+      for (List<Occurrence> group : order) {
+        int free = 0;
+        Occurrence first = null;
+        for (Occurrence occurrence : group) {
+          if (!covered(occurrence, stores)) free++;
+          if (first == null && !dead(occurrence, stores)) first = occurrence;
+        }
+        if (free < 2 || first == null || first.conditional) continue;
+        stores.put(first.key, first);
+        Token name = hoister.temp(first.expr,
+            hoister.declarations.computeIfAbsent(anchor, k -> new ArrayList<>()));
+        for (Occurrence occurrence : group) {
+          if (dead(occurrence, stores)) continue;
+          hoister.shared.put(occurrence.expr, name);
+          if (occurrence == first) hoister.stores.add(occurrence.expr);
+        }
+      }
+    }
+
+    // 被挑中的更大的表达式包着
+    private static boolean covered(Occurrence occurrence, Map<String, Occurrence> stores) {
+      for (Occurrence outer = occurrence.parent; outer != null; outer = outer.parent) {
+        if (stores.containsKey(outer.key)) return true;
+      }
+      return false;
+    }
+
+    // 在挑中的更大的表达式的其它出现里面，那里换成读临时变量，不再求值
+    private static boolean dead(Occurrence occurrence, Map<String, Occurrence> stores) {
+      for (Occurrence outer = occurrence.parent; outer != null; outer = outer.parent) {
+        Occurrence first = stores.get(outer.key);
+        if (first != null && first != outer) return true;
+      }
+      return false;
+    }
+  }
+
+  // ---- 第三遍：按计划重建语法树。函数声明和块保持原来的对象（内联的调用点记着函数声明），只改语句列表 ----
+
+  private static final class Apply implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private final Hoister hoister;
+
+    Apply(Hoister hoister) {
+      this.hoister = hoister;
+    }
+
+    // local 表示列表在局部作用域里（块或函数体），临时变量直接声明在语句前面
+    void list(List<Stmt> statements, boolean local) {
+      List<Stmt> result = new ArrayList<>(statements.size());
+      for (Stmt statement : statements) {
+        List<Stmt> declarations = hoister.declarations.get(statement);
+        Stmt rewritten = statement.accept(this);
+        if (declarations == null) {
+          result.add(rewritten);
+        } else if (local) {
+          result.addAll(declarations);
+          result.add(rewritten);
+        } else {
+          result.add(block(declarations, rewritten));
+        }
+      }
+      statements.clear();
+      statements.addAll(result);
+    }
+
+    private Stmt single(Stmt stmt) {
+      if (stmt == null) return null;
+      List<Stmt> declarations = hoister.declarations.get(stmt);
+      Stmt rewritten = stmt.accept(this);
+      return declarations == null ? rewritten : block(declarations, rewritten);
+    }
+
+    private static Stmt block(List<Stmt> declarations, Stmt stmt) {
+      List<Stmt> statements = new ArrayList<>(declarations);
+      statements.add(stmt);
+      return new Stmt.Block(statements);
+    }
+
+    private Expr expr(Expr expr) {
+      if (expr == null) return null;
+      Token name = hoister.temps.get(expr);
+      // 里面可能还有别的临时变量（内层循环提出来的包着外层的）
+      if (name != null) return new Expr.Temp(name, expr.accept(this));
+      name = hoister.shared.get(expr);
+      if (name == null) return expr.accept(this);
+      if (hoister.stores.contains(expr)) return new Expr.Assign(name, expr.accept(this));
+      return new Expr.Variable(name);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+      list(stmt.statements, true);
+      return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+      Expr expression = expr(stmt.expression);
+      return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+      Expr condition = expr(stmt.condition);
+      Stmt body = single(stmt.body);
+      Expr increment = expr(stmt.increment);
+      if (condition == stmt.condition && body == stmt.body && increment == stmt.increment) return stmt;
+      return new Stmt.For(stmt.initializer, condition, increment, body);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+      list(stmt.body, true);
+      return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+      Expr condition = expr(stmt.condition);
+      Stmt thenBranch = single(stmt.thenBranch);
+      Stmt elseBranch = single(stmt.elseBranch);
+      if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+          elseBranch == stmt.elseBranch) {
+        return stmt;
+      }
+      return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+      Expr expression = expr(stmt.expression);
+      return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+      Expr value = expr(stmt.value);
+      return value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+      Expr initializer = expr(stmt.initializer);
+      return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+      Expr condition = expr(stmt.condition);
+      Stmt body = single(stmt.body);
+      if (condition == stmt.condition && body == stmt.body) return stmt;
+      return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Expr visitArgumentExpr(Expr.Argument expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+      Expr value = expr(expr.value);
+      if (value == expr.value) return expr;
+      Expr.Assign assign = new Expr.Assign(expr.name, value);
+      assign.depth = expr.depth;
+      return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+      Expr left = expr(expr.left);
+      Expr right = expr(expr.right);
+      if (left == expr.left && right == expr.right) return expr;
+      return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+      Expr callee = expr(expr.callee);
+      boolean changed = callee != expr.callee;
+      List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+      for (Expr argument : expr.arguments) {
+        Expr rewritten = expr(argument);
+        changed |= rewritten != argument;
+        arguments.add(rewritten);
+      }
+      if (!changed) return expr;
+      // 内联的函数体副本和反馈跟着调用点走
+      Expr.Call call = new Expr.Call(callee, expr.paren, arguments);
+      call.target = expr.target;
+      call.polymorphic = expr.polymorphic;
+      call.inlined = expr.inlined;
+      call.inlineBody = expr.inlineBody;
+      return call;
+    }
+
+    @Override
+    public Expr visitArrayExpr(Expr.Array expr) {
+      boolean changed = false;
+      List<Expr> elements = new ArrayList<>(expr.elements.size());
+      for (Expr element : expr.elements) {
+        Expr rewritten = expr(element);
+        changed |= rewritten != element;
+        elements.add(rewritten);
+      }
+      return changed ? new Expr.Array(expr.bracket, elements) : expr;
+    }
+
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+      Expr object = expr(expr.object);
+      Expr index = expr(expr.index);
+      if (object == expr.object && index == expr.index) return expr;
+      return new Expr.Index(object, expr.bracket, index);
+    }
+
+    @Override
+    public Expr visitSetIndexExpr(Expr.SetIndex expr) {
+      Expr object = expr(expr.object);
+      Expr index = expr(expr.index);
+      Expr value = expr(expr.value);
+      if (object == expr.object && index == expr.index && value == expr.value) return expr;
+      return new Expr.SetIndex(object, expr.bracket, index, value);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+      Expr expression = expr(expr.expression);
+      return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+      Expr left = expr(expr.left);
+      Expr right = expr(expr.right);
+      if (left == expr.left && right == expr.right) return expr;
+      return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitTempExpr(Expr.Temp expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+      Expr right = expr(expr.right);
+      return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+      return expr;
+    }
+  }
+}
@@ -0,0 +1,487 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 变量解析之后的内联：把对小函数的调用换成函数体的副本，省掉参数列表、Environment、executeBlock 和 Return 异常。
+//
+// 能内联的函数：函数体为空，或者只有一条 return；返回的表达式不超过 budget 个节点，
+// 只用到自己的参数和全局变量（不依赖闭包），不调用自己，也不给变量赋值；
+// 函数名的绑定在整段程序里只声明一次、从不被赋值。
+// 副本挂在调用点的 Expr.Call.inlineBody 上，参数引用改写成按下标取值的 Expr.Argument，
+// 全局变量的引用保持深度 -1，所以调用点周围的同名局部变量不会干扰它。
+//
+// 执行时仍然先求值被调用者，确认它就是 Expr.Call.inlined 这个声明的 LoxFunction（REPL、嵌入 API 或者后面的代码
+// 都可能把全局变量换掉），再按顺序求值参数、对副本求值；否则照常调用。副本里的节点带着原来的 Token，
+// 所以运行时错误的行号和真的调用一样。
+//
+// 配置通过系统属性：
+//   lox.inline.budget  默认 16，返回表达式最多的节点数，0 表示不内联
+final class Inliner {
+  static final int budget = Integer.getInteger("lox.inline.budget", 16);
+  // bodies 里表示“不能内联”
+  private static final Expr NOT_INLINEABLE = new Expr.Literal(null);
+
+  // 一个名字的绑定：声明它的语句（函数参数为 null）以及有没有被赋值或重复声明
+  private static final class Binding {
+    Stmt declaration;
+    boolean assigned = false;
+  }
+
+  private static final class Site {
+    final Expr.Call call;
+    final Binding binding;
+
+    Site(Expr.Call call, Binding binding) {
+      this.call = call;
+      this.binding = binding;
+    }
+  }
+
+  // 和 Resolver 的作用域一一对应
+  private final List<Map<String, Binding>> scopes = new ArrayList<>();
+  private final Map<String, Binding> globals = new HashMap<>();
+  private final List<Site> sites = new ArrayList<>();
+  // 每个函数声明能不能内联，能的话是它的返回表达式（没有返回值时是 nil 字面量）
+  private final Map<Stmt.Function, Expr> bodies = new IdentityHashMap<>();
+  private final List<String> report = new ArrayList<>();
+
+  private Inliner() {}
+
+  // 在已经解析好的语法树上内联，返回每个内联了的调用点的说明（给 --inline-report 用）
+  static List<String> inline(List<Stmt> statements) {
+    Inliner inliner = new Inliner();
+    if (budget <= 0) return inliner.report;
+    new Scan(inliner).statements(statements);
+    for (Site site : inliner.sites) {
+      inliner.inline(site);
+    }
+    return inliner.report;
+  }
+
+  private void inline(Site site) {
+    if (site.binding.assigned || !(site.binding.declaration instanceof Stmt.Function)) return;
+    Stmt.Function function = (Stmt.Function)site.binding.declaration;
+    if (function.params.size() != site.call.arguments.size()) return;
+    Expr body = bodies.computeIfAbsent(function, Inliner::inlineable);
+    if (body == NOT_INLINEABLE) return;
+    site.call.inlineBody = new Copy(function).copy(body);
+    site.call.inlined = function;
+    report.add("line " + site.call.paren.line + ": " + function.name.lexeme +
+        " (" + new Size().of(body) + " nodes)");
+  }
+
+  private static Expr inlineable(Stmt.Function function) {
+    if (function.body.isEmpty()) return new Expr.Literal(null);
+    if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) {
+      return NOT_INLINEABLE;
+    }
+    Expr value = ((Stmt.Return)function.body.get(0)).value;
+    if (value == null) return new Expr.Literal(null);
+    Size size = new Size();
+    size.function = function;
+    int nodes = size.of(value);
+    return size.ok && nodes <= budget ? value : NOT_INLINEABLE;
+  }
+
+  // ---- 第一遍：按 Resolver 的作用域找出每个名字的绑定和所有调用点 ----
+
+  private static final class Scan implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Inliner inliner;
+
+    Scan(Inliner inliner) {
+      this.inliner = inliner;
+    }
+
+    void statements(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        statement.accept(this);
+      }
+    }
+
+    private void expr(Expr expr) {
+      if (expr != null) expr.accept(this);
+    }
+
+    private void declare(Token name, Stmt declaration) {
+      List<Map<String, Binding>> scopes = inliner.scopes;
+      if (scopes.isEmpty()) {
+        Binding binding = inliner.globals.get(name.lexeme);
+        if (binding == null) {
+          binding = new Binding();
+          inliner.globals.put(name.lexeme, binding);
+        } else if (binding.declaration != null) {
+          // 全局变量可以重复声明，后一次会替换前一次
+          binding.assigned = true;
+        }
+        binding.declaration = declaration;
+        return;
+      }
+      Binding binding = new Binding();
+      binding.declaration = declaration;
+      scopes.get(scopes.size() - 1).put(name.lexeme, binding);
+    }
+
+    private Binding lookup(Token name, int depth) {
+      List<Map<String, Binding>> scopes = inliner.scopes;
+      if (depth < 0) {
+        return inliner.globals.computeIfAbsent(name.lexeme, key -> new Binding());
+      }
+      if (depth >= scopes.size()) return null;
+      return scopes.get(scopes.size() - 1 - depth).get(name.lexeme);
+    }
+
+    private void beginScope() {
+      inliner.scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+      inliner.scopes.remove(inliner.scopes.size() - 1);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      beginScope();
+      statements(stmt.statements);
+      endScope();
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+      beginScope();
+      if (stmt.initializer != null) stmt.initializer.accept(this);
+      expr(stmt.condition);
+      stmt.body.accept(this);
+      expr(stmt.increment);
+      endScope();
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      declare(stmt.name, stmt);
+      beginScope();
+      for (Token param : stmt.params) {
+        declare(param, null);
+      }
+      statements(stmt.body);
+      endScope();
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      expr(stmt.condition);
+      stmt.thenBranch.accept(this);
+      if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      expr(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      // 和 Resolver 一样，初始化式在声明之前解析
+      expr(stmt.initializer);
+      declare(stmt.name, stmt);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      expr(stmt.condition);
+      stmt.body.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      expr(expr.value);
+      Binding binding = lookup(expr.name, expr.depth);
+      if (binding != null) binding.assigned = true;
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      if (expr.callee instanceof Expr.Variable) {
+        Expr.Variable callee = (Expr.Variable)expr.callee;
+        Binding binding = lookup(callee.name, callee.depth);
+        if (binding != null) inliner.sites.add(new Site(expr, binding));
+      }
+      expr(expr.callee);
+      for (Expr argument : expr.arguments) expr(argument);
+      return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+      for (Expr element : expr.elements) expr(element);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+      expr(expr.object);
+      expr(expr.index);
+      return null;
+    }
+
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr) {
+      expr(expr.object);
+      expr(expr.index);
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitTempExpr(Expr.Temp expr) {
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      return null;
+    }
+  }
+
+  // ---- 返回表达式的节点数，顺便检查能不能内联 ----
+
+  private static final class Size implements Expr.Visitor<Integer> {
+    // 检查时是被内联的函数；只算节点数时为 null
+    Stmt.Function function = null;
+    boolean ok = true;
+
+    int of(Expr expr) {
+      return expr.accept(this);
+    }
+
+    @Override
+    public Integer visitArgumentExpr(Expr.Argument expr) {
+      return 1;
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+      ok = false;
+      return 1 + of(expr.value);
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+      return 1 + of(expr.left) + of(expr.right);
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+      // 直接递归
+      if (function != null && expr.callee instanceof Expr.Variable &&
+          ((Expr.Variable)expr.callee).name.lexeme.equals(function.name.lexeme)) {
+        ok = false;
+      }
+      int size = 1 + of(expr.callee);
+      for (Expr argument : expr.arguments) size += of(argument);
+      return size;
+    }
+
+    @Override
+    public Integer visitArrayExpr(Expr.Array expr) {
+      int size = 1;
+      for (Expr element : expr.elements) size += of(element);
+      return size;
+    }
+
+    @Override
+    public Integer visitIndexExpr(Expr.Index expr) {
+      return 1 + of(expr.object) + of(expr.index);
+    }
+
+    // 改的是数组里的元素，不是变量，可以内联
+    @Override
+    public Integer visitSetIndexExpr(Expr.SetIndex expr) {
+      return 1 + of(expr.object) + of(expr.index) + of(expr.value);
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+      return of(expr.expression);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+      return 1;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+      return 1 + of(expr.left) + of(expr.right);
+    }
+
+    @Override
+    public Integer visitTempExpr(Expr.Temp expr) {
+      // 临时变量在函数自己的作用域里
+      ok = false;
+      return 1 + of(expr.value);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+      return 1 + of(expr.right);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+      // 函数体只有一条 return，深度 0 就是参数；更远的是闭包里的变量，内联到别处就找不到了
+      if (expr.depth > 0) ok = false;
+      return 1;
+    }
+  }
+
+  // ---- 为一个调用点复制返回表达式 ----
+
+  private static final class Copy implements Expr.Visitor<Expr> {
+    private final Map<String, Integer> params = new HashMap<>();
+
+    Copy(Stmt.Function function) {
+      for (int i = 0; i < function.params.size(); i++) {
+        params.put(function.params.get(i).lexeme, i);
+      }
+    }
+
+    Expr copy(Expr expr) {
+      return expr.accept(this);
+    }
+
+    @Override
+    public Expr visitArgumentExpr(Expr.Argument expr) {
+      return new Expr.Argument(expr.name, expr.index);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+      // 能内联的函数体里没有赋值
+      throw new IllegalStateException("Unexpected assignment in inlined body.");
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+      return new Expr.Binary(copy(expr.left), expr.operator, copy(expr.right));
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+      // 副本里的调用是普通调用，不再展开
+      List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+      for (Expr argument : expr.arguments) arguments.add(copy(argument));
+      return new Expr.Call(copy(expr.callee), expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitArrayExpr(Expr.Array expr) {
+      List<Expr> elements = new ArrayList<>(expr.elements.size());
+      for (Expr element : expr.elements) elements.add(copy(element));
+      return new Expr.Array(expr.bracket, elements);
+    }
+
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+      return new Expr.Index(copy(expr.object), expr.bracket, copy(expr.index));
+    }
+
+    @Override
+    public Expr visitSetIndexExpr(Expr.SetIndex expr) {
+      return new Expr.SetIndex(copy(expr.object), expr.bracket, copy(expr.index), copy(expr.value));
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+      return new Expr.Grouping(copy(expr.expression));
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+      return new Expr.Literal(expr.value);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+      return new Expr.Logical(copy(expr.left), expr.operator, copy(expr.right));
+    }
+
+    @Override
+    public Expr visitTempExpr(Expr.Temp expr) {
+      throw new IllegalStateException("Unexpected temporary in inlined body.");
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+      return new Expr.Unary(expr.operator, copy(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+      if (expr.depth == 0) return new Expr.Argument(expr.name, params.get(expr.name.lexeme));
+      Expr.Variable global = new Expr.Variable(expr.name);
+      global.depth = -1;
+      return global;
+    }
+  }
+}
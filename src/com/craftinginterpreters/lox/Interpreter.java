@@ -1,15 +1,45 @@
 package com.craftinginterpreters.lox;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     // 解释器中的environment字段会随着进入和退出局部作用域而改变，它会跟随当前环境。
     // 新加的globals字段则固定指向最外层的全局作用域。
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    final Environment globals;
+    // 创建上下文用的冻结的 prelude，没有时是 null
+    final Environment prelude;
+    // 正在这个线程上执行脚本的解释器。原生函数拿不到调用它的解释器，需要时从这里取（见 LoxDataset.close）
+    private static final ThreadLocal<Interpreter> CURRENT = new ThreadLocal<>();
+    private Environment environment;
+    private final ErrorReporter reporter;
+    private final PrintStream out;
+    // --timings / JMX 用的计数。普通字段自增，关掉时也几乎没有开销。
+    long calls = 0;
+    long environments = 0;
+    // 开启采样分析时才有，记录当前的 Lox 调用栈和行号
+    ShadowStack shadowStack = null;
+    // 开启调用追踪时才有
+    Tracer tracer = null;
+    // 开启分配统计时才有，需要 shadowStack 提供当前行
+    AllocationProfiler allocations = null;
+    // 当前在 AST 解释器里执行的函数，循环的回边计数算在它头上；顶层代码时为 null
+    LoxFunction executing = null;
+    // --feedback：求值时把操作数类型和调用目标记到语法树上，见 FeedbackProfile
+    boolean feedback = false;
+    // 正在求值的内联函数体的参数，Expr.Argument 从这里取值，见 Inliner
+    private Object[] inlineArguments = null;
+    // 帧不会逃逸的函数（Stmt.Function.recyclable）调用时用的环境，按调用的嵌套深度复用，见 acquireFrame
+    private Environment[] frames = new Environment[16];
+    private int frameDepth = 0;
+    // lox.stack.heap 打开时才有：Lox 调用嵌套太深时改用堆上的显式栈，见 HeapStack
+    final HeapStack heap;
+    // 没开 lox.stack.heap 时，第一次遇到嵌套得很深的语句（Stmt.deep）才建的 HeapStack
+    private HeapStack nested = null;
+    // Java 栈用完时最深的、还能记下来的调用点，interpret 把错误报在这里；没有经过调用时是 null
+    private Token overflow = null;
     // void interpret(Expr expression) { 
     //     try {
     //         Object value = evaluate(expression);
@@ -18,32 +48,56 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     //         Lox.runtimeError(error);
     //     }
     // }
-    Interpreter() {
-      globals.define("clock", new LoxCallable() {
-        @Override
-        public int arity() { return 0; }
-  
-        @Override
-        public Object call(Interpreter interpreter,
-                           List<Object> arguments) {
-          return (double)System.currentTimeMillis() / 1000.0;
-        }
-  
-        @Override
-        public String toString() { return "<native fn>"; }
-      });
+    Interpreter(ErrorReporter reporter, PrintStream out) {
+      this(reporter, out, null);
+    }
+
+    // 有 prelude 时，全局作用域是叠在冻结的 prelude 之上的一层小表，
+    // 原生函数已经在 prelude 里定义过了。
+    Interpreter(ErrorReporter reporter, PrintStream out, Environment prelude) {
+      this.reporter = reporter;
+      this.out = out;
+      this.prelude = prelude;
+      this.globals = prelude == null ? new Environment() : new Environment(prelude);
+      this.environment = globals;
+      this.heap = HeapStack.enabled ? new HeapStack(this) : null;
+      if (prelude != null) return;
+
+      NativeLibrary.define(globals);
+    }
+
+    static Interpreter current() {
+      return CURRENT.get();
     }
 
     void interpret(List<Stmt> statements) {
+      // 原生函数里可能又运行别的上下文，结束时恢复
+      Interpreter previous = CURRENT.get();
+      CURRENT.set(this);
       try {
         for (Stmt statement : statements) {
           execute(statement);
         }
       } catch (RuntimeError error) {
-        Lox.runtimeError(error);
+        reporter.runtimeError(error);
+      } catch (Error error) {
+        // 没开 lox.stack.heap 时递归太深会把 Java 栈用完，报成 Lox 的运行时错误，不让 JVM 错误抛出去。
+        // 方法句柄链接时栈用完，StackOverflowError 会被包在 InternalError 等里面
+        if (!overflowed(error)) throw error;
+        reporter.runtimeError(new RuntimeError(overflow, "Stack overflow."));
+      } finally {
+        overflow = null;
+        CURRENT.set(previous);
       }
     }
 
+    private static boolean overflowed(Throwable error) {
+      for (Throwable e = error; e != null; e = e.getCause()) {
+        if (e instanceof StackOverflowError) return true;
+      }
+      return false;
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
       return expr.value;
@@ -51,6 +105,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
+      if (expr.chain) return chain(expr);
       Object left = evaluate(expr.left);
   
       // short-circuit
@@ -70,14 +125,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-      Object right = evaluate(expr.right);
-  
+      return unary(expr, evaluate(expr.right));
+    }
+
+    // 操作数求值之后的计算，HeapStack 也用
+    Object unary(Expr.Unary expr, Object right) {
       switch (expr.operator.type) {
         case BANG:
             return !isTruthy(right);
         case MINUS:
             checkNumberOperand(expr.operator, right);
-            return -(double)right;
+            return number(-(double)right);
       }
   
       // Unreachable.
@@ -87,12 +145,26 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
 //      return environment.get(expr.name);
-        return lookUpVariable(expr.name, expr);
+        mark(expr.name);
+        return lookUpVariable(expr.name, expr.depth);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
+    // Hoister 换上的临时变量：还是 nil 说明没算过，求值原来的表达式并存起来
+    @Override
+    public Object visitTempExpr(Expr.Temp expr) {
+        Object value = lookUpVariable(expr.name, expr.depth);
+        if (value != null) return value;
+        value = evaluate(expr.value);
+        if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.name, value);
+        } else {
+            globals.assign(expr.name, value);
+        }
+        return value;
+    }
+
+    private Object lookUpVariable(Token name, int distance) {
+        if (distance >= 0) {
             return environment.getAt(distance, name.lexeme);
         } else {
             return globals.get(name);
@@ -104,7 +176,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private boolean isTruthy(Object object) {
+    // 比较运算符作用在两个数字上，计数循环的条件用
+    static boolean compare(TokenType type, double left, double right) {
+        switch (type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    static boolean isTruthy(Object object) {
         // Lox follows Ruby’s simple rule: false and nil are falsey, and everything else is truthy.
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
@@ -113,9 +195,42 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+      if (expr.chain) return chain(expr);
+      mark(expr.operator);
       Object left = evaluate(expr.left);
       Object right = evaluate(expr.right); 
-  
+      if (feedback) FeedbackProfile.recordBinary(expr, left, right);
+      return binary(expr, left, right);
+    }
+
+    // 左边嵌套得很深的长链（Resolver 标出来的，见 Expr.Binary.chain 和 Expr.Logical.chain）：沿着左边走到底，
+    // 从最左边的操作数开始依次求右操作数、算出结果，不递归。链里的 and / or 照样短路
+    private Object chain(Expr expr) {
+      List<Expr> chain = new ArrayList<>();
+      Expr left = expr;
+      while (left instanceof Expr.Binary || left instanceof Expr.Logical) {
+        chain.add(left);
+        left = left instanceof Expr.Binary ? ((Expr.Binary)left).left : ((Expr.Logical)left).left;
+      }
+      Object value = evaluate(left);
+      for (int i = chain.size() - 1; i >= 0; i--) {
+        if (chain.get(i) instanceof Expr.Logical) {
+          Expr.Logical logical = (Expr.Logical)chain.get(i);
+          if (logical.operator.type == TokenType.OR ? !isTruthy(value) : isTruthy(value)) {
+            value = evaluate(logical.right);
+          }
+          continue;
+        }
+        Expr.Binary binary = (Expr.Binary)chain.get(i);
+        mark(binary.operator);
+        Object right = evaluate(binary.right);
+        if (feedback) FeedbackProfile.recordBinary(binary, value, right);
+        value = binary(binary, value, right);
+      }
+      return value;
+    }
+
+    Object binary(Expr.Binary expr, Object left, Object right) {
       switch (expr.operator.type) {
         case GREATER:
             checkNumberOperands(expr.operator, left, right);
@@ -133,23 +248,26 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         case EQUAL_EQUAL: return isEqual(left, right);
         case MINUS:
             checkNumberOperands(expr.operator, left, right);
-            return (double)left - (double)right;
+            return number((double)left - (double)right);
         case PLUS:
           if (left instanceof Double && right instanceof Double) {
-            return (double)left + (double)right;
+            return number((double)left + (double)right);
           } 
   
-          if (left instanceof String && right instanceof String) {
-            return (String)left + (String)right;
+          if (left instanceof LoxString && right instanceof LoxString) {
+            if (allocations != null) {
+              allocations.record(AllocationProfiler.STRING, AllocationProfiler.STRING_BYTES);
+            }
+            return LoxString.concat((LoxString)left, (LoxString)right);
           }
 
           throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
         case SLASH:
             checkNumberOperands(expr.operator, left, right);
-            return (double)left / (double)right;
+            return number((double)left / (double)right);
         case STAR:
             checkNumberOperands(expr.operator, left, right);
-            return (double)left * (double)right;
+            return number((double)left * (double)right);
 
       }
   
@@ -160,42 +278,274 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitCallExpr(Expr.Call expr) {
       Object callee = evaluate(expr.callee);
+      if (feedback) FeedbackProfile.recordCall(expr, callee);
+      if (expr.inlined != null && canInline(callee, expr.inlined)) return inline(expr);
   
+      if (allocations != null) {
+        allocations.record(AllocationProfiler.ARGUMENTS,
+            AllocationProfiler.argumentsBytes(expr.arguments.size()));
+      }
+      if (callee instanceof NativeFunction) {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+          arguments[i] = evaluate(expr.arguments.get(i));
+        }
+        mark(expr.paren);
+        return call(callee, arguments, expr.paren);
+      }
       List<Object> arguments = new ArrayList<>();
       for (Expr argument : expr.arguments) { 
         arguments.add(evaluate(argument));
       }
 
+      // 参数求值时行号可能变了，调用前再记一次调用点
+      mark(expr.paren);
+      return call(callee, arguments, expr.paren);
+    }
+
+    // 被调用的确实是内联进来的那个函数时，对函数体的副本求值，编译后的代码也用这个判断。
+    // 分析器和调用追踪要看到每次调用，开着时照常调用
+    boolean canInline(Object callee, Stmt.Function declaration) {
+      return callee instanceof LoxFunction && ((LoxFunction)callee).declaration == declaration &&
+          shadowStack == null && tracer == null;
+    }
+
+    private Object inline(Expr.Call expr) {
+      Object[] arguments = new Object[expr.arguments.size()];
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = evaluate(expr.arguments.get(i));
+      }
+      // 函数体的副本只是一个表达式，里面的调用各自处理 Return；抛出 RuntimeError 时整个脚本都停了，
+      // 所以不需要 try/finally 来恢复
+      Object[] previous = inlineArguments;
+      inlineArguments = arguments;
+      Object value = evaluate(expr.inlineBody);
+      inlineArguments = previous;
+      return value;
+    }
+
+    @Override
+    public Object visitArrayExpr(Expr.Array expr) {
+      Object[] elements = new Object[expr.elements.size()];
+      for (int i = 0; i < elements.length; i++) {
+        elements[i] = evaluate(expr.elements.get(i));
+      }
+      return new LoxArray(elements);
+    }
+
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+      Object object = evaluate(expr.object);
+      return get(object, evaluate(expr.index), expr.bracket);
+    }
+
+    @Override
+    public Object visitSetIndexExpr(Expr.SetIndex expr) {
+      Object object = evaluate(expr.object);
+      Object index = evaluate(expr.index);
+      Object value = evaluate(expr.value);
+      set(object, index, value, expr.bracket);
+      return value;
+    }
+
+    // 下标读写，编译过的代码和 HeapStack 也用。数组可读可写，数据集（LoxDataset）只能读
+    static Object get(Object object, Object index, Token bracket) {
+      if (object instanceof LoxArray) {
+        LoxArray array = (LoxArray)object;
+        return array.get(index(array.size(), index, bracket));
+      }
+      LoxDataset dataset = dataset(object, bracket);
+      return dataset.get(index(dataset.size(), index, bracket));
+    }
+
+    // 下标已知是数字的读，见 BytecodeCompiler
+    static Object get(Object object, double index, Token bracket) {
+      if (object instanceof LoxArray) {
+        LoxArray array = (LoxArray)object;
+        return array.get(index(array.size(), index, bracket));
+      }
+      LoxDataset dataset = dataset(object, bracket);
+      return dataset.get(index(dataset.size(), index, bracket));
+    }
+
+    static void set(Object object, Object index, Object value, Token bracket) {
+      LoxArray array = array(object, bracket);
+      array.set(index(array.size(), index, bracket), value);
+    }
+
+    // 要写的数组，冻结的 prelude 数组（见 Prelude）不能写
+    static LoxArray array(Object object, Token bracket) {
+      if (object instanceof LoxArray) {
+        LoxArray array = (LoxArray)object;
+        if (array.frozen()) throw new RuntimeError(bracket, READ_ONLY_ARRAY);
+        return array;
+      }
+      if (object instanceof LoxDataset) throw new RuntimeError(bracket, "Datasets are read-only.");
+      throw notIndexable(bracket);
+    }
+
+    private static LoxDataset dataset(Object object, Token bracket) {
+      if (!(object instanceof LoxDataset)) throw notIndexable(bracket);
+      LoxDataset dataset = (LoxDataset)object;
+      if (dataset.closed()) throw new RuntimeError(bracket, "Dataset is closed.");
+      return dataset;
+    }
+
+    static final String READ_ONLY_ARRAY = "Prelude arrays are read-only.";
+
+    private static RuntimeError notIndexable(Token bracket) {
+      return new RuntimeError(bracket, "Only arrays and datasets can be indexed.");
+    }
+
+    static int index(int length, Object index, Token bracket) {
+      if (!(index instanceof Double)) {
+        throw new RuntimeError(bracket, "Array index must be a number.");
+      }
+      return index(length, (double)index, bracket);
+    }
+
+    static int index(int length, double index, Token bracket) {
+      int i = (int)index;
+      if (i != index) throw new RuntimeError(bracket, "Array index must be an integer.");
+      if (i < 0 || i >= length) {
+        throw new RuntimeError(bracket,
+            "Array index " + i + " out of bounds for length " + length + ".");
+      }
+      return i;
+    }
+
+    @Override
+    public Object visitArgumentExpr(Expr.Argument expr) {
+      return inlineArguments[expr.index];
+    }
+
+    // 参数已经求值好之后的调用过程，编译过的代码（见 TierCompiler）也走这里
+    Object call(Object callee, List<Object> arguments, Token paren) {
+      calls++;
+      LoxCallable function = callable(callee, arguments, paren);
+      try {
+        // 深递归模式下由 HeapStack 数调用深度，太深了就改在堆上的栈里接着跑
+        if (heap != null) return heap.call(function, arguments, paren);
+        return invoke(function, arguments, paren);
+      } catch (StackOverflowError e) {
+        if (overflow == null) overflow = paren;
+        throw e;
+      }
+    }
+
+    // 参数在数组里的调用，编译过的代码也走这里。原生函数不用装进 List，
+    // 直接调用绑定好的方法句柄；追踪要看到每次调用，开着时照常走 invoke
+    Object call(Object callee, Object[] arguments, Token paren) {
+      if (callee instanceof NativeFunction && tracer == null) {
+        calls++;
+        return ((NativeFunction)callee).invoke(arguments, paren);
+      }
+      return call(callee, Arrays.asList(arguments), paren);
+    }
+
+    // 被调用的不是函数、参数个数不对时报错
+    LoxCallable callable(Object callee, List<Object> arguments, Token paren) {
       if (!(callee instanceof LoxCallable)) {
-        throw new RuntimeError(expr.paren,
+        throw new RuntimeError(paren,
             "Can only call functions and classes.");
       }
   
       LoxCallable function = (LoxCallable)callee;
 
       if (arguments.size() != function.arity()) {
-        throw new RuntimeError(expr.paren, "Expected " +
+        throw new RuntimeError(paren, "Expected " +
             function.arity() + " arguments but got " +
             arguments.size() + ".");
       }
-  
+      return function;
+    }
+
+    Object invoke(LoxCallable function, List<Object> arguments, Token paren) {
+      Tracer tracer = this.tracer;
+      if (tracer == null) return apply(function, arguments, paren);
+
+      tracer.enter(function, paren.line);
+      try {
+        return apply(function, arguments, paren);
+      } finally {
+        tracer.exit(function, paren.line);
+      }
+    }
+
+    // 原生函数出错时要报在调用处，所以带上 paren
+    private Object apply(LoxCallable function, List<Object> arguments, Token paren) {
+      if (function instanceof NativeFunction) {
+        return ((NativeFunction)function).invoke(arguments.toArray(), paren);
+      }
       return function.call(this, arguments);
     }
 
+    // 算术结果会被装箱成 Double，开启分配统计时记一笔
+    private Object number(double value) {
+      if (allocations != null) {
+        allocations.record(AllocationProfiler.NUMBER, AllocationProfiler.NUMBER_BYTES);
+      }
+      return value;
+    }
+
+    // 块和函数调用都从这里创建环境，方便计数
+    Environment newEnvironment(Environment enclosing) {
+      environments++;
+      if (allocations != null) {
+        allocations.record(AllocationProfiler.ENVIRONMENT, AllocationProfiler.ENVIRONMENT_BYTES);
+      }
+      return new Environment(enclosing);
+    }
+
+    // 调用和返回是后进先出的，池子就是一个栈：第 n 层的帧给下一次同一深度的调用用。
+    // 递归和反复调用同一个函数时，同一深度上的变量名也一样，define 不再分配
+    Environment acquireFrame(Environment closure) {
+      if (frameDepth == frames.length) frames = Arrays.copyOf(frames, frameDepth * 2);
+      Environment frame = frames[frameDepth];
+      if (frame == null) {
+        frame = newEnvironment(closure);
+        frames[frameDepth] = frame;
+      } else {
+        frame.recycle(closure);
+      }
+      frameDepth++;
+      return frame;
+    }
+
+    void releaseFrame(Environment frame) {
+      frameDepth--;
+      frame.release();
+    }
+
+    // 分析器需要 AST 解释器里的行号和分配记录，开着的时候不切换到编译后的代码
+    boolean canUseCompiled() {
+      return shadowStack == null && allocations == null;
+    }
+
+    // 更新影子栈上的当前行，没开分析时只是一次判空
+    private void mark(Token token) {
+      if (shadowStack != null) shadowStack.line = token.line;
+    }
+
     private void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null) return false;
+    static boolean isEqual(Object a, Object b) {
+        // 同一个对象（比如驻留的字面量）不用再比较内容
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+
+        if (a instanceof LoxString && b instanceof LoxString) {
+            return ((LoxString)a).contentEquals((LoxString)b);
+        }
     
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
     
         if (object instanceof Double) {
@@ -215,14 +565,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     private void execute(Stmt stmt) {
+      // 嵌套得很深的语句（Resolver 标出来的，见 Stmt.deep）递归执行会把 Java 栈用完，整条在堆上的栈里执行
+      if (stmt.deep) {
+        if (heap != null) {
+          heap.execute(stmt, environment);
+          return;
+        }
+        if (nested == null) nested = new HeapStack(this);
+        nested.execute(stmt, environment);
+        return;
+      }
       stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
-
-
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
       // Java requires that to satisfy the special capitalized Void return type
@@ -232,6 +587,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
+      mark(stmt.name);
+      if (allocations != null) {
+        allocations.record(AllocationProfiler.CLOSURE, AllocationProfiler.CLOSURE_BYTES);
+      }
       LoxFunction function = new LoxFunction(stmt, environment);
       environment.define(stmt.name.lexeme, function);
       return null;
@@ -240,14 +599,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
       Object value = evaluate(stmt.expression);
-      System.out.println(stringify(value));
+      print(value);
       return null;
     }
 
+    void print(Object value) {
+      out.println(stringify(value));
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
       // 如果我们有返回值，就对其求值，否则就使用nil。
       // 然后我们取这个值并将其封装在一个自定义的异常类中，并抛出该异常
+      mark(stmt.keyword);
       Object value = null;
       if (stmt.value != null) value = evaluate(stmt.value);
   
@@ -257,6 +621,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
       // 如果变量没有被显式初始化，Lox会将变量设置为nil。
+      mark(stmt.name);
       Object value = null;
       if (stmt.initializer != null) {
         value = evaluate(stmt.initializer);
@@ -268,19 +633,113 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-      while (isTruthy(evaluate(stmt.condition))) {
+      int backEdges = 0;
+      while (true) {
+        // 循环已经编译过（OSR）就从这里切换过去。循环的状态都在 environment 里
+        // （循环体里的块每次迭代都是新的），编译后的代码直接读写这些环境，从条件判断处接着跑
+        CompiledFunction compiled = stmt.compiled;
+        if (compiled != null && canUseCompiled()) {
+          compiled.call(this, environment, Collections.emptyList());
+          return null;
+        }
+        if (!isTruthy(evaluate(stmt.condition))) return null;
         execute(stmt.body);
+        if (++backEdges == Tiering.backEdgeThreshold && Tiering.enabled) {
+          // 函数里跑得很久的循环也说明这个函数是热的，下次调用时就能用上编译后的版本
+          if (executing != null) Tiering.request(executing.declaration);
+          // 顶层的循环不在任何函数里，循环本身也要单独编译
+          Tiering.requestLoop(stmt);
+        }
+      }
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+      // 初始化式声明的变量放在循环自己的一层环境里，条件、循环体和增量都在这层里执行
+      Environment previous = environment;
+      try {
+        environment = newEnvironment(previous);
+        if (stmt.initializer != null) execute(stmt.initializer);
+        // 分析器和反馈记录要看到每个节点的求值，开着的时候走普通路径
+        if (stmt.counted && shadowStack == null && !feedback) {
+          countedLoop(stmt);
+        } else {
+          forLoop(stmt);
+        }
+      } finally {
+        environment = previous;
       }
       return null;
     }
 
+    private void forLoop(Stmt.For stmt) {
+      int backEdges = 0;
+      while (true) {
+        // OSR 和 while 一样，计数器在当前环境里，编译后的代码从条件判断处接着跑
+        CompiledFunction compiled = stmt.compiled;
+        if (compiled != null && canUseCompiled()) {
+          compiled.call(this, environment, Collections.emptyList());
+          return;
+        }
+        if (!isTruthy(evaluate(stmt.condition))) return;
+        execute(stmt.body);
+        if (stmt.increment != null) evaluate(stmt.increment);
+        if (++backEdges == Tiering.backEdgeThreshold && Tiering.enabled) {
+          if (executing != null) Tiering.request(executing.declaration);
+          Tiering.requestLoop(stmt);
+        }
+      }
+    }
+
+    // 计数循环（Resolver 认出来的 var i = a; i < b; i = i + c）：i 放在 double 局部变量里，
+    // 条件和增量不再查环境、不再装箱；循环体读 i 时才把当前值写回环境。
+    // b 和 c 每次迭代照样求值，不是数字时报的错和普通路径一样。初始值不是数字时整个走普通路径
+    private void countedLoop(Stmt.For stmt) {
+      Token name = ((Stmt.Var)stmt.initializer).name;
+      Object start = environment.getAt(0, name.lexeme);
+      if (!(start instanceof Double)) {
+        forLoop(stmt);
+        return;
+      }
+      Expr.Binary condition = (Expr.Binary)stmt.condition;
+      Expr.Binary step = (Expr.Binary)((Expr.Assign)stmt.increment).value;
+      boolean plus = step.operator.type == TokenType.PLUS;
+      double counter = (double)start;
+      int backEdges = 0;
+      while (true) {
+        CompiledFunction compiled = stmt.compiled;
+        if (compiled != null && canUseCompiled()) {
+          environment.assignAt(0, name, counter);
+          compiled.call(this, environment, Collections.emptyList());
+          return;
+        }
+        Object limit = evaluate(condition.right);
+        if (!(limit instanceof Double)) {
+          throw new RuntimeError(condition.operator, "Operands must be numbers.");
+        }
+        if (!compare(condition.operator.type, counter, (double)limit)) return;
+        if (stmt.counterRead) environment.assignAt(0, name, counter);
+        execute(stmt.body);
+        Object amount = evaluate(step.right);
+        if (!(amount instanceof Double)) {
+          throw new RuntimeError(step.operator, plus
+              ? "Operands must be two numbers or two strings." : "Operands must be numbers.");
+        }
+        counter = plus ? counter + (double)amount : counter - (double)amount;
+        if (++backEdges == Tiering.backEdgeThreshold && Tiering.enabled) {
+          if (executing != null) Tiering.request(executing.declaration);
+          Tiering.requestLoop(stmt);
+        }
+      }
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
+        mark(expr.name);
         Object value = evaluate(expr.value);
 //      environment.assign(expr.name, value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.name, value);
         } else {
             globals.assign(expr.name, value);
         }
@@ -289,17 +748,21 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-      executeBlock(stmt.statements, new Environment(environment));
+      executeBlock(stmt.statements, newEnvironment(environment));
       return null;
     }
 
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
-      if (isTruthy(evaluate(stmt.condition))) {
-        execute(stmt.thenBranch);
-      } else if (stmt.elseBranch != null) {
-        execute(stmt.elseBranch);
+      // else if 链沿着 else 分支循环，不递归
+      while (!isTruthy(evaluate(stmt.condition))) {
+        if (!(stmt.elseBranch instanceof Stmt.If)) {
+          if (stmt.elseBranch != null) execute(stmt.elseBranch);
+          return null;
+        }
+        stmt = (Stmt.If)stmt.elseBranch;
       }
+      execute(stmt.thenBranch);
       return null;
     }
 
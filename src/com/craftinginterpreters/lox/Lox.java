@@ -3,41 +3,102 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
-
-    private static void run(String source) {
+    // 命令行只有一个解释器；要在同一个 JVM 里跑多个脚本请用 LoxEngine
+    private static final ErrorReporter reporter = new ErrorReporter(System.err);
+    private static final Interpreter interpreter = new Interpreter(reporter, System.out);
+    // --timings: 每次运行后把各阶段耗时和计数打印到 stderr
+    private static boolean timings = false;
+    // --profile: 运行脚本时采样，折叠栈写到这个文件，热点表打印到 stderr
+    private static String profileOutput = null;
+    private static long profileInterval = 1000;
+    // --trace: 记录每次调用，结束时以 Chrome trace-event JSON 写到这个文件
+    private static String traceOutput = null;
+    private static int traceBuffer = 1 << 20;
+    // --alloc-profile: 结束时按行和函数打印分配统计
+    private static boolean allocationProfile = false;
+    // --tier-stats: 结束时打印分层执行的编译统计
+    private static boolean tierStats = false;
+    // --feedback: 运行前读入上次的类型和调用反馈，运行后写回，见 FeedbackProfile
+    private static Path feedbackFile = null;
+    // --inline-report: 打印内联了的调用点，见 Inliner
+    private static boolean inlineReport = false;
+
+    private static void run(String source) throws IOException {
 //        System.out.println(source);
-        Scanner scanner = new Scanner(source);
+        long start = System.nanoTime();
+        Scanner scanner = new Scanner(source, reporter);
         List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+        long scanned = System.nanoTime();
+        Parser parser = new Parser(tokens, reporter);
         // Expr expression = parser.parse();
         List<Stmt> statements = parser.parse();
+        long parsed = System.nanoTime();
 
         // // For now, just print the tokens.
 //         for (Token token : tokens) {
 //             System.out.println(token);
 //         }
 
-        if (hadError) return;
+        if (reporter.hadError) return;
 
         // System.out.println(new AstPrinter().print(expression));
         // interpreter.interpret(expression);
         // 变量解析
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver(reporter);
         resolver.resolve(statements);
 
-        if (hadError) return;
+        if (reporter.hadError) return;
+
+        // 外提改写了作用域，重新解析一遍。嵌套得很深的生成代码跳过这两遍优化，它们是递归遍历的
+        List<String> inlined = Collections.emptyList();
+        if (!resolver.deep) {
+            try {
+                inlined = Inliner.inline(statements);
+                if (Hoister.hoist(statements)) new Resolver(reporter).resolve(statements);
+            } catch (StackOverflowError e) {
+                resolver.tooDeep(Resolver.deepest(statements));
+            }
+            if (reporter.hadError) return;
+        }
+        long resolved = System.nanoTime();
+        if (inlineReport) {
+            for (String site : inlined) System.err.println("[inline] " + site);
+        }
+
+        String feedback = null;
+        if (feedbackFile != null) {
+            interpreter.feedback = true;
+            feedback = FeedbackProfile.load(feedbackFile, source, statements);
+        }
 
+        long calls = interpreter.calls;
+        long environments = interpreter.environments;
         interpreter.interpret(statements);
+
+        if (feedbackFile != null) {
+            FeedbackProfile.save(feedbackFile, source, statements);
+            if (tierStats) System.err.println("[feedback] " + feedbackFile + ": " + feedback);
+        }
+
+        if (timings) {
+            System.err.println(Metrics.format(
+                scanned - start, parsed - scanned, resolved - parsed,
+                System.nanoTime() - resolved,
+                tokens.size(), resolver.nodes, resolver.locals,
+                interpreter.calls - calls, interpreter.environments - environments));
+        }
     }
 
     private static void runFile(String path) throws IOException {
@@ -45,11 +106,40 @@ public class Lox {
         // Paths.get(path) 将字符串形式的文件路径转换为 Path 对象
         // 使用上述 Path 对象读取文件的所有字节到一个字节数组 bytes 中。这个方法尝试一次性读取整个文件，所以适用于读取小到中等大小的文件。
         byte[] bytes = Files.readAllBytes(Paths.get(path));
+        Profiler profiler = null;
+        if (profileOutput != null) {
+            interpreter.shadowStack = new ShadowStack();
+            profiler = new Profiler(interpreter.shadowStack, profileInterval);
+            profiler.start();
+        }
+        if (traceOutput != null) {
+            interpreter.tracer = new Tracer(traceBuffer);
+        }
+        if (allocationProfile) {
+            if (interpreter.shadowStack == null) interpreter.shadowStack = new ShadowStack();
+            interpreter.allocations = new AllocationProfiler(interpreter.shadowStack);
+        }
         // 将字节数组 bytes 转换为一个新的字符串。
         run(new String(bytes, Charset.defaultCharset()));
+        if (profiler != null) {
+            profiler.stop();
+            try (PrintStream out = new PrintStream(profileOutput, StandardCharsets.UTF_8)) {
+                profiler.writeCollapsed(out);
+            }
+            profiler.writeTop(System.err, 20);
+        }
+        if (interpreter.tracer != null) {
+            try (PrintStream out = new PrintStream(traceOutput, StandardCharsets.UTF_8)) {
+                interpreter.tracer.write(out);
+            }
+        }
+        if (interpreter.allocations != null) {
+            interpreter.allocations.write(System.err, 20);
+        }
+        if (tierStats) System.err.println(Tiering.stats());
         // Indicate an error in the exit code.
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        if (reporter.hadError) System.exit(65);
+        if (reporter.hadRuntimeError) System.exit(70);
     }
 
     private static void runPrompt() throws IOException {
@@ -67,38 +157,61 @@ public class Lox {
             // 这通常意味着没有更多的输入可以读取（比如用户按下了 Ctrl+D），于是退出循环。
             if (line == null) break;
             run(line);
-            hadError = false;
+            reporter.hadError = false;
         }
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    private static void usage() {
+        System.out.println("Usage: jlox [--timings] [--profile file] [--profile-interval micros]" +
+            " [--trace file] [--trace-buffer events] [--alloc-profile] [--tier-stats]" +
+            " [--feedback file] [--inline-report] [script]");
+        System.exit(64);
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
-    }
-
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+    public static void main(String[] args) throws IOException {
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            switch (args[i]) {
+                case "--timings":
+                    timings = true;
+                    break;
+                case "--profile":
+                    if (i + 1 >= args.length) usage();
+                    profileOutput = args[++i];
+                    break;
+                case "--profile-interval":
+                    if (i + 1 >= args.length) usage();
+                    profileInterval = Long.parseLong(args[++i]);
+                    break;
+                case "--trace":
+                    if (i + 1 >= args.length) usage();
+                    traceOutput = args[++i];
+                    break;
+                case "--tier-stats":
+                    tierStats = true;
+                    break;
+                case "--inline-report":
+                    inlineReport = true;
+                    break;
+                case "--feedback":
+                    if (i + 1 >= args.length) usage();
+                    feedbackFile = Paths.get(args[++i]);
+                    break;
+                case "--alloc-profile":
+                    allocationProfile = true;
+                    break;
+                case "--trace-buffer":
+                    if (i + 1 >= args.length) usage();
+                    traceBuffer = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    usage();
+            }
         }
-    }
+        args = Arrays.copyOfRange(args, i, args.length);
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
-    }
-
-    public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
+        if (args.length > 1 || (feedbackFile != null && args.length == 0)) {
+            usage();
         } else if (args.length == 1) {
             System.out.println("File path: " + args[0]);
             runFile(args[0]);
@@ -0,0 +1,156 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Lox 的数组值，引用语义（== 比较的是同一个数组）。
+// 元素全是数字时存在 double[] 里，读写都不装箱；第一次存进别的值时整个换成 Object[]，之后不再换回来。
+// push 时容量翻倍，均摊 O(1)。下标的检查在 Interpreter.index 里做，这里的方法假定下标有效。
+// prelude 里的数组是冻结的（见 Prelude），修改前由调用方检查 frozen()。
+final class LoxArray {
+  private static final double[] NO_NUMBERS = {};
+
+  // 两个里只有一个不是 null
+  private double[] numbers;
+  private Object[] values;
+  private int size;
+  private boolean frozen = false;
+
+  LoxArray() {
+    this.numbers = NO_NUMBERS;
+  }
+
+  // elements 里全是数字时用 double[]
+  LoxArray(Object[] elements) {
+    this.size = elements.length;
+    double[] packed = new double[elements.length];
+    for (int i = 0; i < elements.length; i++) {
+      if (!(elements[i] instanceof Double)) {
+        this.values = elements;
+        return;
+      }
+      packed[i] = (double)elements[i];
+    }
+    this.numbers = packed;
+  }
+
+  // 直接用 numbers 做存储，不复制
+  LoxArray(double[] numbers) {
+    this.numbers = numbers;
+    this.size = numbers.length;
+  }
+
+  // length 个 fill
+  LoxArray(int length, Object fill) {
+    this.size = length;
+    if (fill instanceof Double) {
+      numbers = new double[length];
+      if ((double)fill != 0) Arrays.fill(numbers, (double)fill);
+    } else {
+      values = new Object[length];
+      if (fill != null) Arrays.fill(values, fill);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean packed() {
+    return numbers != null;
+  }
+
+  boolean frozen() {
+    return frozen;
+  }
+
+  void freeze() {
+    frozen = true;
+  }
+
+  Object get(int index) {
+    if (numbers != null) return numbers[index];
+    return values[index];
+  }
+
+  // packed() 时的存储，长度可能比 size() 大
+  double[] numbers() {
+    return numbers;
+  }
+
+  void set(int index, Object value) {
+    if (numbers != null) {
+      if (value instanceof Double) {
+        numbers[index] = (double)value;
+        return;
+      }
+      unpack(numbers.length);
+    }
+    values[index] = value;
+  }
+
+  void setNumber(int index, double value) {
+    if (numbers != null) {
+      numbers[index] = value;
+    } else {
+      values[index] = value;
+    }
+  }
+
+  void push(Object value) {
+    if (numbers != null && value instanceof Double) {
+      if (size == numbers.length) numbers = Arrays.copyOf(numbers, grow(size));
+      numbers[size++] = (double)value;
+      return;
+    }
+    if (numbers != null) unpack(numbers.length);
+    if (size == values.length) values = Arrays.copyOf(values, grow(size));
+    values[size++] = value;
+  }
+
+  // 调用前检查过不是空数组
+  Object pop() {
+    size--;
+    if (numbers != null) return numbers[size];
+    Object value = values[size];
+    values[size] = null;
+    return value;
+  }
+
+  private static int grow(int size) {
+    return Math.max(8, size * 2);
+  }
+
+  // double[] 换成 Object[]，数字装箱一次
+  private void unpack(int capacity) {
+    Object[] boxed = new Object[capacity];
+    for (int i = 0; i < size; i++) boxed[i] = numbers[i];
+    values = boxed;
+    numbers = null;
+  }
+
+  @Override
+  public String toString() {
+    return toString(new IdentityHashMap<>());
+  }
+
+  // 数组里可以放自己，打印时已经在打印的数组显示成 [...]
+  private String toString(Map<LoxArray, Boolean> printing) {
+    if (printing.put(this, true) != null) return "[...]";
+    StringBuilder text = new StringBuilder("[");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) text.append(", ");
+      Object element = get(i);
+      if (element instanceof LoxArray) {
+        text.append(((LoxArray)element).toString(printing));
+      } else if (element instanceof LoxString) {
+        text.append('"').append(element).append('"');
+      } else {
+        text.append(Interpreter.stringify(element));
+      }
+    }
+    printing.remove(this);
+    return text.append("]").toString();
+  }
+}
@@ -0,0 +1,86 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.util.Map;
+
+// 一个独立的执行上下文：自己的全局变量、错误状态和输出。
+// 上下文本身不是线程安全的，同一时刻只能被一个线程使用；不同的上下文可以并发运行。
+public final class LoxContext {
+  private final ErrorReporter reporter;
+  private final Interpreter interpreter;
+  private final Metrics metrics;
+
+  LoxContext(Prelude prelude, PrintStream out, PrintStream err, Metrics metrics) {
+    this.metrics = metrics;
+    this.reporter = new ErrorReporter(err);
+    this.interpreter = new Interpreter(reporter, out,
+        prelude == null ? null : prelude.globals);
+  }
+
+  // 运行脚本。运行时错误会像命令行一样报告到 err，并返回 false。
+  public boolean run(LoxScript script) {
+    reporter.hadRuntimeError = false;
+    long calls = interpreter.calls;
+    long environments = interpreter.environments;
+    long start = System.nanoTime();
+    interpreter.interpret(script.statements);
+    metrics.recordExecution(System.nanoTime() - start,
+        interpreter.calls - calls, interpreter.environments - environments);
+    return !reporter.hadRuntimeError;
+  }
+
+  // 先注入一组全局变量再运行，方便同一个脚本配不同的输入反复执行。
+  public boolean run(LoxScript script, Map<String, ?> bindings) {
+    for (Map.Entry<String, ?> binding : bindings.entrySet()) {
+      define(binding.getKey(), binding.getValue());
+    }
+    return run(script);
+  }
+
+  public boolean hadRuntimeError() {
+    return reporter.hadRuntimeError;
+  }
+
+  // 注入一个全局变量，Java 的值会被转换成对应的 Lox 值。
+  // 宿主可以把从一个上下文 get 出来的数组、函数交给另一个上下文，里面能到达的数据集标成共享的，
+  // 两边都不能再 close，见 LoxDataset。
+  public void define(String name, Object value) {
+    Object lox = toLox(value);
+    if (lox instanceof LoxArray || lox instanceof LoxFunction || lox instanceof LoxDataset) {
+      Prelude.walk(lox, reached -> {
+        if (reached instanceof LoxDataset) ((LoxDataset)reached).share();
+        return false;
+      });
+    }
+    interpreter.globals.define(name, lox);
+  }
+
+  // 把 lookup 所在的类里带 @LoxNative 的静态方法定义成全局函数，调用方一般传 MethodHandles.lookup()。
+  // 参数和返回值的转换在这里一次绑定好，见 LoxNative。
+  public void defineNatives(MethodHandles.Lookup lookup) {
+    NativeFunction.define(interpreter.globals, lookup);
+  }
+
+  // 读取一个全局变量，没有定义时返回 null。
+  public Object get(String name) {
+    return toJava(interpreter.globals.getOrNull(name));
+  }
+
+  static Object toLox(Object value) {
+    if (value == null || value instanceof Boolean || value instanceof Double) return value;
+    if (value instanceof Number) return ((Number)value).doubleValue();
+    if (value instanceof CharSequence) return LoxString.of(value.toString());
+    if (value instanceof LoxString || value instanceof LoxCallable || value instanceof LoxArray ||
+        value instanceof LoxDataset) {
+      return value;
+    }
+    throw new IllegalArgumentException(
+        "Can't convert " + value.getClass().getName() + " to a Lox value.");
+  }
+
+  static Object toJava(Object value) {
+    if (value instanceof LoxString) return value.toString();
+    return value;
+  }
+}
@@ -0,0 +1,162 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// 映射到内存里的一个只读的 double 文件（小端，每个数 8 字节，没有文件头），Lox 里用 d[i] 读。
+// 数据不进 Java 堆：打开时只建立映射，读到哪一页操作系统才加载哪一页。
+// 一个 MappedByteBuffer 最大 2GB，所以按 1GB 分块映射，下标的高位选块。
+//
+// close 之后映射马上解除（通过 sun.misc.Unsafe.invokeCleaner，JDK 17 上还没有 FFM 的 Arena 可用），
+// 再读会报 "Dataset is closed."。解除映射之后还去读那块内存会让 JVM 崩溃，所以只有确定没有别人在读时才能 close：
+//   - 只有打开它的解释器（上下文）能 close，别的上下文 close 报错；
+//   - 从 prelude 能到达的数据集（prelude 里打开的，或者存进了 prelude 函数捕获的变量里的）
+//     所有上下文都可能在读，close 报错；
+//   - 宿主通过 LoxContext.define 交给别的上下文的数据集标成共享的（shared），close 也报错。
+// 不能 close 的数据集和没有 close 的一样，映射在数据集不再被引用、GC 回收 MappedByteBuffer 之后才解除，
+// 什么时候解除是不确定的，文件在这之前一直映射着。拿不到 invokeCleaner 时 close 也只是丢掉引用，同样等 GC。
+final class LoxDataset {
+  // 每块 2^27 个 double，也就是 1GB
+  private static final int SHIFT = 27;
+  private static final int MASK = (1 << SHIFT) - 1;
+
+  // (ByteBuffer)void，没有时是 null
+  private static final MethodHandle INVOKE_CLEANER = cleaner();
+
+  final String name;
+  private final int size;
+  // 打开它的解释器，见 Interpreter.current
+  private final Interpreter owner;
+  private boolean shared = false;
+  // close 之后都是 null
+  private MappedByteBuffer[] maps;
+  private DoubleBuffer[] chunks;
+
+  private LoxDataset(String name, int size, Interpreter owner, MappedByteBuffer[] maps, DoubleBuffer[] chunks) {
+    this.name = name;
+    this.size = size;
+    this.owner = owner;
+    this.maps = maps;
+    this.chunks = chunks;
+  }
+
+  static LoxDataset open(Path path, Interpreter owner) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long bytes = channel.size();
+      if (bytes % Double.BYTES != 0) {
+        throw new IllegalArgumentException("Dataset file size " + bytes + " is not a multiple of 8 bytes.");
+      }
+      long count = bytes / Double.BYTES;
+      if (count > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Dataset has " + count + " numbers, more than an array can index.");
+      }
+      int size = (int)count;
+      int blocks = (int)((count + MASK) >>> SHIFT);
+      MappedByteBuffer[] maps = new MappedByteBuffer[blocks];
+      DoubleBuffer[] chunks = new DoubleBuffer[blocks];
+      for (int i = 0; i < blocks; i++) {
+        long start = (long)i << SHIFT;
+        long length = Math.min(count - start, 1L << SHIFT);
+        // 映射在通道关掉之后仍然有效
+        maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, start * Double.BYTES, length * Double.BYTES);
+        chunks[i] = maps[i].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+      }
+      return new LoxDataset(path.getFileName().toString(), size, owner, maps, chunks);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean closed() {
+    return chunks == null;
+  }
+
+  // 下标由调用方检查过，也检查过没有 close
+  double get(int index) {
+    return chunks[index >>> SHIFT].get(index & MASK);
+  }
+
+  // [from, from + length) 复制到 into 的 offset 开始处，可以跨块
+  void get(int from, double[] into, int offset, int length) {
+    while (length > 0) {
+      int within = from & MASK;
+      int count = Math.min(length, (1 << SHIFT) - within);
+      chunks[from >>> SHIFT].get(within, into, offset, count);
+      from += count;
+      offset += count;
+      length -= count;
+    }
+  }
+
+  // 按块直接读映射的内存，给 NumericOps 的归约用。除了最后一块，每块都是 2^SHIFT 个数
+  int chunks() {
+    return chunks.length;
+  }
+
+  DoubleBuffer chunk(int index) {
+    return chunks[index];
+  }
+
+  // 同一块的字节视图，小端
+  ByteBuffer bytes(int index) {
+    return maps[index];
+  }
+
+  void share() {
+    shared = true;
+  }
+
+  // caller 是调用 close 的解释器。可以重复调用
+  void close(Interpreter caller) {
+    if (caller != owner) {
+      throw new IllegalArgumentException("Only the context that opened a dataset can close it.");
+    }
+    boolean inPrelude = caller != null && caller.prelude != null &&
+        Prelude.walk(caller.prelude, value -> value == this);
+    if (shared || inPrelude) {
+      throw new IllegalArgumentException("Dataset is shared with other contexts and can't be closed.");
+    }
+    MappedByteBuffer[] unmapped = maps;
+    if (unmapped == null) return;
+    maps = null;
+    chunks = null;
+    if (INVOKE_CLEANER == null) return;
+    for (MappedByteBuffer map : unmapped) {
+      try {
+        INVOKE_CLEANER.invokeExact((ByteBuffer)map);
+      } catch (Throwable e) {
+        // 解除不了就留给 GC
+      }
+    }
+  }
+
+  private static MethodHandle cleaner() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+          .bindTo(field.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "<dataset " + name + ">";
+  }
+}
@@ -0,0 +1,289 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.TokenType.EOF;
+
+// 给编辑器用的增量前端：文档改一处，只重新扫描改动附近的记号、只重新解析受影响的顶层声明。
+//
+// 记号：Lox 的扫描器除了位置和行号没有别的状态，所以从改动前一个记号的开头重新扫，
+// 扫到某个新记号的开头正好对上改动之后某个旧记号（挪过位置）的开头，后面的记号就和原来一样，
+// 直接复用，行号整体加上改动里多出来的换行数。退一个记号是因为 "1." 后面插入数字会连成一个数。
+// 有词法错误（旧的或新扫出来的）时退回整篇重新扫描，错误信息里的行号这样才对得上。
+//
+// 声明：每条顶层声明是一个单元，解析器在两条顶层声明之间除了位置也没有别的状态。
+// 从读到过改动记号的第一个单元开始重新解析（解析器会多看一个记号：else、同步），
+// 解析到某个单元的结尾正好是改动之后某个旧单元的开头，后面的单元就复用。
+// 全局变量不在 Resolver 的作用域里，所以每个单元单独做变量解析，只有重新解析的单元要再做一遍。
+// 和完整的流水线一样，整篇有词法或语法错误时不做变量解析：这时新解析的单元先不解析变量，
+// 等错误都改掉了再补上。错误信息按单元保存，行号变了的有错单元会重新解析一遍好刷新信息。
+//
+// 复用的记号和语法树不复制，行号变了就原地改 Token.line，所以 edit 和 statements 返回的
+// List<Stmt> 只在下一次 edit 之前有效，之后里面的行号可能已经变了。
+//
+// 内联和外提会改写语法树，这里不做，运行前交给 Lox / LoxEngine 那条完整的流水线。
+final class LoxDocument {
+    private static final class Unit {
+        int first;  // 第一个记号
+        int end;    // 下一个单元的第一个记号
+        Stmt stmt;  // 有语法错误时是 null，或者里面有 null
+        String syntax;  // 语法错误
+        String resolve = null;  // 变量解析的错误，还没做变量解析时是 null
+
+        Unit(int first, int end, Stmt stmt, String syntax) {
+            this.first = first;
+            this.end = end;
+            this.stmt = stmt;
+            this.syntax = syntax;
+        }
+
+        boolean hadError() {
+            return !syntax.isEmpty() || (resolve != null && !resolve.isEmpty());
+        }
+    }
+
+    private String source;
+    // 最后一个是 EOF。starts[i] 是第 i 个记号在 source 里的开始位置，EOF 的是 source.length()
+    private ArrayList<Token> tokens = new ArrayList<>();
+    private int[] starts = new int[0];
+    private String lexErrors = "";
+    private ArrayList<Unit> units = new ArrayList<>();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final PrintStream err = new PrintStream(buffer, true, StandardCharsets.UTF_8);
+
+    // 最近一次 edit 重新扫描的记号数和重新解析的顶层声明数
+    int rescanned = 0;
+    int reparsed = 0;
+
+    LoxDocument(String source) {
+        this.source = source;
+        rebuild();
+    }
+
+    String source() {
+        return source;
+    }
+
+    // 有错误时里面的语法树不一定做过变量解析。只在下一次 edit 之前有效，见类的注释
+    List<Stmt> statements() {
+        List<Stmt> statements = new ArrayList<>(units.size());
+        for (Unit unit : units) statements.add(unit.stmt);
+        return statements;
+    }
+
+    boolean hadError() {
+        if (!lexErrors.isEmpty()) return true;
+        for (Unit unit : units) {
+            if (unit.hadError()) return true;
+        }
+        return false;
+    }
+
+    // 和整篇扫描、解析、变量解析时报告的错误一样：先是词法错误，再是各条声明的语法错误；
+    // 都没有时才是变量解析的错误
+    String errors() {
+        StringBuilder errors = new StringBuilder(lexErrors);
+        for (Unit unit : units) errors.append(unit.syntax);
+        if (errors.length() > 0) return errors.toString();
+        for (Unit unit : units) errors.append(unit.resolve);
+        return errors.toString();
+    }
+
+    private boolean syntaxError() {
+        if (!lexErrors.isEmpty()) return true;
+        for (Unit unit : units) {
+            if (!unit.syntax.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    // 删掉 offset 开始的 deleted 个字符，插入 inserted，返回新的顶层声明（只在下一次 edit 之前有效）
+    List<Stmt> edit(int offset, int deleted, String inserted) {
+        if (offset < 0 || deleted < 0 || offset + deleted > source.length()) {
+            throw new IndexOutOfBoundsException(
+                "Edit " + offset + "+" + deleted + " outside document of length " + source.length() + ".");
+        }
+        String removed = source.substring(offset, offset + deleted);
+        source = source.substring(0, offset) + inserted + source.substring(offset + deleted);
+        if (!lexErrors.isEmpty()) {
+            rebuild();
+            return statements();
+        }
+
+        int delta = inserted.length() - deleted;
+        int lineDelta = newlines(inserted) - newlines(removed);
+
+        // 从 offset 之前倒数第二个记号重新扫描，前面不够两个记号就从头扫（改动可能在开头的注释里）
+        int restart = before(offset) - 1;
+        ErrorReporter reporter = reporter();
+        Scanner scanner;
+        if (restart < 0) {
+            restart = 0;
+            scanner = new Scanner(source, reporter);
+        } else {
+            // 记号的行号是它结尾所在的行，跨行的字符串要减掉里面的换行
+            Token from = tokens.get(restart);
+            scanner = new Scanner(source, reporter, starts[restart], from.line - newlines(from.lexeme));
+        }
+        List<Token> scanned = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        int resume = restart;  // 能接着复用的第一个旧记号
+        while (true) {
+            Token token = scanner.next();
+            int start = scanner.start();
+            if (reporter.hadError) {
+                rebuild();
+                return statements();
+            }
+            if (start >= offset + inserted.length()) {
+                while (starts[resume] < offset + deleted || starts[resume] + delta < start) resume++;
+                if (starts[resume] + delta == start) break;
+            }
+            scanned.add(token);
+            offsets.add(start);
+        }
+        rescanned = scanned.size();
+
+        // 拼出新的记号表：[0, restart) 不变，[restart, restart + scanned) 是新扫的，后面是挪过的旧记号
+        // 敲一个字符通常不改变记号个数，这时原地改
+        int shift = restart + scanned.size() - resume;
+        int[] moved = shift == 0 ? starts : new int[starts.length + shift];
+        System.arraycopy(starts, 0, moved, 0, restart);
+        for (int i = 0; i < offsets.size(); i++) moved[restart + i] = offsets.get(i);
+        for (int i = resume; i < starts.length; i++) {
+            moved[i + shift] = starts[i] + delta;
+            if (lineDelta != 0) tokens.get(i).line += lineDelta;
+        }
+        starts = moved;
+        if (shift == 0) {
+            for (int i = 0; i < scanned.size(); i++) tokens.set(restart + i, scanned.get(i));
+        } else {
+            List<Token> damaged = tokens.subList(restart, resume);
+            damaged.clear();
+            damaged.addAll(scanned);
+        }
+
+        reparse(restart, restart + scanned.size(), shift, lineDelta);
+        resolve();
+        return statements();
+    }
+
+    // 新的记号 [from, to) 是重新扫描的，之后的记号比原来往后挪了 shift 个
+    private void reparse(int from, int to, int shift, int lineDelta) {
+        // 第一个读到过 from 的单元：单元的解析会多看一眼 end 那个记号
+        int first = 0;
+        while (first < units.size() && units.get(first).end < from) first++;
+
+        // 改动之后第一个完整保留下来的旧单元
+        int resume = first;
+        while (resume < units.size() && units.get(resume).first < to - shift) resume++;
+
+        List<Unit> parsed = new ArrayList<>();
+        int position = first < units.size() ? units.get(first).first : 0;
+        int eof = tokens.size() - 1;
+        while (true) {
+            // 新单元跨过去了的旧单元都作废
+            while (resume < units.size() && units.get(resume).first + shift < position) resume++;
+            if (position >= eof) break;
+            if (resume < units.size() && units.get(resume).first + shift == position) break;
+            Unit unit = parse(position);
+            parsed.add(unit);
+            position = unit.end;
+        }
+        reparsed = parsed.size();
+
+        for (int i = resume; i < units.size(); i++) {
+            Unit unit = units.get(i);
+            unit.first += shift;
+            unit.end += shift;
+            if (lineDelta != 0 && unit.hadError()) units.set(i, parse(unit.first));
+        }
+        List<Unit> damaged = units.subList(first, Math.max(first, resume));
+        damaged.clear();
+        damaged.addAll(parsed);
+    }
+
+    private void rebuild() {
+        ErrorReporter reporter = reporter();
+        Scanner scanner = new Scanner(source, reporter);
+        tokens = new ArrayList<>();
+        int[] offsets = new int[16];
+        while (true) {
+            Token token = scanner.next();
+            if (tokens.size() == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[tokens.size()] = scanner.start();
+            tokens.add(token);
+            if (token.type == EOF) break;
+        }
+        starts = Arrays.copyOf(offsets, tokens.size());
+        lexErrors = errors(reporter);
+        rescanned = tokens.size();
+
+        units = new ArrayList<>();
+        int position = 0;
+        while (position < tokens.size() - 1) {
+            Unit unit = parse(position);
+            units.add(unit);
+            position = unit.end;
+        }
+        reparsed = units.size();
+        resolve();
+    }
+
+    // 解析一条顶层声明，变量解析留给 resolve
+    private Unit parse(int first) {
+        ErrorReporter reporter = reporter();
+        Parser parser = new Parser(tokens, reporter, first);
+        Stmt stmt = parser.next();
+        return new Unit(first, parser.position(), stmt, errors(reporter));
+    }
+
+    // 整篇没有词法和语法错误时，给还没做变量解析的单元补上
+    private void resolve() {
+        if (syntaxError()) return;
+        for (Unit unit : units) {
+            if (unit.resolve != null) continue;
+            ErrorReporter reporter = reporter();
+            new Resolver(reporter).resolve(List.of(unit.stmt));
+            unit.resolve = errors(reporter);
+        }
+    }
+
+    // 每个阶段、每个单元的错误先写进同一个缓冲区，取出来以后清空
+    private ErrorReporter reporter() {
+        buffer.reset();
+        return new ErrorReporter(err);
+    }
+
+    private String errors(ErrorReporter reporter) {
+        return reporter.hadError ? buffer.toString(StandardCharsets.UTF_8) : "";
+    }
+
+    // 开始位置在 offset 之前的最后一个记号，没有就是 -1
+    private int before(int offset) {
+        int low = -1;
+        int high = starts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] < offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static int newlines(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,145 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// 嵌入用的入口：engine -> context -> compiled script。
+// LoxEngine 可以被多个线程共享（唯一的可变状态是线程安全的 ScriptCache）；
+// 编译出的 LoxScript 也可以在多个上下文之间共享。
+public final class LoxEngine {
+  private static final int DEFAULT_CACHE_SIZE = 256;
+
+  private final ScriptCache cache;
+  private final Metrics metrics = new Metrics();
+
+  public LoxEngine() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  public LoxEngine(int cacheSize) {
+    this.cache = new ScriptCache(cacheSize);
+  }
+
+  // 和 compile() 一样，但同样的源码只编译一次：结果放在 LRU 缓存里，
+  // 之后每次求值只剩执行的开销。
+  public LoxScript prepare(String source) {
+    LoxScript script = cache.get(source);
+    if (script != null) return script;
+    return cache.putIfAbsent(source, compile(source));
+  }
+
+  public ScriptCache cache() {
+    return cache;
+  }
+
+  // 这个引擎上所有编译和运行的累计指标
+  public LoxMetricsMBean metrics() {
+    return metrics;
+  }
+
+  // 把指标注册成 JMX MBean，长期运行的宿主可以用 jconsole 等工具查看。
+  public ObjectName registerMBean(String name) throws JMException {
+    ObjectName objectName = new ObjectName(
+        "com.craftinginterpreters.lox:type=LoxMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(
+        new StandardMBean(metrics, LoxMetricsMBean.class), objectName);
+    return objectName;
+  }
+
+  // 扫描、解析并完成变量解析。有错误时抛出 CompileError。
+  public LoxScript compile(String source) {
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    ErrorReporter reporter = new ErrorReporter(
+        new PrintStream(errors, true, StandardCharsets.UTF_8));
+
+    long start = System.nanoTime();
+    List<Token> tokens = new Scanner(source, reporter).scanTokens();
+    long scanned = System.nanoTime();
+    List<Stmt> statements = new Parser(tokens, reporter).parse();
+    long parsed = System.nanoTime();
+    Resolver resolver = new Resolver(reporter);
+    if (!reporter.hadError) {
+      resolver.resolve(statements);
+    }
+    if (reporter.hadError) {
+      throw new CompileError(errors.toString(StandardCharsets.UTF_8).trim());
+    }
+    // 嵌套得很深的生成代码跳过递归遍历的优化，见 Resolver.deep
+    if (!resolver.deep) {
+      try {
+        Inliner.inline(statements);
+        if (Hoister.hoist(statements)) new Resolver(reporter).resolve(statements);
+      } catch (StackOverflowError e) {
+        resolver.tooDeep(Resolver.deepest(statements));
+      }
+      if (reporter.hadError) {
+        throw new CompileError(errors.toString(StandardCharsets.UTF_8).trim());
+      }
+    }
+    long resolved = System.nanoTime();
+
+    metrics.recordFrontEnd(scanned - start, parsed - scanned, resolved - parsed,
+        tokens.size(), resolver.nodes, resolver.locals);
+    return new LoxScript(statements);
+  }
+
+  public Prelude loadPrelude(String source) {
+    return loadPrelude(source, System.out);
+  }
+
+  // 执行一次 prelude 并冻结它的全局作用域，prelude 里 print 的输出写到 out。
+  // 编译错误抛出 CompileError，运行时错误抛出 IllegalStateException。
+  public Prelude loadPrelude(String source, PrintStream out) {
+    LoxScript script = compile(source);
+
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    ErrorReporter reporter = new ErrorReporter(
+        new PrintStream(errors, true, StandardCharsets.UTF_8));
+    Interpreter interpreter = new Interpreter(reporter, out);
+    interpreter.interpret(script.statements);
+    if (reporter.hadRuntimeError) {
+      throw new IllegalStateException(
+          "Prelude failed: " + errors.toString(StandardCharsets.UTF_8).trim());
+    }
+
+    interpreter.globals.freeze();
+    return new Prelude(interpreter.globals, source, script.statements);
+  }
+
+  // 把 prelude 执行后的全局状态写成快照文件，下次启动用 loadSnapshot() 恢复，不必再执行 prelude。
+  public void saveSnapshot(Prelude prelude, Path path) throws IOException {
+    try (OutputStream out = Files.newOutputStream(path)) {
+      Snapshot.write(prelude, out);
+    }
+  }
+
+  public Prelude loadSnapshot(Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      return Snapshot.read(this, in);
+    }
+  }
+
+  public LoxContext newContext() {
+    return newContext(System.out, System.err);
+  }
+
+  public LoxContext newContext(PrintStream out, PrintStream err) {
+    return new LoxContext(null, out, err, metrics);
+  }
+
+  public LoxContext newContext(Prelude prelude, PrintStream out, PrintStream err) {
+    return new LoxContext(prelude, out, err, metrics);
+  }
+}
@@ -3,8 +3,10 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-  private final Stmt.Function declaration;
-  private final Environment closure;
+  final Stmt.Function declaration;
+  final Environment closure;
+  // 分层执行用的调用计数，见 Tiering
+  private int invocations = 0;
 
 
   LoxFunction(Stmt.Function declaration, Environment closure) {
@@ -15,9 +17,20 @@ class LoxFunction implements LoxCallable {
   @Override
   public Object call(Interpreter interpreter,
                      List<Object> arguments) {
+    // 已经编译过就直接走编译后的代码；开着分析器时留在 AST 解释器里，行号和分配才统计得到
+    CompiledFunction compiled = declaration.compiled;
+    if (compiled != null && interpreter.canUseCompiled()) {
+      return compiled.call(interpreter, closure, arguments);
+    }
+    if (Tiering.enabled && ++invocations == Tiering.callThreshold) {
+      Tiering.request(declaration);
+    }
+
     // Environment environment = new Environment(interpreter.globals);
-    // 每个函数有自己的环境
-    Environment environment = new Environment(closure);
+    // 每个函数有自己的环境；不会被闭包捕获的从解释器的帧池里取，返回时还回去
+    boolean recyclable = declaration.recyclable;
+    Environment environment = recyclable
+        ? interpreter.acquireFrame(closure) : interpreter.newEnvironment(closure);
     for (int i = 0; i < declaration.params.size(); i++) {
       environment.define(declaration.params.get(i).lexeme,
           arguments.get(i));
@@ -26,10 +39,18 @@ class LoxFunction implements LoxCallable {
     // 当捕获一个返回异常时，它会取出其中的值并将其作为call()方法的返回值。
     // 如果没有捕获任何异常，意味着函数到达了函数体的末尾，而且没有遇到return语句。
     // 在这种情况下，隐式地返回nil。
+    ShadowStack stack = interpreter.shadowStack;
+    if (stack != null) stack.push(this);
+    LoxFunction enclosing = interpreter.executing;
+    interpreter.executing = this;
     try {
         interpreter.executeBlock(declaration.body, environment);
     } catch (Return returnValue) {
         return returnValue.value;
+    } finally {
+        interpreter.executing = enclosing;
+        if (stack != null) stack.pop();
+        if (recyclable) interpreter.releaseFrame(environment);
     }
     return null;
   }
@@ -0,0 +1,27 @@
+package com.craftinginterpreters.lox;
+
+// 通过 JMX 暴露的累计指标，见 LoxEngine.registerMBean()。
+// 时间单位是毫秒，计数都是从创建（或上次 reset）以来的总和。
+public interface LoxMetricsMBean {
+  long getCompilations();
+  long getExecutions();
+
+  double getScanMillis();
+  double getParseMillis();
+  double getResolveMillis();
+  double getExecuteMillis();
+
+  long getTokensScanned();
+  long getAstNodes();
+  long getResolvedLocals();
+  long getCallsExecuted();
+  long getEnvironmentsAllocated();
+
+  // 分层执行的编译队列（全局的，见 Tiering）
+  long getTierRequested();
+  long getTierCompiled();
+  long getTierRejected();
+  int getTierQueueLength();
+
+  void reset();
+}
@@ -0,0 +1,18 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// 标记一个静态方法，让 LoxContext.defineNatives 把它绑定成 Lox 的全局原生函数。
+// 名字默认是方法名，参数个数就是 Java 方法的参数个数。
+//
+// 参数可以是 double、int（必须是整数）、boolean（按 Lox 的真假判断）、String 或 Object（nil、Boolean、Double、String）；
+// 返回值可以是 void（返回 nil）、double、int、long、boolean、String 或 Object。
+// 方法抛出的 RuntimeException 会变成调用处的运行时错误，异常信息就是错误信息。
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface LoxNative {
+  String value() default "";
+}
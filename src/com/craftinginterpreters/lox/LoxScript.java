@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.List;
+
+// 编译好的脚本：已经完成变量解析的语法树。
+// 解析结果记在语法树节点上，之后只读，所以同一个 LoxScript 可以在多个上下文、多个线程里同时运行。
+public final class LoxScript {
+  final List<Stmt> statements;
+
+  LoxScript(List<Stmt> statements) {
+    this.statements = Collections.unmodifiableList(statements);
+  }
+}
@@ -0,0 +1,135 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Lox 的字符串值。
+// "+" 拼接时不复制字符，只生成一个指向左右两边的 rope 节点，所以循环里的 s = s + x 是 O(1) 的。
+// 只有在 print、比较或求哈希时才把 rope 压平成一个 String，压平后的结果和它的哈希会缓存下来。
+final class LoxString {
+  // 只驻留短的字面量，长的很少重复，放进表里只会占地方
+  private static final int MAX_INTERN_LENGTH = 32;
+  // 值是弱引用：用到某个字面量的脚本都被回收之后，条目也会被清掉，长时间运行的宿主里表不会一直涨
+  private static final Map<String, WeakReference<LoxString>> interned = new WeakHashMap<>();
+
+  private final int length;
+  // 还没压平的拼接结果是 null。
+  // volatile 是因为同一个 rope 可能被多个线程同时压平：先写 hash 和 flat 再清空 left/right，
+  // 读到 left 为 null 的线程一定能看到 flat，读到 flat 的线程一定能看到 hash。
+  private volatile String flat;
+  private volatile LoxString left;
+  private volatile LoxString right;
+  // 有 flat 时就已经算好了；0 也可能表示还没算，和 java.lang.String 一样
+  private int hash;
+
+  private LoxString(String flat) {
+    this.hash = flat.hashCode();
+    this.flat = flat;
+    this.length = flat.length();
+  }
+
+  private LoxString(LoxString left, LoxString right) {
+    this.left = left;
+    this.right = right;
+    this.length = left.length + right.length;
+  }
+
+  static LoxString of(String value) {
+    return new LoxString(value);
+  }
+
+  // 扫描器给字符串字面量用，重复的字面量共用同一个值
+  static LoxString intern(String value) {
+    if (value.length() > MAX_INTERN_LENGTH) return new LoxString(value);
+    synchronized (interned) {
+      WeakReference<LoxString> reference = interned.get(value);
+      LoxString string = reference == null ? null : reference.get();
+      if (string == null) {
+        // 键要换成 string.flat 本身（put 不会替换已有的键），这样 string 还活着时键也不会被回收
+        string = new LoxString(value);
+        interned.remove(value);
+        interned.put(value, new WeakReference<>(string));
+      }
+      return string;
+    }
+  }
+
+  static LoxString concat(LoxString left, LoxString right) {
+    if (left.length == 0) return right;
+    if (right.length == 0) return left;
+    return new LoxString(left, right);
+  }
+
+  int length() {
+    return length;
+  }
+
+  // 把 rope 压平。用显式栈遍历，避免很长的拼接链把 Java 栈撑爆。
+  private String flatten() {
+    String result = flat;
+    if (result != null) return result;
+
+    StringBuilder builder = new StringBuilder(length);
+    Deque<LoxString> stack = new ArrayDeque<>();
+    stack.push(this);
+    while (!stack.isEmpty()) {
+      LoxString node = stack.pop();
+      String piece = node.flat;
+      if (piece == null) {
+        LoxString l = node.left;
+        LoxString r = node.right;
+        if (l != null && r != null) {
+          stack.push(r);
+          stack.push(l);
+          continue;
+        }
+        // 另一个线程刚刚压平了这个节点
+        piece = node.flat;
+      }
+      builder.append(piece);
+    }
+
+    result = builder.toString();
+    hash = result.hashCode();
+    flat = result;
+    // 压平后子节点就不需要了，让它们可以被回收
+    left = null;
+    right = null;
+    return result;
+  }
+
+  boolean contentEquals(LoxString other) {
+    if (this == other) return true;
+    if (length != other.length) return false;
+    String text = flatten();
+    String otherText = other.flatten();
+    // 压平时哈希已经算好了，不相等就不必比较字符
+    if (hashCode() != other.hashCode()) return false;
+    return text.equals(otherText);
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    if (this == object) return true;
+    if (!(object instanceof LoxString)) return false;
+    return contentEquals((LoxString)object);
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      h = flatten().hashCode();
+      hash = h;
+    }
+    return h;
+  }
+
+  @Override
+  public String toString() {
+    return flatten();
+  }
+}
@@ -0,0 +1,73 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// 各阶段耗时和计数的累计值。
+// 热路径上只有解释器里的两个普通 long 字段自增（calls、environments），
+// 这里的 LongAdder 每次编译/运行只更新一次，多个上下文并发记录也不会争用。
+class Metrics implements LoxMetricsMBean {
+  private final LongAdder compilations = new LongAdder();
+  private final LongAdder executions = new LongAdder();
+  private final LongAdder scanNanos = new LongAdder();
+  private final LongAdder parseNanos = new LongAdder();
+  private final LongAdder resolveNanos = new LongAdder();
+  private final LongAdder executeNanos = new LongAdder();
+  private final LongAdder tokens = new LongAdder();
+  private final LongAdder nodes = new LongAdder();
+  private final LongAdder locals = new LongAdder();
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder environments = new LongAdder();
+
+  void recordFrontEnd(long scan, long parse, long resolve,
+                      int tokenCount, int nodeCount, int localCount) {
+    compilations.increment();
+    scanNanos.add(scan);
+    parseNanos.add(parse);
+    resolveNanos.add(resolve);
+    tokens.add(tokenCount);
+    nodes.add(nodeCount);
+    locals.add(localCount);
+  }
+
+  void recordExecution(long execute, long callCount, long environmentCount) {
+    executions.increment();
+    executeNanos.add(execute);
+    calls.add(callCount);
+    environments.add(environmentCount);
+  }
+
+  // --timings 的输出格式
+  static String format(long scan, long parse, long resolve, long execute,
+                       int tokens, int nodes, int locals, long calls, long environments) {
+    return String.format(
+        "[timings] scan %.3f ms, parse %.3f ms, resolve %.3f ms, execute %.3f ms%n" +
+        "[counters] tokens %d, AST nodes %d, resolved locals %d, calls %d, environments %d",
+        scan / 1e6, parse / 1e6, resolve / 1e6, execute / 1e6,
+        tokens, nodes, locals, calls, environments);
+  }
+
+  @Override public long getCompilations() { return compilations.sum(); }
+  @Override public long getExecutions() { return executions.sum(); }
+  @Override public double getScanMillis() { return scanNanos.sum() / 1e6; }
+  @Override public double getParseMillis() { return parseNanos.sum() / 1e6; }
+  @Override public double getResolveMillis() { return resolveNanos.sum() / 1e6; }
+  @Override public double getExecuteMillis() { return executeNanos.sum() / 1e6; }
+  @Override public long getTokensScanned() { return tokens.sum(); }
+  @Override public long getAstNodes() { return nodes.sum(); }
+  @Override public long getResolvedLocals() { return locals.sum(); }
+  @Override public long getCallsExecuted() { return calls.sum(); }
+  @Override public long getEnvironmentsAllocated() { return environments.sum(); }
+  @Override public long getTierRequested() { return Tiering.requested(); }
+  @Override public long getTierCompiled() { return Tiering.compiled(); }
+  @Override public long getTierRejected() { return Tiering.rejected(); }
+  @Override public int getTierQueueLength() { return Tiering.queueLength(); }
+
+  @Override
+  public void reset() {
+    for (LongAdder adder : new LongAdder[] {
+        compilations, executions, scanNanos, parseNanos, resolveNanos, executeNanos,
+        tokens, nodes, locals, calls, environments }) {
+      adder.reset();
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+// 用 MethodHandle 绑定的原生函数，见 LoxNative。
+// 参数个数、每个参数和返回值的转换在绑定时就确定下来，拼成一个 (Object...)Object 的方法句柄，
+// 调用时只剩比较一次参数个数和一次 invokeExact：不用 List 装参数，也不用每次按 Java 类型分派。
+// 编译成字节码的调用点还可以把 site() 当常量直接调用，JIT 能把整个 Java 方法内联进来。
+// 没有可变状态，同一个对象可以定义在多个解释器里。
+// 标准库里的函数还可以用 LoxString 做参数，直接拿到 Lox 的字符串值，不用压平 rope；
+// 可以用 LoxArray 和 LoxDataset 做参数；Object 的参数和返回值原样传递，不在 Lox 值和 Java 值之间转换。
+final class NativeFunction implements LoxCallable {
+  private static final MethodHandle NUMBER;
+  private static final MethodHandle INTEGER;
+  private static final MethodHandle TRUTHY;
+  private static final MethodHandle STRING;
+  private static final MethodHandle LOX_STRING;
+  private static final MethodHandle LOX_ARRAY;
+  private static final MethodHandle LOX_DATASET;
+  private static final MethodHandle TO_JAVA;
+  private static final MethodHandle FROM_STRING;
+  private static final MethodHandle FROM_INT;
+  private static final MethodHandle FROM_LONG;
+  private static final MethodHandle TO_LOX;
+  private static final MethodHandle FAIL;
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      NUMBER = lookup.findStatic(NativeFunction.class, "number",
+          MethodType.methodType(double.class, Object.class, int.class));
+      INTEGER = lookup.findStatic(NativeFunction.class, "integer",
+          MethodType.methodType(int.class, Object.class, int.class));
+      TRUTHY = lookup.findStatic(Interpreter.class, "isTruthy",
+          MethodType.methodType(boolean.class, Object.class));
+      STRING = lookup.findStatic(NativeFunction.class, "string",
+          MethodType.methodType(String.class, Object.class, int.class));
+      LOX_STRING = lookup.findStatic(NativeFunction.class, "loxString",
+          MethodType.methodType(LoxString.class, Object.class, int.class));
+      LOX_ARRAY = lookup.findStatic(NativeFunction.class, "loxArray",
+          MethodType.methodType(LoxArray.class, Object.class, int.class));
+      LOX_DATASET = lookup.findStatic(NativeFunction.class, "loxDataset",
+          MethodType.methodType(LoxDataset.class, Object.class, int.class));
+      TO_JAVA = lookup.findStatic(LoxContext.class, "toJava",
+          MethodType.methodType(Object.class, Object.class));
+      FROM_STRING = lookup.findStatic(LoxString.class, "of",
+          MethodType.methodType(LoxString.class, String.class));
+      FROM_INT = MethodHandles.explicitCastArguments(MethodHandles.identity(double.class),
+          MethodType.methodType(double.class, int.class));
+      FROM_LONG = MethodHandles.explicitCastArguments(MethodHandles.identity(double.class),
+          MethodType.methodType(double.class, long.class));
+      TO_LOX = lookup.findStatic(LoxContext.class, "toLox",
+          MethodType.methodType(Object.class, Object.class));
+      FAIL = lookup.findStatic(NativeFunction.class, "fail",
+          MethodType.methodType(Object.class, NativeFunction.class, Token.class, Throwable.class));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  final String name;
+  private final int arity;
+  // (Object...)Object，每个参数一个 Object
+  private final MethodHandle target;
+  // (Object[])Object
+  private final MethodHandle spread;
+
+  private NativeFunction(String name, int arity, MethodHandle target) {
+    this.name = name;
+    this.arity = arity;
+    this.target = target;
+    this.spread = target.asSpreader(Object[].class, arity);
+  }
+
+  // 把 lookup 所在的类里所有带 @LoxNative 的静态方法定义成全局函数
+  static void define(Environment globals, MethodHandles.Lookup lookup) {
+    for (NativeFunction function : bind(lookup)) {
+      globals.define(function.name, function);
+    }
+  }
+
+  static List<NativeFunction> bind(MethodHandles.Lookup lookup) {
+    List<NativeFunction> functions = new ArrayList<>();
+    for (Method method : lookup.lookupClass().getDeclaredMethods()) {
+      LoxNative annotation = method.getAnnotation(LoxNative.class);
+      if (annotation == null) continue;
+      String name = annotation.value().isEmpty() ? method.getName() : annotation.value();
+      if (!Modifier.isStatic(method.getModifiers())) {
+        throw new IllegalArgumentException("Native function '" + name + "' must be static.");
+      }
+      MethodHandle handle;
+      try {
+        handle = lookup.unreflect(method);
+      } catch (IllegalAccessException e) {
+        throw new IllegalArgumentException("Can't access native function '" + name + "'.", e);
+      }
+      // 标准库自己（和 lox 包里的类）拿到的是原样的 Lox 值
+      boolean raw = lookup.lookupClass().getPackageName()
+          .equals(NativeFunction.class.getPackageName());
+      Class<?>[] parameters = method.getParameterTypes();
+      for (int i = 0; i < parameters.length; i++) {
+        MethodHandle argument = argument(name, parameters[i], i, raw);
+        if (argument != null) handle = MethodHandles.filterArguments(handle, i, argument);
+      }
+      MethodHandle result = result(name, method.getReturnType(), raw);
+      if (result != null) handle = MethodHandles.filterReturnValue(handle, result);
+      if (method.getReturnType() == void.class) {
+        handle = MethodHandles.filterReturnValue(handle, MethodHandles.constant(Object.class, null));
+      }
+      handle = handle.asType(handle.type().changeReturnType(Object.class));
+      functions.add(new NativeFunction(name, parameters.length, handle));
+    }
+    return functions;
+  }
+
+  // Lox 值 -> 参数类型，转不了时抛 ArgumentError；不用转换时是 null
+  private static MethodHandle argument(String name, Class<?> type, int index, boolean raw) {
+    if (type == double.class) return MethodHandles.insertArguments(NUMBER, 1, index);
+    if (type == int.class) return MethodHandles.insertArguments(INTEGER, 1, index);
+    if (type == boolean.class) return TRUTHY;
+    if (type == String.class) return MethodHandles.insertArguments(STRING, 1, index);
+    if (type == LoxString.class) return MethodHandles.insertArguments(LOX_STRING, 1, index);
+    if (type == LoxArray.class) return MethodHandles.insertArguments(LOX_ARRAY, 1, index);
+    if (type == LoxDataset.class) return MethodHandles.insertArguments(LOX_DATASET, 1, index);
+    if (type == Object.class) return raw ? null : TO_JAVA;
+    throw new IllegalArgumentException(
+        "Native function '" + name + "' has unsupported parameter type " + type.getName() + ".");
+  }
+
+  // 返回值 -> Lox 值，不用转换时是 null
+  private static MethodHandle result(String name, Class<?> type, boolean raw) {
+    if (type == void.class || type == double.class || type == boolean.class ||
+        type == LoxString.class || type == LoxArray.class || type == LoxDataset.class ||
+        (type == Object.class && raw)) {
+      return null;
+    }
+    if (type == int.class) return FROM_INT;
+    if (type == long.class) return FROM_LONG;
+    if (type == String.class) return FROM_STRING;
+    if (type == Object.class) return TO_LOX;
+    throw new IllegalArgumentException(
+        "Native function '" + name + "' has unsupported return type " + type.getName() + ".");
+  }
+
+  @Override
+  public int arity() {
+    return arity;
+  }
+
+  // 所有调用都经过 Interpreter.invoke 走下面的 invoke，有调用处的记号可以报错；这里只是满足接口
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    return invoke(arguments.toArray(), null);
+  }
+
+  Object invoke(Object[] arguments, Token paren) {
+    if (arguments.length != arity) {
+      throw new RuntimeError(paren, "Expected " +
+          arity + " arguments but got " + arguments.length + ".");
+    }
+    try {
+      return (Object)spread.invokeExact(arguments);
+    } catch (Throwable error) {
+      throw error(error, paren);
+    }
+  }
+
+  // 某个调用点专用的句柄，类型是 (Object...)Object，异常已经换成了报在 paren 上的运行时错误。
+  // 参数个数要由调用方保证
+  MethodHandle site(Token paren) {
+    MethodHandle handler = MethodHandles.insertArguments(FAIL, 0, this, paren);
+    handler = MethodHandles.dropArguments(handler, 1, target.type().parameterList());
+    return MethodHandles.catchException(target, Throwable.class, handler);
+  }
+
+  private static Object fail(NativeFunction function, Token paren, Throwable error) {
+    throw function.error(error, paren);
+  }
+
+  // 方法抛出的异常换成调用处的运行时错误，Error（比如栈溢出）原样抛出
+  private RuntimeError error(Throwable error, Token paren) {
+    if (error instanceof Error) throw (Error)error;
+    if (error instanceof RuntimeError) return (RuntimeError)error;
+    if (error instanceof ArgumentError) {
+      ArgumentError argument = (ArgumentError)error;
+      return new RuntimeError(paren, "Argument " + (argument.index + 1) + " to '" + name +
+          "' must be " + argument.expected + ".");
+    }
+    return new RuntimeError(paren, error.getMessage() != null ? error.getMessage() : error.toString());
+  }
+
+  @Override
+  public String toString() { return "<native fn>"; }
+
+  // 参数类型不对。不需要栈，invoke 里马上换成带调用处的 RuntimeError
+  private static final class ArgumentError extends RuntimeException {
+    final int index;
+    final String expected;
+
+    ArgumentError(int index, String expected) {
+      super(null, null, false, false);
+      this.index = index;
+      this.expected = expected;
+    }
+  }
+
+  private static double number(Object value, int index) {
+    if (value instanceof Double) return (double)value;
+    throw new ArgumentError(index, "a number");
+  }
+
+  private static int integer(Object value, int index) {
+    if (value instanceof Double) {
+      double number = (double)value;
+      if (number == (int)number) return (int)number;
+    }
+    throw new ArgumentError(index, "an integer");
+  }
+
+  private static String string(Object value, int index) {
+    if (value instanceof LoxString) return value.toString();
+    throw new ArgumentError(index, "a string");
+  }
+
+  private static LoxString loxString(Object value, int index) {
+    if (value instanceof LoxString) return (LoxString)value;
+    throw new ArgumentError(index, "a string");
+  }
+
+  private static LoxArray loxArray(Object value, int index) {
+    if (value instanceof LoxArray) return (LoxArray)value;
+    throw new ArgumentError(index, "an array");
+  }
+
+  private static LoxDataset loxDataset(Object value, int index) {
+    if (value instanceof LoxDataset) return (LoxDataset)value;
+    throw new ArgumentError(index, "a dataset");
+  }
+}
@@ -0,0 +1,160 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 内置的原生函数：数学、字符串、数组、数据文件和时间，见 NativeFunction；数字数组的批量运算在 NumericOps 里。
+// 只绑定一次，每个解释器（或 prelude）的全局作用域里定义的是同一批对象，
+// 所以创建上下文不用反射，编译后的代码也能认出它们（见 BytecodeCompiler.visitCallExpr）。
+final class NativeLibrary {
+  private static final Map<String, NativeFunction> functions = new LinkedHashMap<>();
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    for (Class<?> library : new Class<?>[] { NativeLibrary.class, NumericOps.class }) {
+      for (NativeFunction function : NativeFunction.bind(lookup.in(library))) {
+        functions.put(function.name, function);
+      }
+    }
+  }
+
+  private NativeLibrary() {}
+
+  static void define(Environment globals) {
+    for (NativeFunction function : functions.values()) {
+      globals.define(function.name, function);
+    }
+  }
+
+  // 名叫 name 的内置函数，没有时返回 null
+  static NativeFunction get(String name) {
+    return functions.get(name);
+  }
+
+  // 秒，墙上时间
+  @LoxNative
+  static double clock() {
+    return (double)System.currentTimeMillis() / 1000.0;
+  }
+
+  // 纳秒，只适合算时间差
+  @LoxNative
+  static double nanos() {
+    return System.nanoTime();
+  }
+
+  @LoxNative
+  static double sqrt(double x) {
+    return Math.sqrt(x);
+  }
+
+  @LoxNative
+  static double floor(double x) {
+    return Math.floor(x);
+  }
+
+  @LoxNative
+  static double ceil(double x) {
+    return Math.ceil(x);
+  }
+
+  @LoxNative
+  static double abs(double x) {
+    return Math.abs(x);
+  }
+
+  @LoxNative
+  static double pow(double x, double y) {
+    return Math.pow(x, y);
+  }
+
+  @LoxNative
+  static double min(double x, double y) {
+    return Math.min(x, y);
+  }
+
+  @LoxNative
+  static double max(double x, double y) {
+    return Math.max(x, y);
+  }
+
+  // 字符串、数组或数据集的长度。len 和 length 是同一个函数的两个名字，接受的值一样
+  @LoxNative
+  static int len(Object value) {
+    return size(value, "len");
+  }
+
+  @LoxNative
+  static int length(Object value) {
+    return size(value, "length");
+  }
+
+  // 字符串的长度是 LoxString 里记着的，拼接出来的 rope 不用压平
+  private static int size(Object value, String name) {
+    if (value instanceof LoxString) return ((LoxString)value).length();
+    if (value instanceof LoxArray) return ((LoxArray)value).size();
+    if (value instanceof LoxDataset) {
+      LoxDataset dataset = (LoxDataset)value;
+      if (dataset.closed()) throw new IllegalArgumentException("Dataset is closed.");
+      return dataset.size();
+    }
+    throw new IllegalArgumentException(
+        "Argument 1 to '" + name + "' must be a string, an array or a dataset.");
+  }
+
+  // 从 start 开始的 length 个字符
+  @LoxNative
+  static String substr(String s, int start, int length) {
+    if (start < 0 || length < 0 || start + length > s.length()) {
+      throw new IllegalArgumentException("Substring " + start + "+" + length +
+          " out of range for string of length " + s.length() + ".");
+    }
+    return s.substring(start, start + length);
+  }
+
+  // 加到末尾，返回新的长度
+  @LoxNative
+  static int push(LoxArray array, Object value) {
+    if (array.frozen()) throw new IllegalArgumentException(Interpreter.READ_ONLY_ARRAY);
+    array.push(value);
+    return array.size();
+  }
+
+  // 去掉并返回最后一个元素
+  @LoxNative
+  static Object pop(LoxArray array) {
+    if (array.frozen()) throw new IllegalArgumentException(Interpreter.READ_ONLY_ARRAY);
+    if (array.size() == 0) throw new IllegalArgumentException("Can't pop from an empty array.");
+    return array.pop();
+  }
+
+  // length 个 fill 组成的数组
+  @LoxNative
+  static LoxArray array(int length, Object fill) {
+    if (length < 0) throw new IllegalArgumentException("Array length must not be negative.");
+    return new LoxArray(length, fill);
+  }
+
+  // 把小端 double 组成的二进制文件映射成只读的数据集，见 LoxDataset
+  @LoxNative
+  static LoxDataset openDataset(String path) {
+    try {
+      return LoxDataset.open(Paths.get(path), Interpreter.current());
+    } catch (NoSuchFileException e) {
+      throw new IllegalArgumentException("Dataset file '" + path + "' not found.");
+    } catch (IOException | InvalidPathException e) {
+      throw new IllegalArgumentException("Can't open dataset '" + path + "': " + e.getMessage());
+    }
+  }
+
+  // 马上解除映射，之后再读会报错。别的上下文可能还在读的数据集不能 close，见 LoxDataset
+  @LoxNative
+  static void close(LoxDataset dataset) {
+    dataset.close(Interpreter.current());
+  }
+}
@@ -0,0 +1,304 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.DoubleBuffer;
+
+// 对整个数字数组的批量运算，作为内置函数定义在全局作用域里（见 NativeLibrary）：
+//   sum(a)  dot(a, b)  minOf(a)  maxOf(a)
+//   add(a, b)  mul(a, b)  axpy(k, x, y) = k*x + y  scale(a, k) = a*k  offset(a, k) = a+k
+// 逐元素的运算返回新数组，不改参数；两个数组的长度必须相同。
+// 元素全是数字的数组（LoxArray.packed）直接在 double[] 上算，不复制也不装箱；
+// 存成 Object[] 的数组先检查每个元素是数字，拷成 double[] 再算。
+// 参数也可以是数据集（LoxDataset）：求和和最值按块直接读映射的内存，点积一段一段地读，
+// 都不把数据集复制到堆上；逐元素的运算把数据集读进结果数组再算。
+//
+// 运行时加载了 jdk.incubator.vector（java --add-modules jdk.incubator.vector）时用 VectorOps 里的 SIMD 版本，
+// 否则用下面的标量循环，启动时选定一次。
+// 标量循环都是简单的计数循环，逐元素的运算 C2 会自动向量化（SuperWord）；
+// 求和、点积和最值是归约，按顺序累加时 C2 不会向量化，所以展开成 4 路独立的累加器。
+// 两种归约的加法顺序都和按顺序累加的 Lox 循环不同，结果可能在最后几位上不同。
+final class NumericOps {
+  // 有数据集参数的点积每次读多少个数
+  private static final int BLOCK = 4096;
+  // 没有这个模块时 VectorOps 不会被加载
+  static final boolean VECTOR = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+  private NumericOps() {}
+
+  @LoxNative
+  static double sum(Object a) {
+    int n = size(a, 1, "sum");
+    if (a instanceof LoxDataset) {
+      LoxDataset d = (LoxDataset)a;
+      double s = 0;
+      for (int c = 0; c < d.chunks(); c++) {
+        int length = d.chunk(c).limit();
+        s += VECTOR ? VectorOps.sum(d.bytes(c), length) : sum(d.chunk(c), length);
+      }
+      return s;
+    }
+    double[] x = numbers((LoxArray)a);
+    return VECTOR ? VectorOps.sum(x, n) : sum(x, n);
+  }
+
+  @LoxNative
+  static double dot(Object a, Object b) {
+    int n = sameLength(a, 1, b, 2, "dot");
+    if (a instanceof LoxArray && b instanceof LoxArray) {
+      double[] x = numbers((LoxArray)a);
+      double[] y = numbers((LoxArray)b);
+      return VECTOR ? VectorOps.dot(x, y, n) : dot(x, y, n);
+    }
+    // 有数据集时一段一段读到两个小数组里算，不把整个数据集复制到堆上
+    double[] x = a instanceof LoxArray ? numbers((LoxArray)a) : null;
+    double[] y = b instanceof LoxArray ? numbers((LoxArray)b) : null;
+    double[] xs = new double[Math.min(BLOCK, n)];
+    double[] ys = new double[xs.length];
+    double s = 0;
+    for (int i = 0; i < n; i += BLOCK) {
+      int length = Math.min(BLOCK, n - i);
+      block(a, x, i, xs, length);
+      block(b, y, i, ys, length);
+      s += VECTOR ? VectorOps.dot(xs, ys, length) : dot(xs, ys, length);
+    }
+    return s;
+  }
+
+  @LoxNative
+  static double minOf(Object a) {
+    int n = size(a, 1, "minOf");
+    if (n == 0) throw new IllegalArgumentException("Can't take the minimum of an empty array.");
+    if (a instanceof LoxDataset) {
+      LoxDataset d = (LoxDataset)a;
+      double m = d.get(0);
+      for (int c = 0; c < d.chunks(); c++) {
+        int length = d.chunk(c).limit();
+        m = Math.min(m, VECTOR ? VectorOps.min(d.bytes(c), length) : min(d.chunk(c), length));
+      }
+      return m;
+    }
+    double[] x = numbers((LoxArray)a);
+    return VECTOR ? VectorOps.min(x, n) : min(x, n);
+  }
+
+  @LoxNative
+  static double maxOf(Object a) {
+    int n = size(a, 1, "maxOf");
+    if (n == 0) throw new IllegalArgumentException("Can't take the maximum of an empty array.");
+    if (a instanceof LoxDataset) {
+      LoxDataset d = (LoxDataset)a;
+      double m = d.get(0);
+      for (int c = 0; c < d.chunks(); c++) {
+        int length = d.chunk(c).limit();
+        m = Math.max(m, VECTOR ? VectorOps.max(d.bytes(c), length) : max(d.chunk(c), length));
+      }
+      return m;
+    }
+    double[] x = numbers((LoxArray)a);
+    return VECTOR ? VectorOps.max(x, n) : max(x, n);
+  }
+
+  // 逐元素的运算：数据集直接读进结果数组，在结果上原地算，两个参数都是数据集时才多一个临时数组
+
+  @LoxNative
+  static LoxArray add(Object a, Object b) {
+    int n = sameLength(a, 1, b, 2, "add");
+    double[] result = new double[n];
+    double[] x = numbers(a, result);
+    double[] y = numbers(b, x == result ? null : result);
+    if (VECTOR) {
+      VectorOps.add(x, y, result, n);
+    } else {
+      for (int i = 0; i < n; i++) result[i] = x[i] + y[i];
+    }
+    return new LoxArray(result);
+  }
+
+  @LoxNative
+  static LoxArray mul(Object a, Object b) {
+    int n = sameLength(a, 1, b, 2, "mul");
+    double[] result = new double[n];
+    double[] x = numbers(a, result);
+    double[] y = numbers(b, x == result ? null : result);
+    if (VECTOR) {
+      VectorOps.mul(x, y, result, n);
+    } else {
+      for (int i = 0; i < n; i++) result[i] = x[i] * y[i];
+    }
+    return new LoxArray(result);
+  }
+
+  @LoxNative
+  static LoxArray axpy(double k, Object x, Object y) {
+    int n = sameLength(x, 2, y, 3, "axpy");
+    double[] result = new double[n];
+    double[] a = numbers(x, result);
+    double[] b = numbers(y, a == result ? null : result);
+    if (VECTOR) {
+      VectorOps.axpy(k, a, b, result, n);
+    } else {
+      for (int i = 0; i < n; i++) result[i] = k * a[i] + b[i];
+    }
+    return new LoxArray(result);
+  }
+
+  @LoxNative
+  static LoxArray scale(Object a, double k) {
+    int n = size(a, 1, "scale");
+    double[] result = new double[n];
+    double[] x = numbers(a, result);
+    if (VECTOR) {
+      VectorOps.scale(x, k, result, n);
+    } else {
+      for (int i = 0; i < n; i++) result[i] = x[i] * k;
+    }
+    return new LoxArray(result);
+  }
+
+  @LoxNative
+  static LoxArray offset(Object a, double k) {
+    int n = size(a, 1, "offset");
+    double[] result = new double[n];
+    double[] x = numbers(a, result);
+    if (VECTOR) {
+      VectorOps.offset(x, k, result, n);
+    } else {
+      for (int i = 0; i < n; i++) result[i] = x[i] + k;
+    }
+    return new LoxArray(result);
+  }
+
+  // ---- 标量版本，在 double[] 的前 n 个元素上算 ----
+
+  static double sum(double[] a, int n) {
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += a[i];
+      s1 += a[i + 1];
+      s2 += a[i + 2];
+      s3 += a[i + 3];
+    }
+    for (; i < n; i++) s0 += a[i];
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  static double dot(double[] a, double[] b, int n) {
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += a[i] * b[i];
+      s1 += a[i + 1] * b[i + 1];
+      s2 += a[i + 2] * b[i + 2];
+      s3 += a[i + 3] * b[i + 3];
+    }
+    for (; i < n; i++) s0 += a[i] * b[i];
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  // n > 0。有 NaN 时结果是 NaN，和 Math.min 一样
+  static double min(double[] a, int n) {
+    double m0 = a[0], m1 = a[0], m2 = a[0], m3 = a[0];
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      m0 = Math.min(m0, a[i]);
+      m1 = Math.min(m1, a[i + 1]);
+      m2 = Math.min(m2, a[i + 2]);
+      m3 = Math.min(m3, a[i + 3]);
+    }
+    for (; i < n; i++) m0 = Math.min(m0, a[i]);
+    return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+  }
+
+  static double max(double[] a, int n) {
+    double m0 = a[0], m1 = a[0], m2 = a[0], m3 = a[0];
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      m0 = Math.max(m0, a[i]);
+      m1 = Math.max(m1, a[i + 1]);
+      m2 = Math.max(m2, a[i + 2]);
+      m3 = Math.max(m3, a[i + 3]);
+    }
+    for (; i < n; i++) m0 = Math.max(m0, a[i]);
+    return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+  }
+
+  // 数据集的一块，在映射的内存上直接读
+  static double sum(DoubleBuffer a, int n) {
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += a.get(i);
+      s1 += a.get(i + 1);
+      s2 += a.get(i + 2);
+      s3 += a.get(i + 3);
+    }
+    for (; i < n; i++) s0 += a.get(i);
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  // n > 0
+  static double min(DoubleBuffer a, int n) {
+    double m = a.get(0);
+    for (int i = 1; i < n; i++) m = Math.min(m, a.get(i));
+    return m;
+  }
+
+  static double max(DoubleBuffer a, int n) {
+    double m = a.get(0);
+    for (int i = 1; i < n; i++) m = Math.max(m, a.get(i));
+    return m;
+  }
+
+  // 参数是数组或者没有 close 的数据集，返回长度
+  private static int size(Object value, int index, String name) {
+    if (value instanceof LoxArray) return ((LoxArray)value).size();
+    if (value instanceof LoxDataset) {
+      LoxDataset dataset = (LoxDataset)value;
+      if (dataset.closed()) throw new IllegalArgumentException("Dataset is closed.");
+      return dataset.size();
+    }
+    throw new IllegalArgumentException(
+        "Argument " + index + " to '" + name + "' must be an array or a dataset.");
+  }
+
+  private static int sameLength(Object a, int indexA, Object b, int indexB, String name) {
+    int n = size(a, indexA, name);
+    int m = size(b, indexB, name);
+    if (n != m) {
+      throw new IllegalArgumentException("Arrays must have the same length, got " + n + " and " + m + ".");
+    }
+    return n;
+  }
+
+  // 数组的元素，packed 时就是它自己的存储（可能比 size() 长）
+  private static double[] numbers(LoxArray array) {
+    if (array.packed()) return array.numbers();
+    double[] numbers = new double[array.size()];
+    for (int i = 0; i < numbers.length; i++) {
+      Object element = array.get(i);
+      if (!(element instanceof Double)) {
+        throw new IllegalArgumentException("Array elements must be numbers.");
+      }
+      numbers[i] = (double)element;
+    }
+    return numbers;
+  }
+
+  // 数组同上；数据集整个读进 into（null 时新建一个）
+  private static double[] numbers(Object value, double[] into) {
+    if (value instanceof LoxArray) return numbers((LoxArray)value);
+    LoxDataset dataset = (LoxDataset)value;
+    if (into == null) into = new double[dataset.size()];
+    dataset.get(0, into, 0, dataset.size());
+    return into;
+  }
+
+  // [from, from + length) 放进 block：数组从 numbers 复制，数据集从映射的内存读
+  private static void block(Object value, double[] numbers, int from, double[] block, int length) {
+    if (numbers != null) {
+      System.arraycopy(numbers, from, block, 0, length);
+    } else {
+      ((LoxDataset)value).get(from, block, 0, length);
+    }
+  }
+}
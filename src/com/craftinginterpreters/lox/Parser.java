@@ -1,7 +1,6 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static com.craftinginterpreters.lox.TokenType.*;
@@ -61,7 +60,7 @@ printStmt      → "print" expression ";" ;
 // expression     → equality ; (废弃)
 
 expression     → assignment ;
-assignment     → IDENTIFIER "=" assignment
+assignment     → ( IDENTIFIER | call "[" expression "]" ) "=" assignment
                | logic_or ;
 logic_or       → logic_and ( "or" logic_and )* ;  (chapter 9)
 logic_and      → equality ( "and" equality )* ;  (chapter 9)
@@ -72,11 +71,12 @@ comparison     → term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
 term           → factor ( ( "-" | "+" ) factor )* ;
 factor         → unary ( ( "/" | "*" ) unary )* ;
 unary          → ( "!" | "-" ) unary | call ;
-call           → primary ( "(" arguments? ")" )* ;
+call           → primary ( "(" arguments? ")" | "[" expression "]" )* ;
 arguments      → expression ( "," expression )* ;
 // all the literals and grouping expressions.
 primary        → NUMBER | STRING | "true" | "false" | "nil"
                 | "(" expression ")" ;
+                | "[" arguments? "]"
                 | IDENTIFIER ;
 */
 public class Parser {
@@ -86,10 +86,18 @@ public class Parser {
     // like the scanner, the parser consumers a flat input sequence
     // reading tokens instead of characters
     private final List<Token> tokens;
+    private final ErrorReporter reporter;
     private int current = 0;
     
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.reporter = reporter;
+    }
+
+    // 从第 start 个记号（某条顶层声明的开头）接着解析，见 LoxDocument
+    Parser(List<Token> tokens, ErrorReporter reporter, int start) {
+        this(tokens, reporter);
+        this.current = start;
     }
 
     // Expr parse() {
@@ -100,38 +108,156 @@ public class Parser {
     //     }
     // }
 
+    // 上面的文法原来是一个规则一个递归方法，嵌套几千层的输入（生成的脚本里的深层括号、
+    // 很长的 else if 链）会把 Java 栈撑爆。现在语句和表达式都用显式的栈来解析：
+    // 还没解析完的语句放在 pending 里，表达式的运算符放在 expression() 的局部栈里，
+    // 嵌套多深都只占堆。解析出来的语法树、报的错误和原来一样。
+    private final List<Pending> pending = new ArrayList<>();
+
+    // 等着子语句的语句
+    private static class Pending {}
+
+    // 一串声明：整个程序、块或者函数体
+    private static class Body extends Pending {
+        final List<Stmt> statements = new ArrayList<>();
+        final boolean program;
+        // 函数体才有，程序和块都是 null
+        final Token name;
+        final List<Token> params;
+
+        Body(boolean program, Token name, List<Token> params) {
+            this.program = program;
+            this.name = name;
+            this.params = params;
+        }
+    }
+
+    private static class If extends Pending {
+        final Expr condition;
+        Stmt thenBranch = null;
+
+        If(Expr condition) {
+            this.condition = condition;
+        }
+    }
+
+    private static class While extends Pending {
+        final Expr condition;
+
+        While(Expr condition) {
+            this.condition = condition;
+        }
+    }
+
+    private static class For extends Pending {
+        final Stmt initializer;
+        final Expr condition;
+        final Expr increment;
+
+        For(Stmt initializer, Expr condition, Expr increment) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+        }
+    }
+
     List<Stmt> parse() {
-        List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) {
-          statements.add(declaration());
+        Body program = new Body(true, null, null);
+        declarations(program, false);
+        return program.statements;
+    }
+
+    // 解析一条顶层声明，有错误时是 null。之后 position() 是下一条的开头
+    Stmt next() {
+        Body program = new Body(true, null, null);
+        declarations(program, true);
+        return program.statements.get(0);
+    }
+
+    // 解析顶层声明放进 program，one 时解析完一条就停，否则一直到文件结尾。
+    // parse() 整篇只用一个 Body，不为每条声明单独建一个
+    private void declarations(Body program, boolean one) {
+        pending.add(program);
+        while (true) {
+            Pending top = pending.get(pending.size() - 1);
+            try {
+                if (!(top instanceof Body)) {
+                    // if / while / for 的子语句
+                    complete(statement());
+                    continue;
+                }
+                Body body = (Body)top;
+                if (body.program) {
+                    if (one ? !body.statements.isEmpty() : isAtEnd()) break;
+                } else if (check(RIGHT_BRACE) || isAtEnd()) {
+                    pending.remove(pending.size() - 1);
+                    consume(RIGHT_BRACE, "Expect '}' after block.");
+                    complete(body.name == null ? new Stmt.Block(body.statements)
+                        : new Stmt.Function(body.name, body.params, body.statements));
+                    continue;
+                }
+                complete(declaration());
+            } catch (ParseError error) {
+                // 错误由最近的一串声明接住，和原来 declaration() 里的 catch 一样：
+                // 丢掉解析了一半的语句，跳到下一条语句，这一条记成 null
+                while (!(pending.get(pending.size() - 1) instanceof Body)) {
+                    pending.remove(pending.size() - 1);
+                }
+                synchronize();
+                ((Body)pending.get(pending.size() - 1)).statements.add(null);
+            }
         }
-    
-        return statements; 
+        pending.clear();
     }
 
-    // 执行表达式
-    private Expr expression() {
-        // return equality();
-        return assignment();
+    int position() {
+        return current;
     }
 
-    private Stmt declaration() {
-        try {
-          if (match(FUN)) return function("function");
-          if (match(VAR)) return varDeclaration();
-          return statement();
-        } catch (ParseError error) {
-          synchronize();
-          return null;
+    // 一条语句解析完了，交给等着它的外层语句；外层因此也完整了就接着往外交
+    private void complete(Stmt stmt) {
+        while (stmt != null) {
+            Pending top = pending.get(pending.size() - 1);
+            if (top instanceof Body) {
+                ((Body)top).statements.add(stmt);
+                return;
+            }
+            if (top instanceof If) {
+                If frame = (If)top;
+                if (frame.thenBranch == null) {
+                    frame.thenBranch = stmt;
+                    // else与前面最近的if绑定在一起：最内层的 if 先等自己的 else 分支
+                    if (match(ELSE)) return;
+                    stmt = new Stmt.If(frame.condition, stmt, null);
+                } else {
+                    stmt = new Stmt.If(frame.condition, frame.thenBranch, stmt);
+                }
+            } else if (top instanceof While) {
+                stmt = new Stmt.While(((While)top).condition, stmt);
+            } else {
+                For frame = (For)top;
+                stmt = new Stmt.For(frame.initializer, frame.condition, frame.increment, stmt);
+            }
+            pending.remove(pending.size() - 1);
         }
     }
 
+    // 能直接解析完的语句返回它；带子语句的（函数、块、if、while、for）解析完开头后压栈，返回 null
+    private Stmt declaration() {
+        if (match(FUN)) return function("function");
+        if (match(VAR)) return varDeclaration();
+        return statement();
+    }
+
     private Stmt statement() {
         if (match(FOR)) return forStatement();
         if (match(IF)) return ifStatement();
         if (match(PRINT)) return printStatement();
         if (match(RETURN)) return returnStatement();
-        if (match(LEFT_BRACE)) return new Stmt.Block(block());
+        if (match(LEFT_BRACE)) {
+            pending.add(new Body(false, null, null));
+            return null;
+        }
         if (match(WHILE)) return whileStatement();
 
         return expressionStatement();
@@ -148,7 +274,7 @@ public class Parser {
       return new Stmt.Return(keyword, value);
     }
 
-    // 语法糖, 脱糖
+    // 不再脱糖成 Block + While：留一个 For 节点，计数循环由 Resolver 识别后走快路径
     private Stmt forStatement() {
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
         // 初始化式
@@ -174,24 +300,10 @@ public class Parser {
           increment = expression();
         }
         consume(RIGHT_PAREN, "Expect ')' after for clauses.");
-        // 循环主体
-        Stmt body = statement();
-        if (increment != null) {
-          // 后面执行增量子语句
-          body = new Stmt.Block(
-              Arrays.asList(
-                  body,
-                  new Stmt.Expression(increment)));
-        }
+        // 循环主体是下一条语句
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
-        // 最后，如果有初始化式，它会在整个循环之前运行一次。
-        // 我们的做法是，再次用代码块来替换整个语句，该代码块中首先运行一个初始化式，然后执行循环。
-        if (initializer != null) {
-          body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-    
-        return body;
+        pending.add(new For(initializer, condition, increment));
+        return null;
     }
 
     private Stmt printStatement() {
@@ -205,16 +317,9 @@ public class Parser {
       Expr condition = expression();
       consume(RIGHT_PAREN, "Expect ')' after if condition."); 
   
-      Stmt thenBranch = statement();
-      Stmt elseBranch = null;
-      // else与前面最近的if绑定在一起
-      if (match(ELSE)) {
-        // 因为 ifStatement()在返回之前会继续寻找一个else子句，
-        // 连续嵌套的最内层调用在返回外部的if语句之前，会先为自己声明else语句。
-        elseBranch = statement();
-      }
-  
-      return new Stmt.If(condition, thenBranch, elseBranch);
+      // 两个分支见 complete()
+      pending.add(new If(condition));
+      return null;
     }
 
     private Stmt varDeclaration() {
@@ -233,9 +338,9 @@ public class Parser {
       consume(LEFT_PAREN, "Expect '(' after 'while'.");
       Expr condition = expression();
       consume(RIGHT_PAREN, "Expect ')' after condition.");
-      Stmt body = statement();
   
-      return new Stmt.While(condition, body);
+      pending.add(new While(condition));
+      return null;
     }
 
     private Stmt expressionStatement() {
@@ -244,7 +349,7 @@ public class Parser {
         return new Stmt.Expression(expr);
     }
 
-    private Stmt.Function function(String kind) {
+    private Stmt function(String kind) {
         Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
@@ -261,62 +366,15 @@ public class Parser {
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
-        return new Stmt.Function(name, parameters, body);
-    }
-
-    private List<Stmt> block() {
-      List<Stmt> statements = new ArrayList<>();
-  
-      while (!check(RIGHT_BRACE) && !isAtEnd()) {
-        statements.add(declaration());
-      }
-  
-      consume(RIGHT_BRACE, "Expect '}' after block.");
-      return statements;
-    }
-
-    private Expr assignment() {
-      Expr expr = or();
-  
-      if (match(EQUAL)) {
-        // 左值不用求值
-        Token equals = previous();
-        Expr value = assignment();
-  
-        if (expr instanceof Expr.Variable) {
-          Token name = ((Expr.Variable)expr).name;
-          return new Expr.Assign(name, value);
-        }
-  
-        error(equals, "Invalid assignment target."); 
-      }
-  
-      return expr;
+        pending.add(new Body(false, name, parameters));
+        return null;
     }
 
-    private Expr or() {
-      Expr expr = and();
-  
-      while (match(OR)) {
-        Token operator = previous();
-        Expr right = and();
-        expr = new Expr.Logical(expr, operator, right);
-      }
-  
-      return expr;
-    }
-
-    private Expr and() {
-      Expr expr = equality();
-  
-      while (match(AND)) {
-        Token operator = previous();
-        Expr right = equality();
-        expr = new Expr.Logical(expr, operator, right);
-      }
-  
-      return expr;
+    // 只看一种记号的（绝大多数调用）不用建可变参数的数组
+    private boolean match(TokenType type) {
+        if (!check(type)) return false;
+        advance();
+        return true;
     }
 
     // 可变参数，在方法内部，types 会被当作一个 TokenType[] 数组来处理。
@@ -330,6 +388,11 @@ public class Parser {
         return false;
     }
 
+    // 操作数前面能跟的记号：前缀运算符、左括号和数组字面量的左方括号
+    private static boolean prefix(TokenType type) {
+        return type == BANG || type == MINUS || type == LEFT_PAREN || type == LEFT_BRACKET;
+    }
+
     private Token consume(TokenType type, String message) {
         if (check(type)) return advance();
 
@@ -359,7 +422,7 @@ public class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -388,104 +451,160 @@ public class Parser {
         }
       }
 
-
-    // equality  → comparison ( ( "!=" | "==" ) comparison )* ;
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    // comparison   → term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-    
-    private Expr term() {
-        Expr expr = factor();
-    
-        while (match(MINUS, PLUS)) {
-          Token operator = previous();
-          Expr right = factor();
-          expr = new Expr.Binary(expr, operator, right);
+    // 中缀运算符的优先级，从低到高；不是中缀运算符的是 0
+    private static final int ASSIGNMENT = 1;
+    private static final int UNARY = 8;
+
+    private static int precedence(TokenType type) {
+        switch (type) {
+            case EQUAL: return ASSIGNMENT;
+            case OR: return 2;
+            case AND: return 3;
+            case BANG_EQUAL: case EQUAL_EQUAL: return 4;
+            case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL: return 5;
+            case MINUS: case PLUS: return 6;
+            case SLASH: case STAR: return 7;
+            default: return 0;
         }
-    
-        return expr;
     }
 
-    private Expr factor() {
-        Expr expr = unary();
-    
-        while (match(SLASH, STAR)) {
-          Token operator = previous();
-          Expr right = unary();
-          expr = new Expr.Binary(expr, operator, right);
+    // 运算符栈上的一项：等着右操作数的中缀运算符（left 是左操作数）、前缀运算符，
+    // 或者还没闭合的括号、调用、数组字面量和下标（优先级 0，归约到这里为止）
+    private static class Operator {
+        final Token token;
+        final int precedence;
+        // 中缀运算符的左操作数，调用的被调用者，下标前面的数组
+        final Expr left;
+        // 调用和数组字面量才有，已经解析好的参数或元素
+        final List<Expr> arguments;
+
+        Operator(Token token, int precedence, Expr left, List<Expr> arguments) {
+            this.token = token;
+            this.precedence = precedence;
+            this.left = left;
+            this.arguments = arguments;
         }
-    
-        return expr;
     }
 
-    // unary   → ( "!" | "-" ) unary | primary ;
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-          Token operator = previous();
-          Expr right = unary();
-          return new Expr.Unary(operator, right);
+    // expression → assignment，一直到 primary 的各层规则（见文件开头的文法）合在一个循环里：
+    // 先读一个操作数（前面可以有若干个 ! - 和左括号），再看后面跟着什么。
+    // 遇到中缀运算符时，把栈上优先级不低于它的运算符归约掉（赋值是右结合的，只归约更高的），
+    // 再把它压栈；遇到别的记号时这一层表达式结束，归约到最近的括号或调用，闭合它。
+    private Expr expression() {
+        List<Operator> operators = new ArrayList<>();
+        operand:
+        while (true) {
+            Expr expr = null;
+            while (prefix(peek().type)) {
+                Token token = advance();
+                if (token.type != LEFT_BRACKET) {
+                    operators.add(new Operator(token, token.type == LEFT_PAREN ? 0 : UNARY, null, null));
+                } else if (check(RIGHT_BRACKET)) {
+                    expr = new Expr.Array(advance(), new ArrayList<>());
+                    break;
+                } else {
+                    operators.add(new Operator(token, 0, null, new ArrayList<>()));
+                }
+            }
+            if (expr == null) expr = primary();
+
+            while (true) {
+                // call → primary ( "(" arguments? ")" | "[" expression "]" )* ，调用和下标比前缀运算符绑得紧
+                if (match(LEFT_PAREN)) {
+                    if (check(RIGHT_PAREN)) {
+                        expr = new Expr.Call(expr, advance(), new ArrayList<>());
+                        continue;
+                    }
+                    operators.add(new Operator(previous(), 0, expr, new ArrayList<>()));
+                    continue operand;
+                }
+                if (match(LEFT_BRACKET)) {
+                    operators.add(new Operator(previous(), 0, expr, null));
+                    continue operand;
+                }
+
+                int precedence = precedence(peek().type);
+                if (precedence > 0) {
+                    Token operator = advance();
+                    expr = reduce(operators, expr, precedence == ASSIGNMENT ? ASSIGNMENT + 1 : precedence);
+                    operators.add(new Operator(operator, precedence, expr, null));
+                    continue operand;
+                }
+
+                expr = reduce(operators, expr, ASSIGNMENT);
+                if (operators.isEmpty()) return expr;
+                Operator open = operators.remove(operators.size() - 1);
+                if (open.token.type == LEFT_BRACKET && open.arguments == null) {
+                    Token bracket = consume(RIGHT_BRACKET, "Expect ']' after index.");
+                    expr = new Expr.Index(open.left, bracket, expr);
+                    continue;
+                }
+                if (open.arguments == null) {
+                    consume(RIGHT_PAREN, "Expect ')' after expression.");
+                    // 多余的括号（((x))）只留一层，括号嵌套得再深，后面的遍历也不用一层层递归
+                    if (!(expr instanceof Expr.Grouping)) expr = new Expr.Grouping(expr);
+                    continue;
+                }
+
+                open.arguments.add(expr);
+                if (open.token.type == LEFT_BRACKET) {
+                    if (match(COMMA)) {
+                        operators.add(open);
+                        continue operand;
+                    }
+                    Token bracket = consume(RIGHT_BRACKET, "Expect ']' after array elements.");
+                    expr = new Expr.Array(bracket, open.arguments);
+                    continue;
+                }
+                if (match(COMMA)) {
+                    // Java规范规定一个方法可以接受不超过255个参数。
+                    // 这里和 java 保持一致
+                    if (open.arguments.size() >= 255) {
+                        error(peek(), "Can't have more than 255 arguments.");
+                    }
+                    operators.add(open);
+                    continue operand;
+                }
+                Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+                expr = new Expr.Call(open.left, paren, open.arguments);
+            }
         }
-    
-        return call();
     }
 
-    // call           → primary ( "(" arguments? ")" )* ;
-    private Expr call() {
-      Expr expr = primary();
-  
-      while (true) { 
-        if (match(LEFT_PAREN)) {
-          expr = finishCall(expr);
-        } else {
-          break;
+    // 把栈顶优先级不低于 min 的运算符依次和右操作数 right 合起来
+    private Expr reduce(List<Operator> operators, Expr right, int min) {
+        while (!operators.isEmpty() && operators.get(operators.size() - 1).precedence >= min) {
+            Operator operator = operators.remove(operators.size() - 1);
+            Token token = operator.token;
+            switch (operator.precedence) {
+                case UNARY:
+                    right = new Expr.Unary(token, right);
+                    break;
+                case ASSIGNMENT:
+                    // 左值不用求值；右边解析完了才报错，和原来的递归下降一样
+                    if (operator.left instanceof Expr.Variable) {
+                        right = new Expr.Assign(((Expr.Variable)operator.left).name, right);
+                    } else if (operator.left instanceof Expr.Index) {
+                        Expr.Index index = (Expr.Index)operator.left;
+                        right = new Expr.SetIndex(index.object, index.bracket, index.index, right);
+                    } else {
+                        error(token, "Invalid assignment target.");
+                        right = operator.left;
+                    }
+                    break;
+                default:
+                    if (token.type == OR || token.type == AND) {
+                        right = new Expr.Logical(operator.left, token, right);
+                    } else {
+                        right = new Expr.Binary(operator.left, token, right);
+                    }
+            }
         }
-      }
-  
-      return expr;
-    }
-
-    private Expr finishCall(Expr callee) {
-      List<Expr> arguments = new ArrayList<>();
-      // check if the zero-argument case
-      if (!check(RIGHT_PAREN)) {
-        do {
-          // Java规范规定一个方法可以接受不超过255个参数。
-          // 这里和 java 保持一致
-          if (arguments.size() >= 255) {
-            error(peek(), "Can't have more than 255 arguments.");
-          }
-          arguments.add(expression());
-        } while (match(COMMA));
-      }
-  
-      Token paren = consume(RIGHT_PAREN,
-                            "Expect ')' after arguments.");
-  
-      return new Expr.Call(callee, paren, arguments);
+        return right;
     }
 
-    // primary   → NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" ;
+    // primary   → NUMBER | STRING | "true" | "false" | "nil" | IDENTIFIER ;
+    // 括号和数组字面量在 expression() 里处理
     private Expr primary() {
         if (match(FALSE)) return new Expr.Literal(false);
         if (match(TRUE)) return new Expr.Literal(true);
@@ -498,12 +617,6 @@ public class Parser {
         if (match(IDENTIFIER)) {
             return new Expr.Variable(previous());
         }
-    
-        if (match(LEFT_PAREN)) {
-          Expr expr = expression();
-          consume(RIGHT_PAREN, "Expect ')' after expression.");
-          return new Expr.Grouping(expr);
-        }
 
         throw error(peek(), "Expect expression.");
     }
@@ -0,0 +1,186 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// 分别测量 Scanner、Parser、Resolver、Interpreter 四个阶段在语料上的耗时和分配量。
+// 放在 lox 包里是因为这几个类都是包私有的。
+//
+// 每个 (程序, 阶段) 先预热，再在固定时间内反复运行，报告 ns/op 和 bytes/op；
+// bytes/op 来自 ThreadMXBean 的线程分配计数，相当于 JMH 的 -prof gc 里的 gc.alloc.rate.norm。
+// 同样的四个阶段也有 JMH 版本（jmh/.../PhaseJmh，mvn -Pjmh package），这个类不依赖 JMH，可以直接跑。
+//
+// 用法（在仓库根目录）: PhaseBenchmark [--corpus dir] [--baseline file] [--save] [--time ms]
+//                                      [--threshold percent] [--time-threshold percent]
+//   默认和 baseline 比较，任何一项多分配超过 --threshold（默认 10%）就以状态码 1 退出；
+//   --save 把本次结果写成新的 baseline。
+//   分配量是检查的依据：同一个 JVM 里每次都一样，不同的 JVM 进程之间个别项会因为 C2 的逃逸分析
+//   做了不同的决定而落在两个值上，保存 baseline 时多跑几次，这些项取大的那个，免得检查时好时坏。
+//   耗时在不同的 JVM 进程之间会差几十个百分点，默认只报告不检查；
+//   给了 --time-threshold 时变慢超过它也算退化，只在安静、固定的机器上才有意义。
+//   baseline 只在有意改变了某个阶段的提交里重新保存，提交说明里写清楚接受了哪些变化。
+class PhaseBenchmark {
+  private static final String[] PHASES = { "scan", "parse", "resolve", "interpret" };
+
+  private interface Phase {
+    void run();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Path corpus = Paths.get("src/com/craftinginterpreters/bench/corpus");
+    Path baseline = Paths.get("src/com/craftinginterpreters/bench/baseline.txt");
+    boolean save = false;
+    long millis = 1000;
+    double threshold = 10.0;
+    // NaN 表示不检查耗时
+    double timeThreshold = Double.NaN;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--corpus": corpus = Paths.get(args[++i]); break;
+        case "--baseline": baseline = Paths.get(args[++i]); break;
+        case "--save": save = true; break;
+        case "--time": millis = Long.parseLong(args[++i]); break;
+        case "--threshold": threshold = Double.parseDouble(args[++i]); break;
+        case "--time-threshold": timeThreshold = Double.parseDouble(args[++i]); break;
+        default:
+          System.err.println("Unknown option: " + args[i]);
+          System.exit(64);
+      }
+    }
+
+    List<Path> programs;
+    try (Stream<Path> files = Files.list(corpus)) {
+      programs = files.filter(path -> path.toString().endsWith(".lox"))
+          .sorted().collect(Collectors.toList());
+    }
+
+    Map<String, Phase> benchmarks = new LinkedHashMap<>();
+    for (Path program : programs) {
+      String name = program.getFileName().toString().replace(".lox", "");
+      String source = new String(Files.readAllBytes(program), StandardCharsets.UTF_8);
+      Phase[] phases = phases(source);
+      for (int i = 0; i < phases.length; i++) {
+        benchmarks.put(name + "." + PHASES[i], phases[i]);
+      }
+    }
+
+    // 先把所有代码路径都跑热，免得排在前面的程序替后面的承担 JIT 编译的开销
+    for (Phase phase : benchmarks.values()) warmup(phase, millis);
+
+    Map<String, double[]> results = new LinkedHashMap<>();
+    for (Map.Entry<String, Phase> benchmark : benchmarks.entrySet()) {
+      double[] result = measure(benchmark.getValue(), millis);
+      results.put(benchmark.getKey(), result);
+      System.out.printf("%-24s %14.1f ns/op %14.1f bytes/op%n",
+          benchmark.getKey(), result[0], result[1]);
+    }
+
+    if (save) {
+      List<String> lines = new ArrayList<>();
+      lines.add("# benchmark ns/op bytes/op  (written by PhaseBenchmark --save)");
+      for (Map.Entry<String, double[]> entry : results.entrySet()) {
+        lines.add(String.format("%s %.1f %.1f",
+            entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+      }
+      Files.write(baseline, lines, StandardCharsets.UTF_8);
+      System.out.println("Saved baseline to " + baseline);
+    } else if (Files.exists(baseline)) {
+      if (compare(results, baseline, threshold, timeThreshold)) System.exit(1);
+    }
+  }
+
+  // 每个阶段只做自己那部分工作：输入由前一个阶段提前准备好
+  private static Phase[] phases(String source) {
+    PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+    ErrorReporter reporter = new ErrorReporter(sink);
+    List<Token> tokens = new Scanner(source, reporter).scanTokens();
+    List<Stmt> statements = new Parser(tokens, reporter).parse();
+    new Resolver(reporter).resolve(statements);
+    if (reporter.hadError) throw new IllegalArgumentException("Corpus program has errors.");
+
+    return new Phase[] {
+        () -> new Scanner(source, reporter).scanTokens(),
+        () -> new Parser(tokens, reporter).parse(),
+        // 重新解析同一棵树会得到同样的深度，可以反复运行
+        () -> new Resolver(reporter).resolve(statements),
+        () -> new Interpreter(reporter, sink).interpret(statements)
+    };
+  }
+
+  // 返回 { ns/op, bytes/op }
+  private static double[] measure(Phase phase, long millis) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    // 预热时间和测量时间相同
+    warmup(phase, millis);
+
+    long operations = 0;
+    long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+    long start = System.nanoTime();
+    long end = start + millis * 1_000_000;
+    long now;
+    do {
+      phase.run();
+      operations++;
+      now = System.nanoTime();
+    } while (now < end);
+    long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+    return new double[] {
+        (double)(now - start) / operations,
+        (double)allocated / operations
+    };
+  }
+
+  private static void warmup(Phase phase, long millis) {
+    long end = System.nanoTime() + millis * 1_000_000;
+    while (System.nanoTime() < end) phase.run();
+  }
+
+  private static boolean compare(Map<String, double[]> results, Path baseline,
+                                 double threshold, double timeThreshold) throws IOException {
+    Map<String, double[]> expected = new LinkedHashMap<>();
+    for (String line : Files.readAllLines(baseline, StandardCharsets.UTF_8)) {
+      if (line.isBlank() || line.startsWith("#")) continue;
+      String[] parts = line.trim().split("\\s+");
+      expected.put(parts[0], new double[] {
+          Double.parseDouble(parts[1]), Double.parseDouble(parts[2]) });
+    }
+
+    boolean regressed = false;
+    System.out.println();
+    System.out.printf("Compared with %s (threshold alloc %.0f%%, time %s):%n", baseline, threshold,
+        Double.isNaN(timeThreshold) ? "not checked" : String.format("%.0f%%", timeThreshold));
+    for (Map.Entry<String, double[]> entry : results.entrySet()) {
+      double[] before = expected.get(entry.getKey());
+      if (before == null) continue;
+      double[] after = entry.getValue();
+      double time = percentChange(before[0], after[0]);
+      double bytes = percentChange(before[1], after[1]);
+      boolean bad = time > timeThreshold || bytes > threshold;
+      regressed |= bad;
+      System.out.printf("%-24s time %+7.1f%%  alloc %+7.1f%%%s%n",
+          entry.getKey(), time, bytes, bad ? "  REGRESSION" : "");
+    }
+    return regressed;
+  }
+
+  private static double percentChange(double before, double after) {
+    if (before == 0) return after == 0 ? 0 : 100;
+    return (after - before) / before * 100;
+  }
+}
@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+// 只执行一次的公共库。执行完之后全局作用域被冻结，
+// 之后用它创建的上下文都共享这份全局变量和其中的 LoxFunction，启动时不用再执行一遍。
+// 上下文对 prelude 全局变量的赋值是 copy-on-write 的，只写到自己的全局表里。
+// 从全局变量出发能到达的数组（包括数组里的数组、函数闭包捕获的变量里的数组）在创建 Prelude 时冻结，
+// 上下文对它们的下标赋值、push、pop 都报运行时错误 "Prelude arrays are read-only."。
+// 被 prelude 里的闭包捕获的局部变量（比如 prelude 顶层调用 makeCounter() 得到的计数器）也是所有上下文共享的，
+// 它们所在的环境同样冻结，上下文里给它们赋值报运行时错误 "Variables captured by prelude closures are read-only."，
+// 不会有两个上下文同时改同一个变量。
+// 从 prelude 能到达的数据集（LoxDataset）所有上下文都可能在读，不能 close，见 LoxDataset。
+public final class Prelude {
+  final Environment globals;
+  // 快照要用源码和语法树来定位 LoxFunction 的声明
+  final String source;
+  final List<Stmt> statements;
+
+  Prelude(Environment globals, String source, List<Stmt> statements) {
+    this.globals = globals;
+    this.source = source;
+    this.statements = statements;
+    walk(globals, value -> {
+      if (value instanceof LoxArray) ((LoxArray)value).freeze();
+      if (value instanceof Environment) ((Environment)value).freeze();
+      return false;
+    });
+  }
+
+  // 从 root（环境或者值）出发，沿着环境、函数的闭包和数组元素能到达的每个环境、函数、数组和数据集都给 visit 一次，
+  // visit 返回 true 时停下来返回 true。数组可以互相引用、引用自己，也可以嵌套得很深，所以用工作表
+  static boolean walk(Object root, Predicate<Object> visit) {
+    Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Object> worklist = new ArrayDeque<>();
+    worklist.push(root);
+    while (!worklist.isEmpty()) {
+      Object value = worklist.pop();
+      if (!seen.add(value)) continue;
+      if (visit.test(value)) return true;
+      if (value instanceof Environment) {
+        Environment environment = (Environment)value;
+        for (Object binding : environment.values().values()) reachable(binding, worklist);
+        if (environment.enclosing != null) worklist.push(environment.enclosing);
+        continue;
+      }
+      if (value instanceof LoxFunction) {
+        worklist.push(((LoxFunction)value).closure);
+      } else if (value instanceof LoxArray && !((LoxArray)value).packed()) {
+        LoxArray array = (LoxArray)value;
+        for (int i = 0; i < array.size(); i++) reachable(array.get(i), worklist);
+      }
+    }
+    return false;
+  }
+
+  private static void reachable(Object value, Deque<Object> worklist) {
+    if (value instanceof LoxFunction || value instanceof LoxArray || value instanceof LoxDataset) {
+      worklist.push(value);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+// 采样分析器：后台线程按固定间隔读取解释器的 ShadowStack，
+// 统计折叠栈（collapsed stacks，可以直接交给 flamegraph.pl）以及按函数、按行的 self/total 样本数。
+class Profiler {
+  private static final String SCRIPT = "<script>";
+
+  private final ShadowStack stack;
+  private final long intervalNanos;
+  private final Map<String, Long> collapsed = new HashMap<>();
+  private final Map<String, long[]> byFunction = new HashMap<>();
+  private final Map<String, long[]> byLine = new HashMap<>();
+  private long samples = 0;
+  private volatile boolean running = false;
+  private Thread thread;
+
+  Profiler(ShadowStack stack, long intervalMicros) {
+    this.stack = stack;
+    this.intervalNanos = intervalMicros * 1000;
+  }
+
+  void start() {
+    running = true;
+    thread = new Thread(() -> {
+      while (running) {
+        LockSupport.parkNanos(intervalNanos);
+        sample();
+      }
+    }, "lox-profiler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    running = false;
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private synchronized void sample() {
+    // 先读 depth 再读数组，数组可能刚被换成更大的，按实际长度截断
+    int depth = stack.depth;
+    LoxFunction[] functions = stack.functions;
+    int[] lines = stack.lines;
+    int top = stack.line;
+    depth = Math.min(depth, Math.min(functions.length, lines.length));
+    if (depth <= 0) return;
+
+    StringBuilder key = new StringBuilder();
+    Set<String> seenFunctions = new HashSet<>();
+    Set<String> seenLines = new HashSet<>();
+    String function = null;
+    String line = null;
+    for (int i = 0; i < depth; i++) {
+      function = i == 0 ? SCRIPT : name(functions[i]);
+      line = function + ":" + (i + 1 < depth ? lines[i + 1] : top);
+      if (i > 0) key.append(';');
+      key.append(line);
+      if (seenFunctions.add(function)) byFunction.computeIfAbsent(function, k -> new long[2])[1]++;
+      if (seenLines.add(line)) byLine.computeIfAbsent(line, k -> new long[2])[1]++;
+    }
+    // 栈顶那一帧计入 self
+    byFunction.get(function)[0]++;
+    byLine.get(line)[0]++;
+    collapsed.merge(key.toString(), 1L, Long::sum);
+    samples++;
+  }
+
+  private static String name(LoxFunction function) {
+    return function == null ? "?" : function.declaration.name.lexeme;
+  }
+
+  // 每行一个 "frame;frame;frame count"，frame 是 函数名:行号
+  synchronized void writeCollapsed(PrintStream out) {
+    for (Map.Entry<String, Long> entry : collapsed.entrySet()) {
+      out.println(entry.getKey() + " " + entry.getValue());
+    }
+  }
+
+  synchronized void writeTop(PrintStream out, int limit) {
+    out.printf("%d samples%n", samples);
+    writeTable(out, "function", byFunction, limit);
+    writeTable(out, "line", byLine, limit);
+  }
+
+  private void writeTable(PrintStream out, String title, Map<String, long[]> table, int limit) {
+    List<Map.Entry<String, long[]>> rows = new ArrayList<>(table.entrySet());
+    rows.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+    out.printf("%n%8s %8s  %s%n", "self%", "total%", title);
+    for (int i = 0; i < rows.size() && i < limit; i++) {
+      long[] counts = rows.get(i).getValue();
+      out.printf("%7.1f%% %7.1f%%  %s%n",
+          percent(counts[0]), percent(counts[1]), rows.get(i).getKey());
+    }
+  }
+
+  private double percent(long count) {
+    return samples == 0 ? 0 : 100.0 * count / samples;
+  }
+}
@@ -1,18 +1,37 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 
-class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
+// visit 方法返回还要接着解析的最后一个子节点（没有就是 null），由 resolve 里的循环接着解析，见 resolve(Expr)
+class Resolver implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private final ErrorReporter reporter;
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
-
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // 函数嵌套的层数，用来判断变量有没有被闭包捕获
+    private int functionDepth = 0;
+    // 正在解析的函数体里有没有嵌套的函数声明，见 Stmt.Function.recyclable
+    private boolean declaresFunction = false;
+    // 正在解析的 for 循环的计数器候选，见 visitForStmt
+    private final List<Counter> counters = new ArrayList<>();
+    // --timings / JMX 用的计数
+    int nodes = 0;
+    int locals = 0;
+    // 有没有长到 DEEP 的链或者嵌套（二元运算、else if、一层层的一元运算和代码块……）。
+    // 后面的 Inliner 和 Hoister 是递归遍历的，有的话就不做了
+    boolean deep = false;
+    static final String TOO_DEEP = "Expression nested too deeply.";
+    // 正在解析的最内层的语句，里面的表达式嵌套得很深时标到它上面，见 Stmt.deep
+    private Stmt statement = null;
+
+    Resolver(ErrorReporter reporter) {
+        this.reporter = reporter;
     }
 
     private enum FunctionType {
@@ -20,27 +39,188 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         FUNCTION
     }
 
+    // for 循环的计数器在循环作用域里的读写次数
+    private static class Counter {
+        final Map<String, Boolean> scope;
+        final String name;
+        final int functionDepth;
+        int reads = 0;
+        int assigns = 0;
+        boolean captured = false;
+
+        Counter(Map<String, Boolean> scope, String name, int functionDepth) {
+            this.scope = scope;
+            this.name = name;
+            this.functionDepth = functionDepth;
+        }
+    }
+
+    // 最后一条语句接着在 resolve(Stmt) 的循环里解析，作用域也在那里结束
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
         beginScope();
-        resolve(stmt.statements);
-        endScope();
-        return null;
+        int last = stmt.statements.size() - 1;
+        for (int i = 0; i < last; i++) {
+            resolve(stmt.statements.get(i));
+        }
+        return last < 0 ? null : stmt.statements.get(last);
     }
 
+    // 入口。一路都在最后一个子节点上的嵌套（一元运算、右边嵌套的运算、连续赋值、代码块……）由循环解析，
+    // 别的形状嵌套得太深（比如几万层调用的第一个参数），递归把 Java 栈用完时
+    // 报编译错误 "Expression nested too deeply."，不让 StackOverflowError 抛出去
     void resolve(List<Stmt> statements) {
+        try {
+            resolveStatements(statements);
+        } catch (StackOverflowError e) {
+            tooDeep(deepest(statements));
+        }
+    }
+
+    // 后面的 Inliner、Hoister 在同样深的树上也可能把栈用完，调用方用这个报同样的错误。
+    // 错误报在 deepest 找到的 token 上，和栈在哪里用完无关；整棵树上都没有带 token 的节点时才不带行号
+    void tooDeep(Token token) {
+        if (token == null) {
+            reporter.error(TOO_DEEP);
+        } else {
+            reporter.error(token, TOO_DEEP);
+        }
+    }
+
+    private void resolveStatements(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
         }
     }
 
+    // 最后一个子语句（代码块的最后一条、if 的分支、while 的循环体）接着在这个循环里解析，
+    // 一层层套下去的代码块不占 Java 栈；这样进去的代码块的作用域最后一起结束。
+    // 解释器执行每层要递归，套到 DEEP 层时把最外面的语句标成 deep（else if 链解释器本来就是循环执行的，不算）
     private void resolve(Stmt stmt) {
-        stmt.accept(this);
+        Stmt enclosing = statement;
+        Stmt head = stmt;
+        int blocks = 0;
+        int length = 0;
+        int nesting = 0;
+        while (stmt != null) {
+            nodes++;
+            length++;
+            statement = stmt;
+            Stmt next = stmt.accept(this);
+            if (stmt instanceof Stmt.Block) blocks++;
+            if (!(next instanceof Stmt.If && stmt instanceof Stmt.If && next == ((Stmt.If)stmt).elseBranch)) {
+                nesting++;
+            }
+            stmt = next;
+        }
+        for (; blocks > 0; blocks--) endScope();
+        statement = enclosing;
+        if (length >= DEEP) deep = true;
+        if (nesting >= DEEP) head.deep = true;
     }
 
+    // 最后一个子表达式（一元运算的操作数、右操作数、赋值的右值、最后一个参数……）接着在这个循环里解析，
+    // 生成的脚本里几万层的 - - - x、1 + (1 + (...))、a = a = ... 都不占 Java 栈。
+    // 套到 DEEP 层时解释器递归求值会把栈用完，所在的语句标成 deep
     private void resolve(Expr expr) {
+        int length = 0;
         // 这些方法与解释器中的 evaluate()和execute()方法类似——它们会反过来将访问者模式应用到语法树节点
-        expr.accept(this);
+        while (expr != null) {
+            nodes++;
+            length++;
+            expr = expr.accept(this);
+        }
+        if (length >= DEEP) {
+            deep = true;
+            statement.deep = true;
+        }
+    }
+
+    private static Token token(Stmt stmt) {
+        if (stmt instanceof Stmt.Var) return ((Stmt.Var)stmt).name;
+        if (stmt instanceof Stmt.Function) return ((Stmt.Function)stmt).name;
+        if (stmt instanceof Stmt.Return) return ((Stmt.Return)stmt).keyword;
+        return null;
+    }
+
+    private static Token token(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary)expr).operator;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator;
+        if (expr instanceof Expr.Logical) return ((Expr.Logical)expr).operator;
+        if (expr instanceof Expr.Call) return ((Expr.Call)expr).paren;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable)expr).name;
+        if (expr instanceof Expr.Assign) return ((Expr.Assign)expr).name;
+        if (expr instanceof Expr.Array) return ((Expr.Array)expr).bracket;
+        if (expr instanceof Expr.Index) return ((Expr.Index)expr).bracket;
+        if (expr instanceof Expr.SetIndex) return ((Expr.SetIndex)expr).bracket;
+        return null;
+    }
+
+    // 树里最深的带 token 的节点的 token，嵌套太深的错误报在那一行。用显式的栈遍历，不递归
+    static Token deepest(List<Stmt> statements) {
+        List<Object> pending = new ArrayList<>(statements);
+        List<Integer> levels = new ArrayList<>(Collections.nCopies(statements.size(), 0));
+        Token deepest = null;
+        int max = -1;
+        while (!pending.isEmpty()) {
+            Object node = pending.remove(pending.size() - 1);
+            int level = levels.remove(levels.size() - 1);
+            Token token = node instanceof Stmt ? token((Stmt)node) : token((Expr)node);
+            if (token != null && level > max) {
+                max = level;
+                deepest = token;
+            }
+            for (Object child : children(node)) {
+                if (child == null) continue;
+                pending.add(child);
+                levels.add(level + 1);
+            }
+        }
+        return deepest;
+    }
+
+    private static List<?> children(Object node) {
+        if (node instanceof Stmt.Block) return ((Stmt.Block)node).statements;
+        if (node instanceof Stmt.Expression) return Arrays.asList(((Stmt.Expression)node).expression);
+        if (node instanceof Stmt.For) {
+            Stmt.For loop = (Stmt.For)node;
+            return Arrays.asList(loop.initializer, loop.condition, loop.increment, loop.body);
+        }
+        if (node instanceof Stmt.Function) return ((Stmt.Function)node).body;
+        if (node instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If)node;
+            return Arrays.asList(branch.condition, branch.thenBranch, branch.elseBranch);
+        }
+        if (node instanceof Stmt.Print) return Arrays.asList(((Stmt.Print)node).expression);
+        if (node instanceof Stmt.Return) return Arrays.asList(((Stmt.Return)node).value);
+        if (node instanceof Stmt.Var) return Arrays.asList(((Stmt.Var)node).initializer);
+        if (node instanceof Stmt.While) {
+            return Arrays.asList(((Stmt.While)node).condition, ((Stmt.While)node).body);
+        }
+        if (node instanceof Expr.Array) return ((Expr.Array)node).elements;
+        if (node instanceof Expr.Assign) return Arrays.asList(((Expr.Assign)node).value);
+        if (node instanceof Expr.Binary) {
+            return Arrays.asList(((Expr.Binary)node).left, ((Expr.Binary)node).right);
+        }
+        if (node instanceof Expr.Call) {
+            List<Expr> children = new ArrayList<>(((Expr.Call)node).arguments);
+            children.add(((Expr.Call)node).callee);
+            return children;
+        }
+        if (node instanceof Expr.Grouping) return Arrays.asList(((Expr.Grouping)node).expression);
+        if (node instanceof Expr.Index) {
+            return Arrays.asList(((Expr.Index)node).object, ((Expr.Index)node).index);
+        }
+        if (node instanceof Expr.Logical) {
+            return Arrays.asList(((Expr.Logical)node).left, ((Expr.Logical)node).right);
+        }
+        if (node instanceof Expr.SetIndex) {
+            Expr.SetIndex set = (Expr.SetIndex)node;
+            return Arrays.asList(set.object, set.index, set.value);
+        }
+        if (node instanceof Expr.Temp) return Arrays.asList(((Expr.Temp)node).value);
+        if (node instanceof Expr.Unary) return Arrays.asList(((Expr.Unary)node).right);
+        return Collections.emptyList();
     }
 
     private void beginScope() {
@@ -52,7 +232,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Stmt visitVarStmt(Stmt.Var stmt) {
         declare(stmt.name);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
@@ -65,7 +245,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         if (scopes.isEmpty()) return;
         Map<String, Boolean> scope = scopes.peek();
         if (scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+            reporter.error(name,
                     "Already variable with this name in this scope.");
         }
         // We mark it as “not ready yet” by binding its name to false in the scope map.
@@ -79,43 +259,76 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitVariableExpr(Expr.Variable expr) {
+    public Expr visitVariableExpr(Expr.Variable expr) {
         // 检查在当前作用域中是否已经声明并定义了这个变量
         if (!scopes.isEmpty() &&
                 scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,
+            reporter.error(expr.name,
                     "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        // 深度直接记在语法树节点上，这样解析好的语法树可以被多个解释器共享
+        expr.depth = resolveLocal(expr.name);
+        if (expr.depth >= 0) locals++;
+        count(expr.name, expr.depth, false);
         return null;
     }
 
+    // 引用落在某个 for 循环计数器上时记一笔
+    private void count(Token name, int depth, boolean assign) {
+        if (depth < 0 || counters.isEmpty()) return;
+        Map<String, Boolean> scope = scopes.get(scopes.size() - 1 - depth);
+        for (Counter counter : counters) {
+            if (counter.scope != scope || !counter.name.equals(name.lexeme)) continue;
+            if (assign) {
+                counter.assigns++;
+            } else {
+                counter.reads++;
+            }
+            if (functionDepth > counter.functionDepth) counter.captured = true;
+        }
+    }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private int resolveLocal(Token name) {
         // 从最内层作用域开始，向外层作用域查找
         for (int i = scopes.size() - 1; i >= 0; i--) {
             if (scopes.get(i).containsKey(name.lexeme)) {
-                // 通过调用 interpreter.resolve() 方法来告诉解释器这个变量的深度
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                return scopes.size() - 1 - i;
             }
         }
+        // 没找到就是全局变量
+        return -1;
     }
 
     @Override
-    public Void visitAssignExpr(Expr.Assign expr) {
-        // 解析右值的表达式，以防它还包含对其它变量的引用
-        resolve(expr.value);
-        // 然后使用现有的 resolveLocal() 方法解析待赋值的变量。
-        resolveLocal(expr, expr.name);
+    public Expr visitArgumentExpr(Expr.Argument expr) {
+        // 只出现在 Inliner 生成的副本里，副本不会再经过 Resolver
         return null;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Expr visitTempExpr(Expr.Temp expr) {
+        // 只出现在 Hoister 改写过的语法树里，临时变量由它插入的 var 声明
+        expr.depth = resolveLocal(expr.name);
+        if (expr.depth >= 0) locals++;
+        return expr.value;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        // 使用现有的 resolveLocal() 方法解析待赋值的变量。表达式里不会新建作用域，
+        // 所以可以先于右值解析，右值（以防它还包含对其它变量的引用）返回去接着解析
+        expr.depth = resolveLocal(expr.name);
+        if (expr.depth >= 0) locals++;
+        count(expr.name, expr.depth, true);
+        return expr.value;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
         // 在当前作用域中声明并定义函数的名称
         declare(stmt.name);
+        declaresFunction = true;
         // 与变量不同的是，我们在解析函数体之前，就急切地定义了这个名称。这样函数就可以在自己的函数体中递归地使用自身。
         define(stmt.name);
 
@@ -128,44 +341,52 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        boolean enclosingDeclares = declaresFunction;
+        declaresFunction = false;
+        functionDepth++;
         beginScope();
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
-        resolve(function.body);
+        resolveStatements(function.body);
         endScope();
+        functionDepth--;
+        // 嵌套函数会捕获这次调用的环境，没有的话环境在返回后就没人引用了
+        function.recyclable = !declaresFunction;
+        declaresFunction = enclosingDeclares;
         // 表示函数体已经解析完毕，我们可以恢复之前的函数类型了
         currentFunction = enclosingFunction;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
         // An expression statement contains a single expression to traverse.
         resolve(stmt.expression);
         return null;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Stmt visitIfStmt(Stmt.If stmt) {
         // An if statement has an expression for its condition and one or two statements for the branches.
+        // 动态执行则只会进入正在执行的分支，而静态分析是保守的——它会分析所有可能执行的分支。
+        // 最后一个分支返回去接着解析，很长的 else if 链也就沿着 else 分支循环下去，不递归
         resolve(stmt.condition);
+        if (stmt.elseBranch == null) return stmt.thenBranch;
         resolve(stmt.thenBranch);
-        // 动态执行则只会进入正在执行的分支，而静态分析是保守的——它会分析所有可能执行的分支
-        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
-        return null;
+        return stmt.elseBranch;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
         resolve(stmt.expression);
         return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            reporter.error(stmt.keyword, "Can't return from top-level code.");
         }
         if (stmt.value != null) {
             resolve(stmt.value);
@@ -175,58 +396,163 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Stmt visitWhileStmt(Stmt.While stmt) {
         resolve(stmt.condition);
+        return stmt.body;
+    }
+
+    // for 循环自己一层作用域，放初始化式声明的变量；条件、循环体和增量都在这层里解析，
+    // 和 Interpreter.visitForStmt 的环境一一对应。
+    // 顺便识别计数循环 var i = a; i < b; i = i + c：条件和增量里 i 只在规定的位置出现，
+    // 循环体里不给 i 赋值，也没有嵌套函数捕获 i，这样解释器可以把 i 放在 double 局部变量里
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        Counter counter = null;
+        if (stmt.initializer instanceof Stmt.Var && ((Stmt.Var)stmt.initializer).initializer != null) {
+            counter = new Counter(scopes.peek(), ((Stmt.Var)stmt.initializer).name.lexeme, functionDepth);
+            counters.add(counter);
+        }
+        resolve(stmt.condition);
+        int conditionReads = counter == null ? 0 : counter.reads;
         resolve(stmt.body);
+        int bodyReads = counter == null ? 0 : counter.reads - conditionReads;
+        if (stmt.increment != null) resolve(stmt.increment);
+        if (counter != null) {
+            counters.remove(counters.size() - 1);
+            // 条件里读一次，增量里读一次写一次，其余都在循环体里
+            stmt.counted = isCounterShape(stmt, counter.name) && !counter.captured &&
+                conditionReads == 1 && counter.reads - conditionReads - bodyReads == 1 &&
+                counter.assigns == 1;
+            stmt.counterRead = bodyReads > 0;
+        }
+        endScope();
         return null;
     }
 
+    private static boolean isCounterShape(Stmt.For stmt, String name) {
+        if (!(stmt.condition instanceof Expr.Binary)) return false;
+        Expr.Binary condition = (Expr.Binary)stmt.condition;
+        switch (condition.operator.type) {
+            case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL: break;
+            default: return false;
+        }
+        if (!isCounter(condition.left, name)) return false;
+        if (!(stmt.increment instanceof Expr.Assign)) return false;
+        Expr.Assign increment = (Expr.Assign)stmt.increment;
+        if (!increment.name.lexeme.equals(name) || increment.depth != 0) return false;
+        if (!(increment.value instanceof Expr.Binary)) return false;
+        Expr.Binary step = (Expr.Binary)increment.value;
+        return (step.operator.type == TokenType.PLUS || step.operator.type == TokenType.MINUS) &&
+            isCounter(step.left, name);
+    }
+
+    private static boolean isCounter(Expr expr, String name) {
+        return expr instanceof Expr.Variable && ((Expr.Variable)expr).depth == 0 &&
+            ((Expr.Variable)expr).name.lexeme.equals(name);
+    }
+
     @Override
-    public Void visitBinaryExpr(Expr.Binary expr) {
-        resolve(expr.left);
-        resolve(expr.right);
-        return null;
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        expr.chain = resolveLeft(expr.left) >= CHAIN;
+        return expr.right;
+    }
+
+    // 左边嵌套的二元运算和逻辑运算至少这么多层时，解释器改用循环求值，见 Interpreter.chain
+    static final int CHAIN = 32;
+    static final int DEEP = 1000;
+
+    // 左结合的长链（a + b + c + ...，生成的脚本里可能有几千项）左边嵌套得很深：
+    // 沿着左边走到底，先解析最左边的操作数，再从里往外依次解析里面各层的右操作数，不递归。
+    // 最外面一层的右操作数由调用方返回去接着解析。返回链的长度
+    private int resolveLeft(Expr left) {
+        if (!(left instanceof Expr.Binary) && !(left instanceof Expr.Logical)) {
+            resolve(left);
+            return 1;
+        }
+        List<Expr> rights = new ArrayList<>();
+        while (true) {
+            if (left instanceof Expr.Binary) {
+                rights.add(((Expr.Binary)left).right);
+                left = ((Expr.Binary)left).left;
+            } else if (left instanceof Expr.Logical) {
+                rights.add(((Expr.Logical)left).right);
+                left = ((Expr.Logical)left).left;
+            } else {
+                break;
+            }
+            nodes++;
+        }
+        resolve(left);
+        for (int i = rights.size() - 1; i >= 0; i--) {
+            resolve(rights.get(i));
+        }
+        int length = rights.size() + 1;
+        if (length >= DEEP) deep = true;
+        return length;
     }
 
     @Override
-    public Void visitCallExpr(Expr.Call expr) {
+    public Expr visitCallExpr(Expr.Call expr) {
         // 调用也是类似的——我们遍历参数列表并解析它们。
         // 被调用的对象也是一个表达式（通常是一个变量表达式），所以它也会被解析
+        int last = expr.arguments.size() - 1;
+        if (last < 0) return expr.callee;
         resolve(expr.callee);
 
-        for (Expr argument : expr.arguments) {
-            resolve(argument);
+        for (int i = 0; i < last; i++) {
+            resolve(expr.arguments.get(i));
         }
 
-        return null;
+        return expr.arguments.get(last);
+    }
+
+    @Override
+    public Expr visitArrayExpr(Expr.Array expr) {
+        int last = expr.elements.size() - 1;
+        for (int i = 0; i < last; i++) {
+            resolve(expr.elements.get(i));
+        }
+        return last < 0 ? null : expr.elements.get(last);
+    }
+
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+        resolve(expr.object);
+        return expr.index;
+    }
+
+    @Override
+    public Expr visitSetIndexExpr(Expr.SetIndex expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        return expr.value;
     }
 
     @Override
-    public Void visitGroupingExpr(Expr.Grouping expr) {
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
         // 括号
-        resolve(expr.expression);
-        return null;
+        return expr.expression;
     }
 
     @Override
-    public Void visitLiteralExpr(Expr.Literal expr) {
+    public Expr visitLiteralExpr(Expr.Literal expr) {
         // 字面量
         return null;
     }
 
     @Override
-    public Void visitLogicalExpr(Expr.Logical expr) {
+    public Expr visitLogicalExpr(Expr.Logical expr) {
         // 逻辑表达式
-        resolve(expr.left);
-        resolve(expr.right);
-        return null;
+        expr.chain = resolveLeft(expr.left) >= CHAIN;
+        return expr.right;
     }
 
     @Override
-    public Void visitUnaryExpr(Expr.Unary expr) {
+    public Expr visitUnaryExpr(Expr.Unary expr) {
         // 一元表达式
-        resolve(expr.right);
-        return null;
+        return expr.right;
     }
 
 }
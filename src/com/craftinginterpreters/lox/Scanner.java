@@ -7,6 +7,7 @@ import static com.craftinginterpreters.lox.TokenType.*;
 
 class Scanner {
     private final String source;
+    private final ErrorReporter reporter;
     private final List<Token> tokens = new ArrayList<>();
     private int start = 0;
     private int current = 0;
@@ -32,8 +33,16 @@ class Scanner {
         keywords.put("while",  WHILE);
     }
 
-    Scanner(String source) {
+    Scanner(String source, ErrorReporter reporter) {
         this.source = source;
+        this.reporter = reporter;
+    }
+
+    // 从 source 中间某个记号的开头接着扫描，line 是那里的行号。增量编辑时用，见 LoxDocument
+    Scanner(String source, ErrorReporter reporter, int offset, int line) {
+        this(source, reporter);
+        this.current = offset;
+        this.line = line;
     }
 
     List<Token> scanTokens() {
@@ -48,6 +57,22 @@ class Scanner {
         return tokens;
     }
 
+    // 一次扫描一个记号，到结尾时返回 EOF。start() 是刚返回的记号在 source 里的开始位置
+    Token next() {
+        int count = tokens.size();
+        while (tokens.size() == count && !isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+        if (tokens.size() > count) return tokens.remove(count);
+        start = current;
+        return new Token(EOF, "", null, line);
+    }
+
+    int start() {
+        return start;
+    }
+
     private void scanToken() {
         char c = advance();
 //        System.out.println("char " + c);
@@ -56,6 +81,8 @@ class Scanner {
             case ')': addToken(RIGHT_PAREN); break;
             case '{': addToken(LEFT_BRACE); break;
             case '}': addToken(RIGHT_BRACE); break;
+            case '[': addToken(LEFT_BRACKET); break;
+            case ']': addToken(RIGHT_BRACKET); break;
             case ',': addToken(COMMA); break;
             case '.': addToken(DOT); break;
             case '-': addToken(MINUS); break;
@@ -107,7 +134,7 @@ class Scanner {
                     identifier();
                 } else {
                     // 错误
-                    Lox.error(line, "Unexpected character: " + c);
+                    reporter.error(line, "Unexpected character: " + c);
                 }
         }
     }
@@ -134,7 +161,7 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            reporter.error(line, "Unterminated string.");
             return;
         }
 
@@ -143,7 +170,8 @@ class Scanner {
 
         // Trim the surrounding quotes.
         String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        // 短字面量会被驻留，同样的字面量共享同一个 LoxString
+        addToken(STRING, LoxString.intern(value));
     }
 
 
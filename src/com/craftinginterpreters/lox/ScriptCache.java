@@ -0,0 +1,82 @@
+package com.craftinginterpreters.lox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 编译结果的 LRU 缓存，由 LoxEngine.prepare() 使用。
+// 以源码为键（HashMap 按源码的哈希分桶，equals 再比较全文，哈希冲突不会拿错脚本）。
+// 所有操作都在同一把锁里，锁内只做 map 操作；编译在锁外进行。
+public final class ScriptCache {
+  private final int capacity;
+  private final Map<String, LoxScript> scripts;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  ScriptCache(int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+    this.capacity = capacity;
+    // accessOrder = true: get() 会把条目移到链表尾部，头部就是最久没用的
+    this.scripts = new LinkedHashMap<String, LoxScript>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, LoxScript> eldest) {
+        if (size() <= ScriptCache.this.capacity) return false;
+        evictions++;
+        return true;
+      }
+    };
+  }
+
+  synchronized LoxScript get(String source) {
+    LoxScript script = scripts.get(source);
+    if (script != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return script;
+  }
+
+  // 两个线程同时未命中时都会编译，先放进去的那份胜出
+  synchronized LoxScript putIfAbsent(String source, LoxScript script) {
+    LoxScript existing = scripts.get(source);
+    if (existing != null) return existing;
+    scripts.put(source, script);
+    return script;
+  }
+
+  public synchronized int size() {
+    return scripts.size();
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public synchronized long hits() {
+    return hits;
+  }
+
+  public synchronized long misses() {
+    return misses;
+  }
+
+  public synchronized long evictions() {
+    return evictions;
+  }
+
+  public synchronized double hitRate() {
+    long total = hits + misses;
+    return total == 0 ? 0.0 : (double)hits / total;
+  }
+
+  public synchronized void clear() {
+    scripts.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("ScriptCache[size=%d/%d, hits=%d, misses=%d, evictions=%d, hitRate=%.3f]",
+        scripts.size(), capacity, hits, misses, evictions, hitRate());
+  }
+}
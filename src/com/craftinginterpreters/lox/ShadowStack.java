@@ -0,0 +1,33 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// 解释器维护的 Lox 调用栈影子，只在开启分析时存在（Interpreter.shadowStack 为 null 时完全不更新）。
+// functions[i] 是第 i 层正在执行的函数（第 0 层是顶层脚本，为 null），
+// lines[i + 1] 是第 i 层调用下一层时所在的行，栈顶这一层当前执行到的行是 line。
+//
+// 只有解释器线程写入；采样线程不加锁地读，读到的可能是稍旧或者正在变化的栈，对采样来说足够了。
+final class ShadowStack {
+  LoxFunction[] functions = new LoxFunction[64];
+  int[] lines = new int[64];
+  int depth = 1;
+  int line = 0;
+
+  void push(LoxFunction function) {
+    if (depth == functions.length) {
+      // 先换 lines 再换 functions，采样线程按 functions 的长度截断时不会越界
+      lines = Arrays.copyOf(lines, depth * 2);
+      functions = Arrays.copyOf(functions, depth * 2);
+    }
+    lines[depth] = line;
+    functions[depth] = function;
+    depth++;
+    // 函数体里第一次 mark() 之前，先算在声明所在的行上
+    line = function.declaration.name.line;
+  }
+
+  void pop() {
+    depth--;
+    line = lines[depth];
+  }
+}
@@ -0,0 +1,351 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// prelude 执行完之后的堆快照。
+// 文件里保存 prelude 的源码，以及从全局作用域出发能到达的所有环境、函数、数组和值。
+// 恢复时只重新扫描、解析和变量解析源码（不执行），LoxFunction 通过函数声明在语法树中的先序编号找回自己的 AST，
+// 然后按表重建环境和函数，开销和快照大小成线性关系。
+//
+// 格式（DataOutputStream，大端）：
+//   magic "LOXS", version
+//   source
+//   环境表：数量，每个环境的 enclosing 下标（-1 表示没有）；外层环境总在内层之前，下标 0 是全局作用域
+//   函数表：数量，每个函数的声明编号和闭包环境下标
+//   数组表：数量（版本 2 起）
+//   绑定：每个环境的 (名字, 值) 列表
+//   数组内容：每个数组的长度和元素（版本 2 起）
+// 值里的函数和数组都写成表里的下标，同一个数组被几处引用、数组里放自己，恢复后还是这样。
+// 恢复的数组在创建 Prelude 时冻结，和执行 prelude 得到的一样。
+final class Snapshot {
+  private static final int MAGIC = 0x4c4f5853; // "LOXS"
+  // 版本 1 没有数组，仍然可以读
+  private static final int VERSION = 2;
+
+  private static final byte NIL = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+  private static final byte NUMBER = 3;
+  private static final byte STRING = 4;
+  private static final byte FUNCTION = 5;
+  private static final byte NATIVE = 6;
+  private static final byte ARRAY = 7;
+
+  private Snapshot() {}
+
+  static void write(Prelude prelude, OutputStream stream) throws IOException {
+    List<Stmt.Function> declarations = collectFunctions(prelude.statements);
+    Map<Stmt.Function, Integer> declarationIndex = new IdentityHashMap<>();
+    for (int i = 0; i < declarations.size(); i++) {
+      declarationIndex.put(declarations.get(i), i);
+    }
+
+    // 先找出所有能到达的环境、函数和数组，再一次性写出，这样恢复时可以先建对象再填绑定和元素
+    Map<Environment, Integer> environments = new IdentityHashMap<>();
+    List<Environment> environmentList = new ArrayList<>();
+    Map<LoxFunction, Integer> functions = new IdentityHashMap<>();
+    List<LoxFunction> functionList = new ArrayList<>();
+    Map<LoxArray, Integer> arrays = new IdentityHashMap<>();
+    List<LoxArray> arrayList = new ArrayList<>();
+    // 环境和数组，数组嵌套得很深也不会递归
+    Deque<Object> worklist = new ArrayDeque<>();
+    Environment natives = newNativeGlobals();
+    register(prelude.globals, environments, environmentList, worklist);
+    while (!worklist.isEmpty()) {
+      Object next = worklist.pop();
+      Iterable<Object> values = next instanceof Environment
+          ? ((Environment)next).values().values() : elements((LoxArray)next);
+      for (Object value : values) {
+        if (value instanceof LoxArray) {
+          if (arrays.containsKey(value)) continue;
+          arrays.put((LoxArray)value, arrayList.size());
+          arrayList.add((LoxArray)value);
+          worklist.push(value);
+          continue;
+        }
+        if (!(value instanceof LoxFunction)) continue;
+        LoxFunction function = (LoxFunction)value;
+        if (functions.containsKey(function)) continue;
+        if (!declarationIndex.containsKey(function.declaration)) {
+          throw new IOException("Function " + function + " was not declared by the prelude.");
+        }
+        functions.put(function, functionList.size());
+        functionList.add(function);
+        register(function.closure, environments, environmentList, worklist);
+      }
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writeString(out, prelude.source);
+
+    out.writeInt(environmentList.size());
+    for (Environment environment : environmentList) {
+      out.writeInt(environment.enclosing == null ? -1 : environments.get(environment.enclosing));
+    }
+
+    out.writeInt(functionList.size());
+    for (LoxFunction function : functionList) {
+      out.writeInt(declarationIndex.get(function.declaration));
+      out.writeInt(environments.get(function.closure));
+    }
+
+    out.writeInt(arrayList.size());
+
+    for (Environment environment : environmentList) {
+      out.writeInt(environment.values().size());
+      for (Map.Entry<String, Object> entry : environment.values().entrySet()) {
+        writeString(out, entry.getKey());
+        writeValue(out, entry.getValue(), functions, arrays, prelude.globals, natives);
+      }
+    }
+
+    for (LoxArray array : arrayList) {
+      out.writeInt(array.size());
+      for (int i = 0; i < array.size(); i++) {
+        writeValue(out, array.get(i), functions, arrays, prelude.globals, natives);
+      }
+    }
+    out.flush();
+  }
+
+  static Prelude read(LoxEngine engine, InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+    if (in.readInt() != MAGIC) throw new IOException("Not a Lox snapshot.");
+    int version = in.readInt();
+    if (version != 1 && version != VERSION) throw new IOException("Unsupported snapshot version " + version + ".");
+
+    String source = readString(in);
+    LoxScript script = engine.compile(source);
+    List<Stmt.Function> declarations = collectFunctions(script.statements);
+
+    // 全局作用域来自一个新的解释器，这样原生函数已经定义好了
+    Environment natives = newNativeGlobals();
+
+    int environmentCount = in.readInt();
+    Environment[] environments = new Environment[environmentCount];
+    for (int i = 0; i < environmentCount; i++) {
+      int enclosing = in.readInt();
+      if (i == 0) {
+        environments[i] = natives;
+      } else {
+        environments[i] = new Environment(environments[enclosing]);
+      }
+    }
+
+    int functionCount = in.readInt();
+    LoxFunction[] functions = new LoxFunction[functionCount];
+    for (int i = 0; i < functionCount; i++) {
+      Stmt.Function declaration = declarations.get(in.readInt());
+      functions[i] = new LoxFunction(declaration, environments[in.readInt()]);
+    }
+
+    // 数组先建成空的，元素在绑定之后读，里面可以引用任何一个数组
+    LoxArray[] arrays = new LoxArray[version == 1 ? 0 : in.readInt()];
+    for (int i = 0; i < arrays.length; i++) arrays[i] = new LoxArray();
+
+    for (Environment environment : environments) {
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String name = readString(in);
+        environment.define(name, readValue(in, functions, arrays, natives));
+      }
+    }
+
+    for (LoxArray array : arrays) {
+      int size = in.readInt();
+      for (int i = 0; i < size; i++) array.push(readValue(in, functions, arrays, natives));
+    }
+
+    environments[0].freeze();
+    return new Prelude(environments[0], source, script.statements);
+  }
+
+  private static void register(Environment environment, Map<Environment, Integer> environments,
+                               List<Environment> environmentList, Deque<Object> worklist) {
+    if (environments.containsKey(environment)) return;
+    // 外层环境必须先编号，恢复时构造内层环境要用到它
+    if (environment.enclosing != null) {
+      register(environment.enclosing, environments, environmentList, worklist);
+    }
+    environments.put(environment, environmentList.size());
+    environmentList.add(environment);
+    worklist.push(environment);
+  }
+
+  // 全是数字的数组里没有别的引用
+  private static List<Object> elements(LoxArray array) {
+    if (array.packed()) return List.of();
+    List<Object> elements = new ArrayList<>(array.size());
+    for (int i = 0; i < array.size(); i++) elements.add(array.get(i));
+    return elements;
+  }
+
+  private static Environment newNativeGlobals() {
+    PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+    return new Interpreter(new ErrorReporter(sink), sink).globals;
+  }
+
+  private static void writeValue(DataOutputStream out, Object value,
+                                 Map<LoxFunction, Integer> functions, Map<LoxArray, Integer> arrays,
+                                 Environment globals, Environment natives) throws IOException {
+    if (value == null) {
+      out.writeByte(NIL);
+    } else if (value instanceof Boolean) {
+      out.writeByte((boolean)value ? TRUE : FALSE);
+    } else if (value instanceof Double) {
+      out.writeByte(NUMBER);
+      out.writeDouble((double)value);
+    } else if (value instanceof LoxString) {
+      out.writeByte(STRING);
+      writeString(out, value.toString());
+    } else if (value instanceof LoxFunction) {
+      out.writeByte(FUNCTION);
+      out.writeInt(functions.get(value));
+    } else if (value instanceof LoxArray) {
+      out.writeByte(ARRAY);
+      out.writeInt(arrays.get(value));
+    } else if (value instanceof LoxCallable) {
+      // 原生函数按它在全局作用域里的名字保存，恢复时从新解释器里按名字取回
+      out.writeByte(NATIVE);
+      writeString(out, nativeName(value, globals, natives));
+    } else {
+      throw new IOException("Can't snapshot value " + value + ".");
+    }
+  }
+
+  private static Object readValue(DataInputStream in, LoxFunction[] functions, LoxArray[] arrays,
+                                  Environment natives) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case NIL: return null;
+      case TRUE: return true;
+      case FALSE: return false;
+      case NUMBER: return in.readDouble();
+      case STRING: return LoxString.of(readString(in));
+      case FUNCTION: return functions[in.readInt()];
+      case ARRAY: return arrays[in.readInt()];
+      case NATIVE: {
+        String name = readString(in);
+        Object value = natives.getOrNull(name);
+        if (!(value instanceof LoxCallable)) {
+          throw new IOException("Unknown native function '" + name + "'.");
+        }
+        return value;
+      }
+      default:
+        throw new IOException("Corrupt snapshot: unknown value tag " + tag + ".");
+    }
+  }
+
+  // 同一个原生函数可能还被赋给了别的全局变量（var t = clock;），只认新解释器里也定义为原生函数的名字
+  private static String nativeName(Object value, Environment globals,
+                                   Environment natives) throws IOException {
+    for (Environment environment = globals; environment != null; environment = environment.enclosing) {
+      for (Map.Entry<String, Object> entry : environment.values().entrySet()) {
+        if (entry.getValue() == value &&
+            natives.getOrNull(entry.getKey()) instanceof LoxCallable) {
+          return entry.getKey();
+        }
+      }
+    }
+    throw new IOException("Can't snapshot native function " + value + ".");
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // 按先序收集所有函数声明，保存和恢复两边对同一份源码得到的编号一致
+  static List<Stmt.Function> collectFunctions(List<Stmt> statements) {
+    FunctionCollector collector = new FunctionCollector();
+    collector.collect(statements);
+    return collector.functions;
+  }
+
+  private static class FunctionCollector implements Stmt.Visitor<Void> {
+    final List<Stmt.Function> functions = new ArrayList<>();
+
+    void collect(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        if (statement != null) statement.accept(this);
+      }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      collect(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+      if (stmt.initializer != null) stmt.initializer.accept(this);
+      stmt.body.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      functions.add(stmt);
+      collect(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      stmt.thenBranch.accept(this);
+      if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      stmt.body.accept(this);
+      return null;
+    }
+  }
+}
@@ -6,6 +6,7 @@ abstract class Stmt {
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitExpressionStmt(Expression stmt);
+    R visitForStmt(For stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
     R visitPrintStmt(Print stmt);
@@ -13,6 +14,7 @@ abstract class Stmt {
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
   }
+  boolean deep;
   static class Block extends Stmt {
     Block(List<Stmt> statements) {
       this.statements = statements;
@@ -37,6 +39,28 @@ abstract class Stmt {
 
     final Expr expression;
   }
+  static class For extends Stmt {
+    For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    final Stmt initializer;
+    final Expr condition;
+    final Expr increment;
+    final Stmt body;
+    volatile CompiledFunction compiled;
+    boolean queued;
+    boolean counted;
+    boolean counterRead;
+  }
   static class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
@@ -52,6 +76,9 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    volatile CompiledFunction compiled;
+    boolean queued;
+    boolean recyclable;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -122,6 +149,8 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+    volatile CompiledFunction compiled;
+    boolean queued;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
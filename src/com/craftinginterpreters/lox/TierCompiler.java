@@ -0,0 +1,537 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.craftinginterpreters.lox.CompiledFunction.Code;
+import com.craftinginterpreters.lox.CompiledFunction.Exec;
+import com.craftinginterpreters.lox.CompiledFunction.Frame;
+
+// 把一个已经完成变量解析的函数声明编译成 CompiledFunction。
+//
+// 只编译不会被闭包捕获局部变量的函数，也就是函数体里没有嵌套函数声明的函数：
+// 这样函数自己的作用域（参数和各层块）都可以换成 Frame 里的槽位，
+// 而解析深度超出函数自身作用域的变量仍然通过 closure 环境链访问，和 AST 解释器看到的是同一批 Environment。
+// 不支持的函数返回 null，留在 AST 解释器里执行。
+class TierCompiler implements Expr.Visitor<Code>, Stmt.Visitor<Exec> {
+  private static class Unsupported extends RuntimeException {
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
+  // 和 Resolver 的作用域一一对应：第 0 层是参数和函数体顶层的声明
+  private final List<Map<String, Integer>> scopes = new ArrayList<>();
+  private int slotCount = 0;
+  // 正在编译的内联函数体的参数槽位，见 Inliner
+  private final List<int[]> inlineSlots = new ArrayList<>();
+
+  private TierCompiler() {}
+
+  static CompiledFunction compile(Stmt.Function function) {
+    TierCompiler compiler = new TierCompiler();
+    try {
+      compiler.beginScope();
+      for (Token param : function.params) {
+        compiler.declare(param);
+      }
+      Exec body = compiler.block(function.body);
+      return new CompiledFunction.Tree(function.params.size(), compiler.slotCount, body, false);
+    } catch (Unsupported unsupported) {
+      return null;
+    }
+  }
+
+  // 正在跑的循环（OSR）：没有参数作用域，循环外面的变量都通过 closure，也就是循环所在的环境访问。
+  // for 循环的初始化式已经执行过了，从条件判断处开始，计数器也在 closure 里
+  static CompiledFunction compileLoop(Stmt loop) {
+    TierCompiler compiler = new TierCompiler();
+    try {
+      Exec body = loop instanceof Stmt.For
+          ? compiler.forLoop((Stmt.For)loop) : loop.accept(compiler);
+      return new CompiledFunction.Tree(0, compiler.slotCount, body, true);
+    } catch (Unsupported unsupported) {
+      return null;
+    }
+  }
+
+  private void beginScope() {
+    scopes.add(new HashMap<>());
+  }
+
+  private void endScope() {
+    scopes.remove(scopes.size() - 1);
+  }
+
+  private int declare(Token name) {
+    // 循环体直接是一条声明时没有自己的作用域
+    if (scopes.isEmpty()) throw new Unsupported();
+    int slot = slotCount++;
+    scopes.get(scopes.size() - 1).put(name.lexeme, slot);
+    return slot;
+  }
+
+  // 解析深度落在函数自己的作用域里时返回槽位，否则返回 -1
+  private int slot(int depth, Token name) {
+    if (depth < 0 || depth >= scopes.size()) return -1;
+    Integer slot = scopes.get(scopes.size() - 1 - depth).get(name.lexeme);
+    if (slot == null) throw new Unsupported();
+    return slot;
+  }
+
+  private Exec block(List<Stmt> statements) {
+    Exec[] body = new Exec[statements.size()];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = statement(statements.get(i));
+    }
+    if (body.length == 1) return body[0];
+    return frame -> {
+      for (Exec stmt : body) {
+        if (stmt.exec(frame)) return true;
+      }
+      return false;
+    };
+  }
+
+  // 嵌套得很深的语句（Stmt.deep）编译出来的闭包树求值时照样要递归，留在解释器里用堆上的栈执行
+  private Exec statement(Stmt stmt) {
+    if (stmt.deep) throw new Unsupported();
+    return stmt.accept(this);
+  }
+
+  private Code compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  @Override
+  public Exec visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    Exec body = block(stmt.statements);
+    endScope();
+    return body;
+  }
+
+  @Override
+  public Exec visitExpressionStmt(Stmt.Expression stmt) {
+    Code expression = compile(stmt.expression);
+    return frame -> {
+      expression.eval(frame);
+      return false;
+    };
+  }
+
+  @Override
+  public Exec visitFunctionStmt(Stmt.Function stmt) {
+    // 嵌套函数会捕获当前帧，帧必须是 Environment，不能编译
+    throw new Unsupported();
+  }
+
+  @Override
+  public Exec visitIfStmt(Stmt.If stmt) {
+    Code condition = compile(stmt.condition);
+    Exec thenBranch = statement(stmt.thenBranch);
+    if (stmt.elseBranch == null) {
+      return frame -> Interpreter.isTruthy(condition.eval(frame)) && thenBranch.exec(frame);
+    }
+    Exec elseBranch = statement(stmt.elseBranch);
+    return frame -> Interpreter.isTruthy(condition.eval(frame))
+        ? thenBranch.exec(frame) : elseBranch.exec(frame);
+  }
+
+  @Override
+  public Exec visitPrintStmt(Stmt.Print stmt) {
+    Code expression = compile(stmt.expression);
+    return frame -> {
+      frame.interpreter.print(expression.eval(frame));
+      return false;
+    };
+  }
+
+  @Override
+  public Exec visitReturnStmt(Stmt.Return stmt) {
+    Code value = stmt.value == null ? frame -> null : compile(stmt.value);
+    return frame -> {
+      frame.returnValue = value.eval(frame);
+      return true;
+    };
+  }
+
+  @Override
+  public Exec visitVarStmt(Stmt.Var stmt) {
+    // 先编译初始化式再声明，和 Resolver 的顺序一致
+    Code initializer = stmt.initializer == null ? frame -> null : compile(stmt.initializer);
+    int slot = declare(stmt.name);
+    return frame -> {
+      frame.slots[slot] = initializer.eval(frame);
+      return false;
+    };
+  }
+
+  @Override
+  public Exec visitWhileStmt(Stmt.While stmt) {
+    Code condition = compile(stmt.condition);
+    Exec body = statement(stmt.body);
+    return frame -> {
+      while (Interpreter.isTruthy(condition.eval(frame))) {
+        if (body.exec(frame)) return true;
+      }
+      return false;
+    };
+  }
+
+  @Override
+  public Exec visitForStmt(Stmt.For stmt) {
+    beginScope();
+    Exec initializer = stmt.initializer == null ? null : statement(stmt.initializer);
+    Exec loop = forLoop(stmt);
+    endScope();
+    if (initializer == null) return loop;
+    return frame -> initializer.exec(frame) || loop.exec(frame);
+  }
+
+  private Exec forLoop(Stmt.For stmt) {
+    Code condition = compile(stmt.condition);
+    Exec body = statement(stmt.body);
+    Code increment = stmt.increment == null ? frame -> null : compile(stmt.increment);
+    Exec loop = frame -> {
+      while (Interpreter.isTruthy(condition.eval(frame))) {
+        if (body.exec(frame)) return true;
+        increment.eval(frame);
+      }
+      return false;
+    };
+    // 计数循环的计数器在槽位里时（不是 OSR），循环期间放在 double 局部变量里，见 Interpreter.countedLoop
+    if (!stmt.counted) return loop;
+    int slot = slot(0, ((Stmt.Var)stmt.initializer).name);
+    if (slot < 0) return loop;
+    Expr.Binary test = (Expr.Binary)stmt.condition;
+    Expr.Binary step = (Expr.Binary)((Expr.Assign)stmt.increment).value;
+    Code limit = compile(test.right);
+    Code amount = compile(step.right);
+    Token comparison = test.operator;
+    Token operator = step.operator;
+    boolean plus = operator.type == TokenType.PLUS;
+    boolean read = stmt.counterRead;
+    return frame -> {
+      Object start = frame.slots[slot];
+      if (!(start instanceof Double)) return loop.exec(frame);
+      double counter = (double)start;
+      while (true) {
+        Object bound = limit.eval(frame);
+        if (!(bound instanceof Double)) throw numbersExpected(comparison);
+        if (!Interpreter.compare(comparison.type, counter, (double)bound)) return false;
+        if (read) frame.slots[slot] = counter;
+        if (body.exec(frame)) return true;
+        Object by = amount.eval(frame);
+        if (!(by instanceof Double)) {
+          throw plus ? new RuntimeError(operator, "Operands must be two numbers or two strings.")
+              : numbersExpected(operator);
+        }
+        counter = plus ? counter + (double)by : counter - (double)by;
+      }
+    };
+  }
+
+  @Override
+  public Code visitArgumentExpr(Expr.Argument expr) {
+    int slot = inlineSlots.get(inlineSlots.size() - 1)[expr.index];
+    return frame -> frame.slots[slot];
+  }
+
+  @Override
+  public Code visitAssignExpr(Expr.Assign expr) {
+    Code value = compile(expr.value);
+    Token name = expr.name;
+    int slot = slot(expr.depth, name);
+    if (slot >= 0) {
+      return frame -> frame.slots[slot] = value.eval(frame);
+    }
+    if (expr.depth >= 0) {
+      int distance = expr.depth - scopes.size();
+      return frame -> {
+        Object result = value.eval(frame);
+        frame.closure.assignAt(distance, name, result);
+        return result;
+      };
+    }
+    return frame -> {
+      Object result = value.eval(frame);
+      frame.interpreter.globals.assign(name, result);
+      return result;
+    };
+  }
+
+  @Override
+  public Code visitVariableExpr(Expr.Variable expr) {
+    Token name = expr.name;
+    int slot = slot(expr.depth, name);
+    if (slot >= 0) return frame -> frame.slots[slot];
+    if (expr.depth >= 0) {
+      int distance = expr.depth - scopes.size();
+      return frame -> frame.closure.getAt(distance, name.lexeme);
+    }
+    return frame -> frame.interpreter.globals.get(name);
+  }
+
+  @Override
+  public Code visitTempExpr(Expr.Temp expr) {
+    // 读和写按同名的 Variable 和 Assign 编译，槽位、closure 和全局变量的处理都一样
+    Code read = compile(variable(expr));
+    Code write = compile(assign(expr));
+    return frame -> {
+      Object value = read.eval(frame);
+      return value != null ? value : write.eval(frame);
+    };
+  }
+
+  static Expr.Variable variable(Expr.Temp temp) {
+    Expr.Variable variable = new Expr.Variable(temp.name);
+    variable.depth = temp.depth;
+    return variable;
+  }
+
+  static Expr.Assign assign(Expr.Temp temp) {
+    Expr.Assign assign = new Expr.Assign(temp.name, temp.value);
+    assign.depth = temp.depth;
+    return assign;
+  }
+
+  @Override
+  public Code visitBinaryExpr(Expr.Binary expr) {
+    Code left = compile(expr.left);
+    Code right = compile(expr.right);
+    Token operator = expr.operator;
+
+    switch (operator.type) {
+      case GREATER:
+        return frame -> {
+          Object a = left.eval(frame);
+          Object b = right.eval(frame);
+          if (a instanceof Double && b instanceof Double) return (double)a > (double)b;
+          throw numbersExpected(operator);
+        };
+      case GREATER_EQUAL:
+        return frame -> {
+          Object a = left.eval(frame);
+          Object b = right.eval(frame);
+          if (a instanceof Double && b instanceof Double) return (double)a >= (double)b;
+          throw numbersExpected(operator);
+        };
+      case LESS:
+        return frame -> {
+          Object a = left.eval(frame);
+          Object b = right.eval(frame);
+          if (a instanceof Double && b instanceof Double) return (double)a < (double)b;
+          throw numbersExpected(operator);
+        };
+      case LESS_EQUAL:
+        return frame -> {
+          Object a = left.eval(frame);
+          Object b = right.eval(frame);
+          if (a instanceof Double && b instanceof Double) return (double)a <= (double)b;
+          throw numbersExpected(operator);
+        };
+      case BANG_EQUAL:
+        return frame -> {
+          Object a = left.eval(frame);
+          return !Interpreter.isEqual(a, right.eval(frame));
+        };
+      case EQUAL_EQUAL:
+        return frame -> {
+          Object a = left.eval(frame);
+          return Interpreter.isEqual(a, right.eval(frame));
+        };
+      case MINUS:
+        return frame -> {
+          Object a = left.eval(frame);
+          Object b = right.eval(frame);
+          if (a instanceof Double && b instanceof Double) return (double)a - (double)b;
+          throw numbersExpected(operator);
+        };
+      case PLUS:
+        return frame -> {
+          Object a = left.eval(frame);
+          Object b = right.eval(frame);
+          if (a instanceof Double && b instanceof Double) return (double)a + (double)b;
+          if (a instanceof LoxString && b instanceof LoxString) {
+            return LoxString.concat((LoxString)a, (LoxString)b);
+          }
+          throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        };
+      case SLASH:
+        return frame -> {
+          Object a = left.eval(frame);
+          Object b = right.eval(frame);
+          if (a instanceof Double && b instanceof Double) return (double)a / (double)b;
+          throw numbersExpected(operator);
+        };
+      case STAR:
+        return frame -> {
+          Object a = left.eval(frame);
+          Object b = right.eval(frame);
+          if (a instanceof Double && b instanceof Double) return (double)a * (double)b;
+          throw numbersExpected(operator);
+        };
+      default:
+        throw new Unsupported();
+    }
+  }
+
+  private static RuntimeError numbersExpected(Token operator) {
+    return new RuntimeError(operator, "Operands must be numbers.");
+  }
+
+  @Override
+  public Code visitCallExpr(Expr.Call expr) {
+    Code callee = compile(expr.callee);
+    Code[] arguments = new Code[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+    Token paren = expr.paren;
+    if (expr.inlined != null) {
+      // 内联的函数体：参数放进帧里额外的槽位
+      int[] slots = new int[arguments.length];
+      for (int i = 0; i < slots.length; i++) slots[i] = slotCount++;
+      inlineSlots.add(slots);
+      Code body = compile(expr.inlineBody);
+      inlineSlots.remove(inlineSlots.size() - 1);
+      Stmt.Function inlined = expr.inlined;
+      return frame -> {
+        Object function = callee.eval(frame);
+        if (frame.interpreter.canInline(function, inlined)) {
+          for (int i = 0; i < slots.length; i++) {
+            frame.slots[slots[i]] = arguments[i].eval(frame);
+          }
+          return body.eval(frame);
+        }
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = arguments[i].eval(frame);
+        }
+        return frame.interpreter.call(function, values, paren);
+      };
+    }
+    return frame -> {
+      Object function = callee.eval(frame);
+      Object[] values = new Object[arguments.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = arguments[i].eval(frame);
+      }
+      return frame.interpreter.call(function, values, paren);
+    };
+  }
+
+  @Override
+  public Code visitArrayExpr(Expr.Array expr) {
+    Code[] elements = new Code[expr.elements.size()];
+    for (int i = 0; i < elements.length; i++) {
+      elements[i] = compile(expr.elements.get(i));
+    }
+    return frame -> {
+      Object[] values = new Object[elements.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = elements[i].eval(frame);
+      }
+      return new LoxArray(values);
+    };
+  }
+
+  @Override
+  public Code visitIndexExpr(Expr.Index expr) {
+    Code object = compile(expr.object);
+    Code index = compile(expr.index);
+    Token bracket = expr.bracket;
+    return frame -> {
+      Object array = object.eval(frame);
+      return Interpreter.get(array, index.eval(frame), bracket);
+    };
+  }
+
+  @Override
+  public Code visitSetIndexExpr(Expr.SetIndex expr) {
+    Code object = compile(expr.object);
+    Code index = compile(expr.index);
+    Code value = compile(expr.value);
+    Token bracket = expr.bracket;
+    return frame -> {
+      Object array = object.eval(frame);
+      Object position = index.eval(frame);
+      Object result = value.eval(frame);
+      Interpreter.set(array, position, result, bracket);
+      return result;
+    };
+  }
+
+  @Override
+  public Code visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Code visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    return frame -> value;
+  }
+
+  @Override
+  public Code visitLogicalExpr(Expr.Logical expr) {
+    if (expr.chain) return logicalChain(expr);
+    Code left = compile(expr.left);
+    Code right = compile(expr.right);
+    if (expr.operator.type == TokenType.OR) {
+      return frame -> {
+        Object value = left.eval(frame);
+        return Interpreter.isTruthy(value) ? value : right.eval(frame);
+      };
+    }
+    return frame -> {
+      Object value = left.eval(frame);
+      return !Interpreter.isTruthy(value) ? value : right.eval(frame);
+    };
+  }
+
+  // 左边嵌套的一长串 and / or（见 Expr.Logical.chain）：编译时沿着左边循环走，
+  // 运行时从最左边的操作数开始依次决定要不要求右边，都不递归
+  private Code logicalChain(Expr.Logical expr) {
+    List<Expr.Logical> links = new ArrayList<>();
+    Expr left = expr;
+    while (left instanceof Expr.Logical) {
+      links.add((Expr.Logical)left);
+      left = ((Expr.Logical)left).left;
+    }
+    Code first = compile(left);
+    int count = links.size();
+    Code[] rights = new Code[count];
+    boolean[] ands = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      Expr.Logical link = links.get(count - 1 - i);
+      rights[i] = compile(link.right);
+      ands[i] = link.operator.type == TokenType.AND;
+    }
+    return frame -> {
+      Object value = first.eval(frame);
+      for (int i = 0; i < rights.length; i++) {
+        // and 在左边为真、or 在左边为假时才求右边
+        if (Interpreter.isTruthy(value) == ands[i]) value = rights[i].eval(frame);
+      }
+      return value;
+    };
+  }
+
+  @Override
+  public Code visitUnaryExpr(Expr.Unary expr) {
+    Code right = compile(expr.right);
+    Token operator = expr.operator;
+    if (operator.type == TokenType.BANG) {
+      return frame -> !Interpreter.isTruthy(right.eval(frame));
+    }
+    return frame -> {
+      Object value = right.eval(frame);
+      if (value instanceof Double) return -(double)value;
+      throw new RuntimeError(operator, "Operand must be a number.");
+    };
+  }
+}
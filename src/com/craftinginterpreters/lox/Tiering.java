@@ -0,0 +1,158 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// 分层执行的策略和编译队列。
+// 所有函数先在 AST 解释器里跑；LoxFunction 的调用次数达到 callThreshold，
+// 或者函数里的循环回边次数达到 backEdgeThreshold 时，就把它的声明交给后台线程编译：
+// 先试 BytecodeCompiler 生成 JVM 字节码，不支持的函数再试 TierCompiler 的闭包树。
+// 编译结果写到 Stmt.Function.compiled（volatile），下一次调用时原子地切换过去。
+// 顶层代码不在任何函数里，所以循环本身也会被单独编译（OSR）：回边次数达到阈值后，
+// 编译结果写到 Stmt.While.compiled / Stmt.For.compiled，正在跑的循环在下一次迭代时切换过去，
+// 见 Interpreter.visitWhileStmt 和 visitForStmt。
+// 编译结果挂在共享的语法树上，所以是全局的，所有解释器、所有闭包实例都能用上。
+//
+// 配置通过系统属性：
+//   lox.tier.enabled            默认 true
+//   lox.tier.callThreshold      默认 1000
+//   lox.tier.backEdgeThreshold  默认 10000
+//   lox.tier.bytecode           默认 true，为 false 时只用闭包树
+//   lox.tier.sync               默认 false，为 true 时在调用线程上同步编译（便于测试和基准）
+final class Tiering {
+  static final boolean enabled =
+      Boolean.parseBoolean(System.getProperty("lox.tier.enabled", "true"));
+  static final int callThreshold = Integer.getInteger("lox.tier.callThreshold", 1000);
+  static final int backEdgeThreshold = Integer.getInteger("lox.tier.backEdgeThreshold", 10000);
+  private static final boolean bytecode =
+      Boolean.parseBoolean(System.getProperty("lox.tier.bytecode", "true"));
+  private static final boolean sync = Boolean.getBoolean("lox.tier.sync");
+
+  private static final AtomicLong requested = new AtomicLong();
+  private static final AtomicLong compiled = new AtomicLong();
+  private static final AtomicLong bytecodeCompiled = new AtomicLong();
+  private static final AtomicLong loopsCompiled = new AtomicLong();
+  private static final AtomicLong rejected = new AtomicLong();
+  private static final AtomicLong compileNanos = new AtomicLong();
+
+  private static final ThreadPoolExecutor compiler = new ThreadPoolExecutor(
+      1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "lox-tier-compiler");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private Tiering() {}
+
+  // 每个声明（循环）只排队一次，不管之后编译成功还是被拒绝
+  static void request(Stmt.Function declaration) {
+    synchronized (declaration) {
+      if (declaration.queued) return;
+      declaration.queued = true;
+    }
+    submit(() -> {
+      CompiledFunction function = compile(
+          () -> BytecodeCompiler.compile(declaration), () -> TierCompiler.compile(declaration));
+      if (function != null) declaration.compiled = function;
+    });
+  }
+
+  static void requestLoop(Stmt.While loop) {
+    synchronized (loop) {
+      if (loop.queued) return;
+      loop.queued = true;
+    }
+    submitLoop(loop, function -> loop.compiled = function);
+  }
+
+  static void requestLoop(Stmt.For loop) {
+    synchronized (loop) {
+      if (loop.queued) return;
+      loop.queued = true;
+    }
+    submitLoop(loop, function -> loop.compiled = function);
+  }
+
+  private static void submitLoop(Stmt loop, Consumer<CompiledFunction> install) {
+    submit(() -> {
+      CompiledFunction function = compile(
+          () -> BytecodeCompiler.compileLoop(loop), () -> TierCompiler.compileLoop(loop));
+      if (function == null) return;
+      loopsCompiled.incrementAndGet();
+      install.accept(function);
+    });
+  }
+
+  private static void submit(Runnable task) {
+    requested.incrementAndGet();
+    if (sync) {
+      task.run();
+    } else {
+      compiler.execute(task);
+    }
+  }
+
+  // 先试字节码，不支持时再试闭包树
+  private static CompiledFunction compile(Supplier<CompiledFunction> toBytecode,
+                                          Supplier<CompiledFunction> toTree) {
+    long start = System.nanoTime();
+    CompiledFunction function = bytecode ? attempt(toBytecode) : null;
+    if (function != null) {
+      bytecodeCompiled.incrementAndGet();
+    } else {
+      function = attempt(toTree);
+    }
+    compileNanos.addAndGet(System.nanoTime() - start);
+    if (function == null) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    compiled.incrementAndGet();
+    return function;
+  }
+
+  // 两个编译器都是递归遍历语法树的，生成的代码里几千项的表达式会让它们栈溢出，当作不支持
+  private static CompiledFunction attempt(Supplier<CompiledFunction> compiler) {
+    try {
+      return compiler.get();
+    } catch (StackOverflowError e) {
+      return null;
+    }
+  }
+
+  static long requested() {
+    return requested.get();
+  }
+
+  static long compiled() {
+    return compiled.get();
+  }
+
+  static long bytecodeCompiled() {
+    return bytecodeCompiled.get();
+  }
+
+  static long loopsCompiled() {
+    return loopsCompiled.get();
+  }
+
+  static long rejected() {
+    return rejected.get();
+  }
+
+  static int queueLength() {
+    return compiler.getQueue().size();
+  }
+
+  static String stats() {
+    return String.format(
+        "[tiering] call threshold %d, back-edge threshold %d: %d requested, %d compiled " +
+        "(%d to bytecode, %d loops), %d rejected, %d queued, %.3f ms compiling",
+        callThreshold, backEdgeThreshold, requested(), compiled(), bytecodeCompiled(),
+        loopsCompiled(), rejected(), queueLength(), compileNanos.get() / 1e6);
+  }
+}
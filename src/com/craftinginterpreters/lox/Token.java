@@ -4,7 +4,8 @@ class Token {
     final TokenType type;
     final String lexeme;  // 词素
     final Object literal;  // 文字 ？
-    final int line;
+    // 不是 final：LoxDocument 增量编辑时，插入或删除换行后把后面复用的记号整体挪几行
+    int line;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
@@ -0,0 +1,93 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+// 记录每次调用（Lox 函数和原生函数）的进入和退出，导出成 Chrome trace-event 格式的 JSON，
+// 可以在 chrome://tracing 或 Perfetto 里打开。
+//
+// 事件存在预先分配好的环形缓冲区里，写满后覆盖最旧的事件。
+// 记录时只写几个数组槽位，不拼字符串；函数名、参数个数这些都在导出时才从 callee 上取。
+// 没开启时解释器里的 tracer 字段为 null，热路径上只多一次判空。
+final class Tracer {
+  private static final byte ENTER = 0;
+  private static final byte EXIT = 1;
+
+  private final long start = System.nanoTime();
+  private final long[] times;
+  private final byte[] phases;
+  private final LoxCallable[] callees;
+  private final int[] lines;
+  private final int mask;
+  // 一共记录过多少个事件，超过容量时只有最近的 capacity 个还在
+  private long count = 0;
+
+  // capacity 会向上取整到 2 的幂
+  Tracer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+    times = new long[size];
+    phases = new byte[size];
+    callees = new LoxCallable[size];
+    lines = new int[size];
+    mask = size - 1;
+  }
+
+  void enter(LoxCallable callee, int line) {
+    record(ENTER, callee, line);
+  }
+
+  void exit(LoxCallable callee, int line) {
+    record(EXIT, callee, line);
+  }
+
+  private void record(byte phase, LoxCallable callee, int line) {
+    int slot = (int)(count++ & mask);
+    times[slot] = System.nanoTime();
+    phases[slot] = phase;
+    callees[slot] = callee;
+    lines[slot] = line;
+  }
+
+  void write(PrintStream out) {
+    long first = Math.max(0, count - times.length);
+    out.println("{\"traceEvents\":[");
+    // 缓冲区被覆盖过时，开头可能有找不到对应 B 的 E 事件，跳过它们
+    int depth = 0;
+    boolean comma = false;
+    for (long i = first; i < count; i++) {
+      int slot = (int)(i & mask);
+      if (phases[slot] == EXIT) {
+        if (depth == 0) continue;
+        depth--;
+      } else {
+        depth++;
+      }
+
+      LoxCallable callee = callees[slot];
+      if (comma) out.println(",");
+      comma = true;
+      out.printf(Locale.ROOT, "{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"%s\",\"ts\":%.3f,\"pid\":1,\"tid\":1," +
+              "\"args\":{\"arity\":%d,\"line\":%d}}",
+          escape(name(callee)),
+          callee instanceof LoxFunction ? "lox" : "native",
+          phases[slot] == ENTER ? "B" : "E",
+          (times[slot] - start) / 1000.0,
+          callee.arity(),
+          lines[slot]);
+    }
+    out.println();
+    out.println("]}");
+  }
+
+  private static String name(LoxCallable callee) {
+    if (callee instanceof LoxFunction) {
+      return ((LoxFunction)callee).declaration.name.lexeme;
+    }
+    if (callee instanceof NativeFunction) return ((NativeFunction)callee).name;
+    return callee.toString();
+  }
+
+  private static String escape(String text) {
+    return text.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
@@ -0,0 +1,160 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// NumericOps 的 SIMD 版本，用 jdk.incubator.vector 的 DoubleVector，每次处理 SPECIES_PREFERRED 个 double
+// （AVX2 上 4 个，AVX-512 上 8 个），不够一个向量的尾巴按顺序算。
+// JDK 17 上这个模块还在孵化，要 java --add-modules jdk.incubator.vector 才会加载，
+// 没有加载时 NumericOps 用自己的标量循环，这个类不会被加载。
+// 归约的加法顺序和标量循环不同，结果可能在最后几位上不同；逐元素的运算结果完全一样（不用 fma）。
+final class VectorOps {
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  private VectorOps() {}
+
+  // 两个向量累加器交替用，减少加法延迟的等待
+  static double sum(double[] a, int n) {
+    DoubleVector s0 = DoubleVector.zero(SPECIES);
+    DoubleVector s1 = DoubleVector.zero(SPECIES);
+    int step = SPECIES.length();
+    int i = 0;
+    for (; i + 2 * step <= n; i += 2 * step) {
+      s0 = s0.add(DoubleVector.fromArray(SPECIES, a, i));
+      s1 = s1.add(DoubleVector.fromArray(SPECIES, a, i + step));
+    }
+    for (; i + step <= n; i += step) s0 = s0.add(DoubleVector.fromArray(SPECIES, a, i));
+    double s = s0.add(s1).reduceLanes(VectorOperators.ADD);
+    for (; i < n; i++) s += a[i];
+    return s;
+  }
+
+  static double dot(double[] a, double[] b, int n) {
+    DoubleVector s0 = DoubleVector.zero(SPECIES);
+    DoubleVector s1 = DoubleVector.zero(SPECIES);
+    int step = SPECIES.length();
+    int i = 0;
+    for (; i + 2 * step <= n; i += 2 * step) {
+      s0 = s0.add(DoubleVector.fromArray(SPECIES, a, i).mul(DoubleVector.fromArray(SPECIES, b, i)));
+      s1 = s1.add(DoubleVector.fromArray(SPECIES, a, i + step)
+          .mul(DoubleVector.fromArray(SPECIES, b, i + step)));
+    }
+    for (; i + step <= n; i += step) {
+      s0 = s0.add(DoubleVector.fromArray(SPECIES, a, i).mul(DoubleVector.fromArray(SPECIES, b, i)));
+    }
+    double s = s0.add(s1).reduceLanes(VectorOperators.ADD);
+    for (; i < n; i++) s += a[i] * b[i];
+    return s;
+  }
+
+  // n > 0。lanewise 的 min、max 和 Math.min、Math.max 一样，有 NaN 时结果是 NaN
+  static double min(double[] a, int n) {
+    DoubleVector m = DoubleVector.broadcast(SPECIES, a[0]);
+    int bound = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) m = m.min(DoubleVector.fromArray(SPECIES, a, i));
+    double result = m.reduceLanes(VectorOperators.MIN);
+    for (; i < n; i++) result = Math.min(result, a[i]);
+    return result;
+  }
+
+  static double max(double[] a, int n) {
+    DoubleVector m = DoubleVector.broadcast(SPECIES, a[0]);
+    int bound = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) m = m.max(DoubleVector.fromArray(SPECIES, a, i));
+    double result = m.reduceLanes(VectorOperators.MAX);
+    for (; i < n; i++) result = Math.max(result, a[i]);
+    return result;
+  }
+
+  // 数据集的一块：a 是映射的字节，小端序，n 个 double
+  static double sum(ByteBuffer a, int n) {
+    DoubleVector s0 = DoubleVector.zero(SPECIES);
+    DoubleVector s1 = DoubleVector.zero(SPECIES);
+    int step = SPECIES.length();
+    int i = 0;
+    for (; i + 2 * step <= n; i += 2 * step) {
+      s0 = s0.add(load(a, i));
+      s1 = s1.add(load(a, i + step));
+    }
+    for (; i + step <= n; i += step) s0 = s0.add(load(a, i));
+    double s = s0.add(s1).reduceLanes(VectorOperators.ADD);
+    for (; i < n; i++) s += a.getDouble(i * Double.BYTES);
+    return s;
+  }
+
+  // n > 0
+  static double min(ByteBuffer a, int n) {
+    DoubleVector m = DoubleVector.broadcast(SPECIES, a.getDouble(0));
+    int bound = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) m = m.min(load(a, i));
+    double result = m.reduceLanes(VectorOperators.MIN);
+    for (; i < n; i++) result = Math.min(result, a.getDouble(i * Double.BYTES));
+    return result;
+  }
+
+  static double max(ByteBuffer a, int n) {
+    DoubleVector m = DoubleVector.broadcast(SPECIES, a.getDouble(0));
+    int bound = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) m = m.max(load(a, i));
+    double result = m.reduceLanes(VectorOperators.MAX);
+    for (; i < n; i++) result = Math.max(result, a.getDouble(i * Double.BYTES));
+    return result;
+  }
+
+  private static DoubleVector load(ByteBuffer a, int i) {
+    return DoubleVector.fromByteBuffer(SPECIES, a, i * Double.BYTES, ByteOrder.LITTLE_ENDIAN);
+  }
+
+  static void add(double[] a, double[] b, double[] result, int n) {
+    int bound = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      DoubleVector.fromArray(SPECIES, a, i).add(DoubleVector.fromArray(SPECIES, b, i)).intoArray(result, i);
+    }
+    for (; i < n; i++) result[i] = a[i] + b[i];
+  }
+
+  static void mul(double[] a, double[] b, double[] result, int n) {
+    int bound = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      DoubleVector.fromArray(SPECIES, a, i).mul(DoubleVector.fromArray(SPECIES, b, i)).intoArray(result, i);
+    }
+    for (; i < n; i++) result[i] = a[i] * b[i];
+  }
+
+  static void axpy(double k, double[] a, double[] b, double[] result, int n) {
+    int bound = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      DoubleVector.fromArray(SPECIES, a, i).mul(k).add(DoubleVector.fromArray(SPECIES, b, i)).intoArray(result, i);
+    }
+    for (; i < n; i++) result[i] = k * a[i] + b[i];
+  }
+
+  static void scale(double[] a, double k, double[] result, int n) {
+    int bound = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      DoubleVector.fromArray(SPECIES, a, i).mul(k).intoArray(result, i);
+    }
+    for (; i < n; i++) result[i] = a[i] * k;
+  }
+
+  static void offset(double[] a, double k, double[] result, int n) {
+    int bound = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      DoubleVector.fromArray(SPECIES, a, i).add(k).intoArray(result, i);
+    }
+    for (; i < n; i++) result[i] = a[i] + k;
+  }
+}
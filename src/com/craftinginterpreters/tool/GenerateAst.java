@@ -17,32 +17,50 @@ public class GenerateAst {
         // Grouping (Parentheses 括号)
         // Literals 字面量
         // 表达式
-        defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
+        defineAst(outputDir, "Expr", null, Arrays.asList(
+            // 内联后函数体副本里对参数的引用，见 Inliner
+            "Argument : Token name, int index",
+            // [a, b, c]，bracket 是右方括号
+            "Array    : Token bracket, List<Expr> elements",
+            "Assign   : Token name, Expr value; int depth = -1",
+                // chain 由 Resolver 回填：左边嵌套着很长的一串二元运算或逻辑运算，解释器不递归地求值
+                "Binary   : Expr left, Token operator, Expr right; int observed, boolean chain",
+                "Call     : Expr callee, Token paren, List<Expr> arguments;" +
+                " Stmt.Function target, boolean polymorphic, Stmt.Function inlined, Expr inlineBody",
                 "Grouping : Expr expression",
+                // object[index]，bracket 是右方括号
+                "Index    : Expr object, Token bracket, Expr index",
                 "Literal  : Object value",
-                "Logical  : Expr left, Token operator, Expr right",
+                "Logical  : Expr left, Token operator, Expr right; boolean chain",
+                // object[index] = value
+                "SetIndex : Expr object, Token bracket, Expr index, Expr value",
+                // Hoister 提出来的表达式：临时变量还是 nil 时求值 value 并存进去，之后直接读
+                "Temp     : Token name, Expr value; int depth = -1",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name; int depth = -1"
         ));
-        // 语句
-        defineAst(outputDir, "Stmt", Arrays.asList(
+        // 语句。deep 由 Resolver 回填：语句里嵌套得很深（一层层的代码块、几万层的一元运算……），
+        // 解释器递归执行会把 Java 栈用完，整条交给 HeapStack 执行
+        defineAst(outputDir, "Stmt", "boolean deep", Arrays.asList(
             "Block      : List<Stmt> statements",
             "Expression : Expr expression",
+            // counted 由 Resolver 回填：循环是 var i = a; i < b; i = i + c 的形状，i 只在条件和增量里赋值、没有被闭包捕获
+            "For        : Stmt initializer, Expr condition, Expr increment, Stmt body;" +
+            " volatile CompiledFunction compiled, boolean queued, boolean counted, boolean counterRead",
+            // recyclable 由 Resolver 回填：函数体里没有嵌套函数声明，调用的帧不会被闭包捕获，可以复用
             "Function   : Token name, List<Token> params," +
-            " List<Stmt> body",
+            " List<Stmt> body; volatile CompiledFunction compiled, boolean queued, boolean recyclable",
             "If         : Expr condition, Stmt thenBranch," +
                   " Stmt elseBranch",
             "Print      : Expr expression",
             "Return     : Token keyword, Expr value",
             "Var        : Token name, Expr initializer",
-            "While      : Expr condition, Stmt body"
+            "While      : Expr condition, Stmt body; volatile CompiledFunction compiled, boolean queued"
         ));
     }
 
-    private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+    // baseSlots 是所有子类都有的可变字段，放在基类里
+    private static void defineAst(String outputDir, String baseName, String baseSlots, List<String> types) throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         // 打印格式化的对象到文本输出流
         PrintWriter writer = new PrintWriter(path, "UTF-8");
@@ -54,11 +72,19 @@ public class GenerateAst {
         writer.println("abstract class " + baseName + " {");
         // add visitor interface
         defineVisitor(writer, baseName, types);
+        if (baseSlots != null) {
+            for (String slot : baseSlots.split(", ")) {
+                writer.println("  " + slot + ";");
+            }
+        }
 
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            // ";" 后面是不进构造函数的可变字段，比如由 Resolver 回填的变量深度
+            String[] parts = type.split(":")[1].split(";");
+            String fields = parts[0].trim();
+            String slots = parts.length > 1 ? parts[1].trim() : null;
+            defineType(writer, baseName, className, fields, slots);
         }
 
         writer.println();
@@ -68,7 +94,7 @@ public class GenerateAst {
         writer.close();
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList, String slotList) {
         writer.println("  static class " + className + " extends " +
                 baseName + " {");
 
@@ -97,6 +123,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("    final " + field + ";");
         }
+        if (slotList != null) {
+            for (String slot : slotList.split(", ")) {
+                writer.println("    " + slot + ";");
+            }
+        }
 
         writer.println("  }");
     }